@@ -1,10 +1,7 @@
 package LinearHashing;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
 
 import UnsortedFile.Block;
 import UnsortedFile.StorableRecord;
@@ -15,6 +12,10 @@ public class Bucket<T extends StorableRecord> extends Block<T> {
     private int totalElementCount;
     private int firstOverflowBlock;
 
+    // Counts as last read from or written to the file, so a writer can tell what an update changed.
+    private int storedOverflowBlockCount;
+    private int storedTotalElementCount;
+
     public Bucket(int blockingFactor, int blockSize, Class<T> recordClass) {
         super(blockingFactor, blockSize, recordClass);
         this.overflowBlockCount = 0;
@@ -22,6 +23,13 @@ public class Bucket<T extends StorableRecord> extends Block<T> {
         this.firstOverflowBlock = -1;
     }
 
+    public Bucket(int blockingFactor, int blockSize, int recordSize, Supplier<T> recordFactory) {
+        super(blockingFactor, blockSize, recordSize, recordFactory);
+        this.overflowBlockCount = 0;
+        this.totalElementCount = 0;
+        this.firstOverflowBlock = -1;
+    }
+
     @Override
     public boolean addRecord(T record) {
         boolean added = super.addRecord(record);
@@ -83,73 +91,38 @@ public class Bucket<T extends StorableRecord> extends Block<T> {
         this.totalElementCount -= howMuch;
     }
 
+    int getStoredOverflowBlockCount() {
+        return storedOverflowBlockCount;
+    }
+
+    int getStoredTotalRecordCount() {
+        return storedTotalElementCount;
+    }
+
+    void markStored() {
+        storedOverflowBlockCount = overflowBlockCount;
+        storedTotalElementCount = totalElementCount;
+    }
+
     @Override
-    public byte[] ToByteArray() {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
-        try {
-            for (int i = 0; i < blockingFactor; i++) {
-                if (i < validBlockCount) {
-                    byte[] recordBytes = records[i].ToByteArray();
-                    dataOutputStream.write(recordBytes);
-                } else {
-                    byte[] emptyRecord = new byte[recordSize];
-                    dataOutputStream.write(emptyRecord);
-                }
-            }
-
-            dataOutputStream.writeInt(overflowBlockCount);
-
-            dataOutputStream.writeInt(totalElementCount);
-
-            dataOutputStream.writeInt(firstOverflowBlock);
-
-            dataOutputStream.writeInt(validBlockCount);
-
-            byte[] result = byteArrayOutputStream.toByteArray();
-
-            if (result.length > blockSize) {
-                throw new IllegalStateException(
-                        "Bucket serialization exceeds blockSize: " + result.length + " > " + blockSize);
-            }
-            if (result.length < blockSize) {
-                byte[] paddedResult = new byte[blockSize];
-                System.arraycopy(result, 0, paddedResult, 0, result.length);
-                return paddedResult;
-            }
-            return result;
-        } catch (IOException e) {
-            throw new IllegalStateException("Error during conversion to byte array.", e);
-        }
+    protected int trailerSize() {
+        return 16;
     }
 
     @Override
-    public void FromByteArray(byte[] inputArray, Class<T> recordClass) {
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(inputArray);
-        DataInputStream dataInputStream = new DataInputStream(byteArrayInputStream);
-        try {
-            byte[][] recordBytesArray = new byte[blockingFactor][];
-            for (int i = 0; i < blockingFactor; i++) {
-                recordBytesArray[i] = new byte[recordSize];
-                dataInputStream.readFully(recordBytesArray[i]);
-            }
-
-            overflowBlockCount = dataInputStream.readInt();
-
-            totalElementCount = dataInputStream.readInt();
-
-            firstOverflowBlock = dataInputStream.readInt();
-
-            validBlockCount = dataInputStream.readInt();
-
-            for (int i = 0; i < blockingFactor; i++) {
-                T record = recordClass.getDeclaredConstructor().newInstance();
-                record.FromByteArray(recordBytesArray[i]);
-                records[i] = record;
-            }
-        } catch (Exception e) {
-            throw new IllegalStateException("Error during conversion from byte array.", e);
-        }
+    protected void writeTrailer(ByteBuffer buffer) {
+        buffer.putInt(overflowBlockCount);
+        buffer.putInt(totalElementCount);
+        buffer.putInt(firstOverflowBlock);
+        buffer.putInt(validBlockCount);
     }
 
+    @Override
+    protected void readTrailer(ByteBuffer buffer) {
+        overflowBlockCount = buffer.getInt();
+        totalElementCount = buffer.getInt();
+        firstOverflowBlock = buffer.getInt();
+        validBlockCount = buffer.getInt();
+        markStored();
+    }
 }
@@ -1,6 +1,9 @@
 package LinearHashing;
 
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import UnsortedFile.*;
 
 public class BucketHeap<T extends StorableRecord> {
@@ -9,22 +12,40 @@ public class BucketHeap<T extends StorableRecord> {
     private Heap<T> overflowHeap;
     private int mainBucketsBlockSize;
     private int overflowBlockSize;
-    private Class<T> recordClass;
+    private Supplier<T> recordFactory;
+    private WriteAheadLog writeAheadLog;
+    private BucketChangeListener bucketChangeListener;
 
-    public void insertIntoBucket(int bucketNumber, List<T> records) {
+    // Told the old and new counts of every primary bucket written through writeBucket, before the write.
+    public interface BucketChangeListener {
+        public void bucketChanged(int oldOverflowBlocks, int oldRecords, int newOverflowBlocks, int newRecords);
+    }
 
-        Bucket<T> bucket;
-        if (mainBucketsHeap.checkIfBlockExists(bucketNumber)) {
-            bucket = (Bucket<T>) mainBucketsHeap.readBlock(bucketNumber);
-        } else {
-            bucket = new Bucket<>(
+    // An existing bucket is pinned rather than copied, so with a buffer pool a hot bucket is decoded
+    // once and writing it back only marks it dirty.
+    public void insertIntoBucket(int bucketNumber, List<T> records) {
+        if (!mainBucketsHeap.checkIfBlockExists(bucketNumber)) {
+            insertIntoBucket(bucketNumber, new Bucket<>(
                     mainBucketsHeap.getBlockingFactor(),
                     mainBucketsBlockSize,
-                    recordClass);
+                    mainBucketsHeap.getRecordSize(),
+                    recordFactory), records);
+            return;
         }
 
-        List<OverflowBlockAndNumber> overflowBlocks = new ArrayList<OverflowBlockAndNumber>();
-        OverflowBlockAndNumber lastOverflowBlock = null;
+        Bucket<T> bucket = mainBucketsHeap.pinBlock(bucketNumber, Bucket::new);
+        try {
+            insertIntoBucket(bucketNumber, bucket, records);
+        } catch (RuntimeException | Error e) {
+            mainBucketsHeap.unpinBlockAfterFailure(bucketNumber, bucket);
+            throw e;
+        }
+        mainBucketsHeap.unpinBlock(bucketNumber, bucket, false);
+    }
+
+    private void insertIntoBucket(int bucketNumber, Bucket<T> bucket, List<T> records) {
+        List<OverflowBlockAndNumber<T>> overflowBlocks = new ArrayList<>();
+        OverflowBlockAndNumber<T> lastOverflowBlock = null;
 
         {
             int overflowBlockNumber;
@@ -34,10 +55,10 @@ public class BucketHeap<T extends StorableRecord> {
             neededSpaces -= (mainBucketsHeap.getBlockingFactor() - bucket.getValidBlockCount());
 
             while (overflowBlockNumber != -1 && neededSpaces > 0) {
-                OverflowBlock<T> overflowBlock = overflowHeap.readBlock(overflowBlockNumber, OverflowBlock.class);
-                lastOverflowBlock = new OverflowBlockAndNumber(overflowBlock, overflowBlockNumber);
+                OverflowBlock<T> overflowBlock = overflowHeap.readBlock(overflowBlockNumber, OverflowBlock::new);
+                lastOverflowBlock = new OverflowBlockAndNumber<>(overflowBlock, overflowBlockNumber);
                 if (!overflowBlock.isFull()) {
-                    overflowBlocks.add(new OverflowBlockAndNumber(overflowBlock, overflowBlockNumber));
+                    overflowBlocks.add(new OverflowBlockAndNumber<>(overflowBlock, overflowBlockNumber));
                     neededSpaces -= (overflowHeap.getBlockingFactor() - overflowBlock.getValidBlockCount());
                 }
                 overflowBlockNumber = overflowBlock.getNextOverflowBlock();
@@ -58,8 +79,8 @@ public class BucketHeap<T extends StorableRecord> {
 
             int currentOverflowBlockIndex = 0;
             while (currentRecordIndex < records.size()) {
-                OverflowBlockAndNumber blockEntry = overflowBlocks.get(currentOverflowBlockIndex);
-                OverflowBlock<T> overflowBlock = (OverflowBlock<T>) blockEntry.block;
+                OverflowBlockAndNumber<T> blockEntry = overflowBlocks.get(currentOverflowBlockIndex);
+                OverflowBlock<T> overflowBlock = blockEntry.block;
                 if (overflowBlock.isFull()) {
                     currentOverflowBlockIndex++;
                     continue;
@@ -75,27 +96,33 @@ public class BucketHeap<T extends StorableRecord> {
             }
         }
 
-        mainBucketsHeap.writeBlock(bucketNumber, bucket);
-        if (lastOverflowBlock != null && !overflowBlocks.contains(lastOverflowBlock)) {
-            overflowHeap.writeBlock(lastOverflowBlock.number, lastOverflowBlock.block);
+        writeBucket(bucketNumber, bucket);
+        Map<Integer, Block<T>> dirtyOverflowBlocks = new HashMap<>();
+        if (lastOverflowBlock != null) {
+            dirtyOverflowBlocks.put(lastOverflowBlock.number, lastOverflowBlock.block);
         }
-        for (OverflowBlockAndNumber overflowBlockAndNumber : overflowBlocks) {
-            overflowHeap.writeBlock(overflowBlockAndNumber.number, overflowBlockAndNumber.block);
+        for (OverflowBlockAndNumber<T> overflowBlockAndNumber : overflowBlocks) {
+            dirtyOverflowBlocks.put(overflowBlockAndNumber.number, overflowBlockAndNumber.block);
         }
+        overflowHeap.writeBlocks(dirtyOverflowBlocks);
     }
 
     private void appendNewOverflowBlocks(int howManyBlocksToAdd, Bucket<T> bucket,
-            List<OverflowBlockAndNumber> overflowBlocks, OverflowBlockAndNumber lastOverflowBlock) {
+            List<OverflowBlockAndNumber<T>> overflowBlocks, OverflowBlockAndNumber<T> lastOverflowBlock) {
         int numberOfBlocksAtTheEnd = 0;
         int indexOfNewBlock = overflowHeap.getNumberForNewBlock();
         for (int i = 0; i < howManyBlocksToAdd; i++) {
             OverflowBlock<T> newOverflowBlock = new OverflowBlock<>(overflowHeap.getBlockingFactor(),
-                    overflowHeap.getBlockSize(), recordClass);
+                    overflowHeap.getBlockSize(), overflowHeap.getRecordSize(), recordFactory);
             int overflowBlockNumber = overflowHeap.getEmptyBlock();
             if (overflowBlockNumber == -1) {
                 overflowBlockNumber = indexOfNewBlock + numberOfBlocksAtTheEnd;
                 numberOfBlocksAtTheEnd++;
-            } 
+            } else {
+                // Recorded as used before anything links to it. A linked block still recorded as free
+                // would be handed out a second time after a restart.
+                overflowHeap.manageUsedBlock(overflowBlockNumber);
+            }
 
             if (i == 0) {
                 if (lastOverflowBlock == null) {
@@ -108,28 +135,70 @@ public class BucketHeap<T extends StorableRecord> {
             }
 
             bucket.incrementOverflowBlockCountBy(1);
-            overflowBlocks.add(new OverflowBlockAndNumber(newOverflowBlock, overflowBlockNumber));
+            overflowBlocks.add(new OverflowBlockAndNumber<>(newOverflowBlock, overflowBlockNumber));
         }
 
     }
 
-    public record OverflowBlockAndNumber(OverflowBlock block, int number) {
+    // The listener hears about the change before the bucket reaches the file, so a header that keeps
+    // these counts can mark itself stale first and a crash in between never leaves it looking clean.
+    public void writeBucket(int bucketNumber, Bucket<T> bucket) {
+        if (bucketChangeListener != null) {
+            bucketChangeListener.bucketChanged(bucket.getStoredOverflowBlockCount(), bucket.getStoredTotalRecordCount(),
+                    bucket.getTotalOverflowBlockCount(), bucket.getTotalRecordCount());
+        }
+        mainBucketsHeap.writeBlock(bucketNumber, bucket);
+        bucket.markStored();
+    }
+
+    public void setBucketChangeListener(BucketChangeListener listener) {
+        this.bucketChangeListener = listener;
+    }
+
+    public record OverflowBlockAndNumber<T extends StorableRecord>(OverflowBlock<T> block, int number) {
     }
 
     public BucketHeap(String mainBucketsPath, String overflowBlocksPath, int mainBucketsBlockSize,
             int overflowBlockSize, Class<T> recordClass) {
-        this.recordClass = recordClass;
-        this.mainBucketsHeap = new Heap<>(mainBucketsPath, mainBucketsBlockSize, recordClass, true, 16);
-        this.overflowHeap = new Heap<>(overflowBlocksPath, overflowBlockSize, recordClass, false, 8);
+        this(mainBucketsPath, overflowBlocksPath, mainBucketsBlockSize, overflowBlockSize, recordClass,
+                FileAccessMode.STANDARD);
+    }
+
+    public BucketHeap(String mainBucketsPath, String overflowBlocksPath, int mainBucketsBlockSize,
+            int overflowBlockSize, Class<T> recordClass, FileAccessMode accessMode) {
+        this(mainBucketsPath, overflowBlocksPath, mainBucketsBlockSize, overflowBlockSize,
+                StorableRecord.factoryOf(recordClass), accessMode);
+    }
+
+    public BucketHeap(String mainBucketsPath, String overflowBlocksPath, int mainBucketsBlockSize,
+            int overflowBlockSize, Supplier<T> recordFactory, FileAccessMode accessMode) {
+        this.recordFactory = recordFactory;
+        this.mainBucketsHeap = new Heap<>(mainBucketsPath, mainBucketsBlockSize, recordFactory, true, 16, accessMode);
+        this.overflowHeap = new Heap<>(overflowBlocksPath, overflowBlockSize, recordFactory, false, 8, accessMode);
         this.mainBucketsBlockSize = mainBucketsHeap.getBlockSize();
         this.overflowBlockSize = overflowHeap.getBlockSize();
     }
 
     public BucketHeap(String mainBucketsPath, String mainMetadataPath,
             String overflowBlocksPath, String overflowMetadataPath, Class<T> recordClass) {
-        this.recordClass = recordClass;
-        this.mainBucketsHeap = new Heap<>(mainBucketsPath, mainMetadataPath, recordClass, true, 16);
-        this.overflowHeap = new Heap<>(overflowBlocksPath, overflowMetadataPath, recordClass, false, 8);
+        this(mainBucketsPath, mainMetadataPath, overflowBlocksPath, overflowMetadataPath, recordClass,
+                FileAccessMode.STANDARD);
+    }
+
+    public BucketHeap(String mainBucketsPath, String mainMetadataPath,
+            String overflowBlocksPath, String overflowMetadataPath, Class<T> recordClass,
+            FileAccessMode accessMode) {
+        this(mainBucketsPath, mainMetadataPath, overflowBlocksPath, overflowMetadataPath,
+                StorableRecord.factoryOf(recordClass), accessMode);
+    }
+
+    public BucketHeap(String mainBucketsPath, String mainMetadataPath,
+            String overflowBlocksPath, String overflowMetadataPath, Supplier<T> recordFactory,
+            FileAccessMode accessMode) {
+        this.recordFactory = recordFactory;
+        this.mainBucketsHeap = new Heap<>(mainBucketsPath, mainMetadataPath, recordFactory, true, 16, accessMode);
+        this.overflowHeap = new Heap<>(overflowBlocksPath, overflowMetadataPath, recordFactory, false, 8,
+                accessMode);
         this.mainBucketsBlockSize = mainBucketsHeap.getBlockSize();
         this.overflowBlockSize = overflowHeap.getBlockSize();
     }
@@ -138,14 +207,21 @@ public class BucketHeap<T extends StorableRecord> {
         insertIntoBucket(bucketNumber, Arrays.asList(record));
     }
 
+    // Blocks are pinned one at a time. A record found in a block shared through the pool is copied out
+    // of it; one from a private copy is returned as it is.
     public T get(int bucketNumber, T partialRecord) {
-        Bucket<T> bucket = (Bucket<T>) mainBucketsHeap.readBlock(bucketNumber);
-        T foundRecord = bucket.getRecord(partialRecord);
-        if (foundRecord != null) {
-            return foundRecord;
+        Bucket<T> bucket = mainBucketsHeap.pinBlock(bucketNumber, Bucket::new);
+        int firstOverflowBlock;
+        try {
+            T foundRecord = bucket.getRecord(partialRecord);
+            if (foundRecord != null) {
+                return detach(mainBucketsHeap, foundRecord);
+            }
+            firstOverflowBlock = bucket.getFirstOverflowBlock();
+        } finally {
+            mainBucketsHeap.unpinBlock(bucketNumber, bucket, false);
         }
 
-        int firstOverflowBlock = bucket.getFirstOverflowBlock();
         if (firstOverflowBlock != -1) {
             return searchOverflowChain(firstOverflowBlock, partialRecord);
         }
@@ -153,17 +229,38 @@ public class BucketHeap<T extends StorableRecord> {
         return null;
     }
 
+    private T detach(Heap<T> heap, T record) {
+        if (!heap.sharesPinnedBlocks()) {
+            return record;
+        }
+        T copy = recordFactory.get();
+        copy.FromByteArray(record.ToByteArray());
+        return copy;
+    }
+
     public record BlockAndNumber(Block blockInstance, int blockNumber) {
     }
 
-    @SuppressWarnings("unchecked")
     public boolean delete(int bucketNumber, T partialRecord) {
         if (!mainBucketsHeap.checkIfBlockExists(bucketNumber)) {
             return false;
         }
 
-        Bucket<T> bucket = (Bucket<T>) mainBucketsHeap.readBlock(bucketNumber);
-        List<OverflowBlockAndNumber> overflowBlocks = new ArrayList<>();
+        Bucket<T> bucket = mainBucketsHeap.pinBlock(bucketNumber, Bucket::new);
+        boolean deleted;
+        try {
+            deleted = delete(bucketNumber, bucket, partialRecord);
+        } catch (RuntimeException | Error e) {
+            mainBucketsHeap.unpinBlockAfterFailure(bucketNumber, bucket);
+            throw e;
+        }
+        mainBucketsHeap.unpinBlock(bucketNumber, bucket, false);
+        return deleted;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean delete(int bucketNumber, Bucket<T> bucket, T partialRecord) {
+        List<OverflowBlockAndNumber<T>> overflowBlocks = new ArrayList<>();
         boolean deletionOccurred = false;
 
         if (bucket.delete(partialRecord)) {
@@ -174,12 +271,12 @@ public class BucketHeap<T extends StorableRecord> {
             int previousOverflowBlockNumber = -1;
 
             while (overflowBlockNumber != -1) {
-                OverflowBlock<T> overflowBlock = overflowHeap.readBlock(overflowBlockNumber, OverflowBlock.class);
+                OverflowBlock<T> overflowBlock = overflowHeap.readBlock(overflowBlockNumber, OverflowBlock::new);
 
                 if (overflowBlock.delete(partialRecord)) {
                     deletionOccurred = true;
                     bucket.decrementTotalElementCountBy(1);
-                    overflowBlocks.add(new OverflowBlockAndNumber(overflowBlock, overflowBlockNumber));
+                    overflowBlocks.add(new OverflowBlockAndNumber<>(overflowBlock, overflowBlockNumber));
 
                     if (overflowBlock.isEmpty()) {
                         int nextBlockNum = overflowBlock.getNextOverflowBlock();
@@ -193,7 +290,7 @@ public class BucketHeap<T extends StorableRecord> {
                     break;
                 }
 
-                overflowBlocks.add(new OverflowBlockAndNumber(overflowBlock, overflowBlockNumber));
+                overflowBlocks.add(new OverflowBlockAndNumber<>(overflowBlock, overflowBlockNumber));
                 previousOverflowBlock = overflowBlock;
                 previousOverflowBlockNumber = overflowBlockNumber;
                 overflowBlockNumber = overflowBlock.getNextOverflowBlock();
@@ -207,7 +304,7 @@ public class BucketHeap<T extends StorableRecord> {
             if (needsShuffle) {
                 shuffle(bucket, minRequiredOverflowBlocks, overflowBlocks);
             } else if (!overflowBlocks.isEmpty()) {
-                OverflowBlockAndNumber deletedFrom = overflowBlocks.getLast();
+                OverflowBlockAndNumber<T> deletedFrom = overflowBlocks.getLast();
 
                 if (deletedFrom.block.isEmpty()) {
                     deletedFrom.block.setNextOverflowBlock(-1);
@@ -219,16 +316,16 @@ public class BucketHeap<T extends StorableRecord> {
                 }
             }
 
-            mainBucketsHeap.writeBlock(bucketNumber, bucket);
+            writeBucket(bucketNumber, bucket);
         }
 
         return deletionOccurred;
     }
 
-    private void shuffle(Bucket<T> bucket, int minRequiredOverflowBlocks, List<OverflowBlockAndNumber> overflowBlocks) {
+    private void shuffle(Bucket<T> bucket, int minRequiredOverflowBlocks, List<OverflowBlockAndNumber<T>> overflowBlocks) {
         List<T> allRecords = new ArrayList<T>();
         collectAllRecords(bucket, allRecords, overflowBlocks);
-        List<OverflowBlockAndNumber> freedOverflowBlocks = insertCompactly(bucket, allRecords, overflowBlocks);
+        List<OverflowBlockAndNumber<T>> freedOverflowBlocks = insertCompactly(bucket, allRecords, overflowBlocks);
         if (bucket.getTotalOverflowBlockCount() > 0 && !overflowBlocks.isEmpty()) {
             bucket.setFirstOverflowBlock(overflowBlocks.get(0).number);
         }
@@ -249,20 +346,21 @@ public class BucketHeap<T extends StorableRecord> {
         }
     }
 
-    public List<OverflowBlockAndNumber> insertCompactly(
+    public List<OverflowBlockAndNumber<T>> insertCompactly(
             Bucket<T> bucket,
             List<T> allRecords,
-            List<OverflowBlockAndNumber> overflowBlocks) {
+            List<OverflowBlockAndNumber<T>> overflowBlocks) {
         int currentRecordIndex = 0;
         while (currentRecordIndex < allRecords.size() && !bucket.isFull()) {
             bucket.addRecord(allRecords.get(currentRecordIndex));
             currentRecordIndex++;
         }
 
+        Map<Integer, Block<T>> dirtyOverflowBlocks = new HashMap<>();
         int currentOverflowBlockIndex = 0;
         while (currentRecordIndex < allRecords.size()) {
-            OverflowBlockAndNumber blockEntry = overflowBlocks.get(currentOverflowBlockIndex);
-            OverflowBlock<T> overflowBlock = (OverflowBlock<T>) blockEntry.block;
+            OverflowBlockAndNumber<T> blockEntry = overflowBlocks.get(currentOverflowBlockIndex);
+            OverflowBlock<T> overflowBlock = blockEntry.block;
             int blockNumber = blockEntry.number;
             if (overflowBlock.isFull()) {
                 currentOverflowBlockIndex++;
@@ -281,45 +379,55 @@ public class BucketHeap<T extends StorableRecord> {
                 overflowBlock.setNextOverflowBlock(-1);
             }
 
-            overflowHeap.writeBlock(blockNumber, overflowBlock);
+            dirtyOverflowBlocks.put(blockNumber, overflowBlock);
             bucket.incrementOverflowBlockCountBy(1);
             currentOverflowBlockIndex++;
         }
+        overflowHeap.writeBlocks(dirtyOverflowBlocks);
 
-        List<OverflowBlockAndNumber> freedOverflowBlocks = new ArrayList<>(
+        List<OverflowBlockAndNumber<T>> freedOverflowBlocks = new ArrayList<>(
                 overflowBlocks.subList(currentOverflowBlockIndex, overflowBlocks.size()));
         return freedOverflowBlocks;
     }
 
-    public void clearOverflowChain(List<OverflowBlockAndNumber> overflowBlocks) {
+    public void clearOverflowChain(List<OverflowBlockAndNumber<T>> overflowBlocks) {
+        Map<Integer, Block<T>> freedBlocks = new HashMap<>();
         for (int i = 0; i < overflowBlocks.size(); i++) {
-            OverflowBlockAndNumber blockEntry = overflowBlocks.get(i);
-            OverflowBlock<T> freedOverflowBlock = (OverflowBlock<T>) blockEntry.block;
+            OverflowBlockAndNumber<T> blockEntry = overflowBlocks.get(i);
+            OverflowBlock<T> freedOverflowBlock = blockEntry.block;
             freedOverflowBlock.setNextOverflowBlock(-1);
-            overflowHeap.writeBlock(blockEntry.number, freedOverflowBlock);
+            freedBlocks.put(blockEntry.number, freedOverflowBlock);
+        }
+        overflowHeap.writeBlocks(freedBlocks);
+        for (OverflowBlockAndNumber<T> blockEntry : overflowBlocks) {
             overflowHeap.manageEmptyBlock(blockEntry.number);
         }
     }
 
     private T searchOverflowChain(int firstOverflowBlock, T partialRecord) {
-        OverflowBlock<T> current = overflowHeap.readBlock(firstOverflowBlock, OverflowBlock.class);
-        while (true) {
-            if (current.getRecord(partialRecord) != null) {
-                return current.getRecord(partialRecord);
-            }
-            if (current.getNextOverflowBlock() == -1) {
-                return null;
+        int nextBlockNumber = firstOverflowBlock;
+        while (nextBlockNumber != -1) {
+            int blockNumber = nextBlockNumber;
+            OverflowBlock<T> current = overflowHeap.pinBlock(blockNumber, OverflowBlock::new);
+            try {
+                T foundRecord = current.getRecord(partialRecord);
+                if (foundRecord != null) {
+                    return detach(overflowHeap, foundRecord);
+                }
+                nextBlockNumber = current.getNextOverflowBlock();
+            } finally {
+                overflowHeap.unpinBlock(blockNumber, current, false);
             }
-            current = overflowHeap.readBlock(current.getNextOverflowBlock(), OverflowBlock.class);
         }
+        return null;
     }
 
     public void collectAllRecords(Bucket<T> bucket, List<T> records,
-            List<OverflowBlockAndNumber> visitedOverflowBlocks) {
+            List<OverflowBlockAndNumber<T>> visitedOverflowBlocks) {
         records.addAll(bucket.getAllValidRecords());
         bucket.deleteAllRecords();
 
-        for (OverflowBlockAndNumber overflowBlock : visitedOverflowBlocks) {
+        for (OverflowBlockAndNumber<T> overflowBlock : visitedOverflowBlocks) {
             records.addAll(overflowBlock.block.getAllValidRecords());
             bucket.decrementTotalElementCountBy(overflowBlock.block.deleteAllRecords());
             bucket.decrementOverflowBlockCountBy(1);
@@ -329,14 +437,14 @@ public class BucketHeap<T extends StorableRecord> {
         if (visitedOverflowBlocks.isEmpty()) {
             overflowBlockNumber = bucket.getFirstOverflowBlock();
         } else {
-            overflowBlockNumber = ((OverflowBlock<T>) visitedOverflowBlocks.getLast().block)
+            overflowBlockNumber = visitedOverflowBlocks.getLast().block
                     .getNextOverflowBlock();
         }
 
         while (overflowBlockNumber != -1) {
-            OverflowBlock<T> overflowBlock = overflowHeap.readBlock(overflowBlockNumber, OverflowBlock.class);
+            OverflowBlock<T> overflowBlock = overflowHeap.readBlock(overflowBlockNumber, OverflowBlock::new);
             records.addAll(overflowBlock.getAllValidRecords());
-            visitedOverflowBlocks.add(new OverflowBlockAndNumber(overflowBlock, overflowBlockNumber));
+            visitedOverflowBlocks.add(new OverflowBlockAndNumber<>(overflowBlock, overflowBlockNumber));
 
             bucket.decrementTotalElementCountBy(overflowBlock.deleteAllRecords());
             bucket.decrementOverflowBlockCountBy(1);
@@ -363,6 +471,88 @@ public class BucketHeap<T extends StorableRecord> {
         return overflowBlockSize;
     }
 
+    public void enableBufferPools(int mainBucketsCapacity, int overflowBlocksCapacity) {
+        mainBucketsHeap.enableBufferPool(mainBucketsCapacity);
+        overflowHeap.enableBufferPool(overflowBlocksCapacity);
+    }
+
+    public void setDurability(DurabilityMode mode) {
+        mainBucketsHeap.setDurability(mode);
+        overflowHeap.setDurability(mode);
+    }
+
+    public void setDurability(DurabilityMode mode, long flushIntervalMillis) {
+        mainBucketsHeap.setDurability(mode, flushIntervalMillis);
+        overflowHeap.setDurability(mode, flushIntervalMillis);
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return mainBucketsHeap.getDurabilityMode();
+    }
+
+    // The bucket operations do not commit on their own, since one LinearHash insert or delete can
+    // span several of them. The owner calls this once its operation is complete.
+    public void commit() {
+        if (writeAheadLog != null) {
+            writeAheadLog.commit();
+            return;
+        }
+        mainBucketsHeap.commit();
+        overflowHeap.commit();
+    }
+
+    public void sync() {
+        mainBucketsHeap.sync();
+        overflowHeap.sync();
+    }
+
+    public void enablePreallocation(ExtentPolicy policy) {
+        mainBucketsHeap.enablePreallocation(policy);
+        overflowHeap.enablePreallocation(policy);
+    }
+
+    public boolean enableWriteAheadLog(String pathToLog) {
+        return enableWriteAheadLog(pathToLog, WriteAheadLog.DEFAULT_GROUP_COMMIT_OPERATIONS);
+    }
+
+    // Both heaps log into one file, so everything written between two commits (a bucket, its overflow
+    // chain and freed overflow blocks) reaches the data files together or not at all. Returns true if
+    // an unclean shutdown was recovered.
+    public boolean enableWriteAheadLog(String pathToLog, int groupCommitOperations) {
+        if (writeAheadLog != null) {
+            throw new Error("Write-ahead log is already enabled");
+        }
+        writeAheadLog = new WriteAheadLog(pathToLog, groupCommitOperations, WriteAheadLog.DEFAULT_CHECKPOINT_BYTES);
+        mainBucketsHeap.attachWriteAheadLog(writeAheadLog, 0);
+        overflowHeap.attachWriteAheadLog(writeAheadLog, 1);
+        boolean recovered = writeAheadLog.recover();
+        if (recovered) {
+            overflowHeap.rebuildFreeSpaceMap(OverflowBlock::new);
+        }
+        return recovered;
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    public void setLazyDecoding(boolean lazyDecoding) {
+        mainBucketsHeap.setLazyDecoding(lazyDecoding);
+        overflowHeap.setLazyDecoding(lazyDecoding);
+    }
+
+    // Every live record sits either in a primary bucket or in a non-free overflow block, so the two
+    // heap scans cover the whole file without walking the chains.
+    public Stream<T> scan() {
+        return Stream.concat(mainBucketsHeap.scan(Bucket::new), overflowHeap.scan(OverflowBlock::new));
+    }
+
+    // Same coverage as scan(), through one reused view.
+    public <V extends RecordView<T>> void forEachView(V view, Consumer<? super V> action) {
+        mainBucketsHeap.forEachView(Bucket::new, view, action);
+        overflowHeap.forEachView(OverflowBlock::new, view, action);
+    }
+
     public Heap<T> getMainBucketsHeap() {
         return mainBucketsHeap;
     }
@@ -372,6 +562,11 @@ public class BucketHeap<T extends StorableRecord> {
     }
 
     public void close() {
+        if (writeAheadLog != null) {
+            mainBucketsHeap.flush();
+            overflowHeap.flush();
+            writeAheadLog.close();
+        }
         if (mainBucketsHeap != null) {
             mainBucketsHeap.close();
         }
@@ -0,0 +1,33 @@
+package LinearHashing;
+
+// Bounds the lookup cost: splits while any bucket has more than maxChainLength overflow blocks.
+// Linear hashing splits buckets in order, not the long one, so with badly skewed keys this can add
+// many buckets before the long chain is reached. Merges when no bucket has a chain and the primary
+// load with one bucket fewer stays below mergeLoad.
+public class ChainLengthSplitPolicy implements SplitPolicy {
+
+    private final int maxChainLength;
+    private final double mergeLoad;
+
+    public ChainLengthSplitPolicy(int maxChainLength, double mergeLoad) {
+        if (maxChainLength < 0 || mergeLoad <= 0 || mergeLoad > 1) {
+            throw new Error("Invalid chain length policy");
+        }
+        this.maxChainLength = maxChainLength;
+        this.mergeLoad = mergeLoad;
+    }
+
+    @Override
+    public boolean shouldSplit(LinearHash<?> file) {
+        return file.getLongestChainLength() > maxChainLength;
+    }
+
+    @Override
+    public boolean shouldMerge(LinearHash<?> file) {
+        if (file.getLongestChainLength() > 0) {
+            return false;
+        }
+        double slotsAfterMerge = (double) (file.getTotalPrimaryBuckets() - 1) * file.getBucketCapacity();
+        return file.getRecordCount() / slotsAfterMerge < mergeLoad;
+    }
+}
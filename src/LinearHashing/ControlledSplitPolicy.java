@@ -0,0 +1,29 @@
+package LinearHashing;
+
+// Controlled splitting on the primary load factor. A split happens once the primary buckets are
+// filled beyond targetLoad. A merge only happens if the load with one bucket fewer would still be
+// below mergeLoad, so a merge can never bring the file back over targetLoad and start a split again.
+public class ControlledSplitPolicy implements SplitPolicy {
+
+    private final double targetLoad;
+    private final double mergeLoad;
+
+    public ControlledSplitPolicy(double targetLoad, double mergeLoad) {
+        if (mergeLoad >= targetLoad) {
+            throw new Error("The merge load must be below the target load");
+        }
+        this.targetLoad = targetLoad;
+        this.mergeLoad = mergeLoad;
+    }
+
+    @Override
+    public boolean shouldSplit(LinearHash<?> file) {
+        return file.getPrimaryLoadFactor() > targetLoad;
+    }
+
+    @Override
+    public boolean shouldMerge(LinearHash<?> file) {
+        double slotsAfterMerge = (double) (file.getTotalPrimaryBuckets() - 1) * file.getBucketCapacity();
+        return file.getRecordCount() / slotsAfterMerge < mergeLoad;
+    }
+}
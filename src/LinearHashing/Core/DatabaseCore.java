@@ -1,6 +1,7 @@
 package LinearHashing.Core;
 
 import LinearHashing.*;
+import UnsortedFile.FileAccessMode;
 
 public class DatabaseCore {
     
@@ -12,9 +13,9 @@ public class DatabaseCore {
                        String pcrMain, String pcrOverflow,
                        int pcrMainBlockSize, int pcrOverflowBlockSize) {
         this.personFile = new LinearHash<>(personsMain, personsOverflow, 
-            personsMainBlockSize, personsOverflowBlockSize, Person.class);
+            personsMainBlockSize, personsOverflowBlockSize, Person::new, FileAccessMode.STANDARD);
         this.indexFile = new LinearHash<>(pcrMain, pcrOverflow,
-            pcrMainBlockSize, pcrOverflowBlockSize, PCRIndex.class);
+            pcrMainBlockSize, pcrOverflowBlockSize, PCRIndex::new, FileAccessMode.STANDARD);
     }
 
     public DatabaseCore(String personsMain, String personsMainMeta,
@@ -22,9 +23,9 @@ public class DatabaseCore {
                        String pcrMain, String pcrMainMeta,
                        String pcrOverflow, String pcrOverflowMeta) {
         this.personFile = new LinearHash<>(personsMain, personsMainMeta,
-            personsOverflow, personsOverflowMeta, Person.class);
+            personsOverflow, personsOverflowMeta, Person::new, FileAccessMode.STANDARD);
         this.indexFile = new LinearHash<>(pcrMain, pcrMainMeta,
-            pcrOverflow, pcrOverflowMeta, PCRIndex.class);
+            pcrOverflow, pcrOverflowMeta, PCRIndex::new, FileAccessMode.STANDARD);
     }
 
     public boolean insertPCR(PCR test) {
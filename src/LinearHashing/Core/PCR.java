@@ -1,12 +1,8 @@
 package LinearHashing.Core;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 
+import UnsortedFile.RecordCodec;
 import UnsortedFile.StorableRecord;
 
 public class PCR implements StorableRecord {
@@ -37,50 +33,57 @@ public class PCR implements StorableRecord {
     }
 
     public byte[] ToByteArray() {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
-        try {
-            dataOutputStream.writeLong(dateTime);
-            byte[] patientNumberBytes = (patientNumber != null ? patientNumber : "").getBytes(StandardCharsets.US_ASCII);
-            int patientNumberLength = Math.min(patientNumberBytes.length, 10);
-            byte[] patientNumberFixed = new byte[10];
-            System.arraycopy(patientNumberBytes, 0, patientNumberFixed, 0, patientNumberLength);
-            dataOutputStream.write(patientNumberFixed);
-            dataOutputStream.writeByte(patientNumberLength);
-            dataOutputStream.writeInt(testCode);
-            dataOutputStream.writeBoolean(testResult);
-            dataOutputStream.writeDouble(testValue);
-            byte[] noteBytes = (note != null ? note : "").getBytes(StandardCharsets.US_ASCII);
-            int noteLength = Math.min(noteBytes.length, 11);
-            byte[] noteFixed = new byte[11];
-            System.arraycopy(noteBytes, 0, noteFixed, 0, noteLength);
-            dataOutputStream.write(noteFixed);
-            dataOutputStream.writeByte(noteLength);
-            return byteArrayOutputStream.toByteArray();
-        } catch (Exception e) {
-            throw new IllegalStateException("Error during conversion to byte array.");
-        }
+        ByteBuffer buffer = ByteBuffer.allocate(sizeInBytes);
+        writeTo(buffer);
+        return buffer.array();
     }
 
     public void FromByteArray(byte[] inputArray) {
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(inputArray);
-        DataInputStream dataInputStream = new DataInputStream(byteArrayInputStream);
-        try {
-            this.dateTime = dataInputStream.readLong();
-            byte[] patientNumberBytes = new byte[10];
-            dataInputStream.readFully(patientNumberBytes);
-            int patientNumberLength = dataInputStream.readByte();
-            this.patientNumber = new String(patientNumberBytes, 0, patientNumberLength, StandardCharsets.US_ASCII);
-            this.testCode = dataInputStream.readInt();
-            this.testResult = dataInputStream.readBoolean();
-            this.testValue = dataInputStream.readDouble();
-            byte[] noteBytes = new byte[11];
-            dataInputStream.readFully(noteBytes);
-            int noteLength = dataInputStream.readByte();
-            this.note = new String(noteBytes, 0, noteLength, StandardCharsets.US_ASCII);
-        } catch (IOException e) {
-            throw new IllegalStateException("Error during conversion from byte array.");
-        }
+        readFrom(ByteBuffer.wrap(inputArray));
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putLong(dateTime);
+        RecordCodec.putFixedAscii(buffer, patientNumber, 10);
+        buffer.putInt(testCode);
+        buffer.put(testResult ? (byte) 1 : (byte) 0);
+        buffer.putDouble(testValue);
+        RecordCodec.putFixedAscii(buffer, note, 11);
+    }
+
+    @Override
+    public void readFrom(ByteBuffer buffer) {
+        this.dateTime = buffer.getLong();
+        this.patientNumber = RecordCodec.getFixedAscii(buffer, 10);
+        this.testCode = buffer.getInt();
+        this.testResult = buffer.get() != 0;
+        this.testValue = buffer.getDouble();
+        this.note = RecordCodec.getFixedAscii(buffer, 11);
     }
-}
 
+    @Override
+    public int encodedSize() {
+        return 8 + RecordCodec.shortAsciiSize(patientNumber, 10) + 4 + 1 + 8 + RecordCodec.shortAsciiSize(note, 11);
+    }
+
+    @Override
+    public void writeCompactTo(ByteBuffer buffer) {
+        buffer.putLong(dateTime);
+        RecordCodec.putShortAscii(buffer, patientNumber, 10);
+        buffer.putInt(testCode);
+        buffer.put(testResult ? (byte) 1 : (byte) 0);
+        buffer.putDouble(testValue);
+        RecordCodec.putShortAscii(buffer, note, 11);
+    }
+
+    @Override
+    public void readCompactFrom(ByteBuffer buffer) {
+        this.dateTime = buffer.getLong();
+        this.patientNumber = RecordCodec.getShortAscii(buffer);
+        this.testCode = buffer.getInt();
+        this.testResult = buffer.get() != 0;
+        this.testValue = buffer.getDouble();
+        this.note = RecordCodec.getShortAscii(buffer);
+    }
+}
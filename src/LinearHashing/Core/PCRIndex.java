@@ -1,9 +1,9 @@
 package LinearHashing.Core;
 
-import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 
 import LinearHashing.HashableStorableRecord;
+import UnsortedFile.RecordCodec;
 import UnsortedFile.StorableRecord;
 
 public class PCRIndex implements HashableStorableRecord {
@@ -34,33 +34,25 @@ public class PCRIndex implements HashableStorableRecord {
 
     @Override
     public byte[] ToByteArray() {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
-        try {
-            dataOutputStream.writeInt(testId);
-            byte[] strBytes = (patientNumber).getBytes(StandardCharsets.US_ASCII);
-            int length = Math.min(strBytes.length, 10);
-            byte[] fixed = new byte[10];
-            System.arraycopy(strBytes, 0, fixed, 0, length);
-            dataOutputStream.write(fixed);
-            dataOutputStream.writeByte(length);
-            
-            byte[] result = byteArrayOutputStream.toByteArray();
-            if (result.length != sizeInBytes()) throw new RuntimeException("Size mismatch");
-            return result;
-        } catch (IOException e) { throw new RuntimeException(e); }
+        ByteBuffer buffer = ByteBuffer.allocate(sizeInBytes());
+        writeTo(buffer);
+        return buffer.array();
     }
 
     @Override
     public void FromByteArray(byte[] array) {
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(array);
-        DataInputStream dataInputStream = new DataInputStream(byteArrayInputStream);
-        try {
-            this.testId = dataInputStream.readInt();
-            byte[] strBytes = new byte[10];
-            dataInputStream.readFully(strBytes);
-            int length = dataInputStream.readByte();
-            this.patientNumber = new String(strBytes, 0, length, StandardCharsets.US_ASCII);
-        } catch (IOException e) { throw new RuntimeException(e); }
+        readFrom(ByteBuffer.wrap(array));
     }
-}
\ No newline at end of file
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(testId);
+        RecordCodec.putFixedAscii(buffer, patientNumber, 10);
+    }
+
+    @Override
+    public void readFrom(ByteBuffer buffer) {
+        this.testId = buffer.getInt();
+        this.patientNumber = RecordCodec.getFixedAscii(buffer, 10);
+    }
+}
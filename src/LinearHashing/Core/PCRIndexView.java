@@ -0,0 +1,40 @@
+package LinearHashing.Core;
+
+import java.nio.ByteBuffer;
+
+import UnsortedFile.RecordCodec;
+import UnsortedFile.RecordView;
+
+// Reads PCRIndex fields in place, in the fixed layout written by PCRIndex.writeTo.
+public class PCRIndexView implements RecordView<PCRIndex> {
+    private static final int TEST_ID = 0;
+    private static final int PATIENT_NUMBER = 4;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    @Override
+    public void wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    public int getTestId() {
+        return buffer.getInt(offset + TEST_ID);
+    }
+
+    public String getPatientNumber() {
+        return RecordCodec.getFixedAscii(buffer, offset + PATIENT_NUMBER, 10);
+    }
+
+    public boolean patientNumberEquals(String patientNumber) {
+        return RecordCodec.fixedAsciiEquals(buffer, offset + PATIENT_NUMBER, 10, patientNumber);
+    }
+
+    @Override
+    public PCRIndex materialize() {
+        PCRIndex index = new PCRIndex();
+        index.readFrom(buffer.duplicate().position(offset));
+        return index;
+    }
+}
@@ -0,0 +1,56 @@
+package LinearHashing.Core;
+
+import java.nio.ByteBuffer;
+
+import UnsortedFile.RecordCodec;
+import UnsortedFile.RecordView;
+
+// Reads PCR fields in place, in the fixed layout written by PCR.writeTo.
+public class PCRView implements RecordView<PCR> {
+    static final int DATE_TIME = 0;
+    static final int PATIENT_NUMBER = 8;
+    static final int TEST_CODE = PATIENT_NUMBER + 11;
+    static final int TEST_RESULT = TEST_CODE + 4;
+    static final int TEST_VALUE = TEST_RESULT + 1;
+    static final int NOTE = TEST_VALUE + 8;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    @Override
+    public void wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    public long getDateTime() {
+        return buffer.getLong(offset + DATE_TIME);
+    }
+
+    public String getPatientNumber() {
+        return RecordCodec.getFixedAscii(buffer, offset + PATIENT_NUMBER, 10);
+    }
+
+    public int getTestCode() {
+        return buffer.getInt(offset + TEST_CODE);
+    }
+
+    public boolean getTestResult() {
+        return buffer.get(offset + TEST_RESULT) != 0;
+    }
+
+    public double getTestValue() {
+        return buffer.getDouble(offset + TEST_VALUE);
+    }
+
+    public String getNote() {
+        return RecordCodec.getFixedAscii(buffer, offset + NOTE, 11);
+    }
+
+    @Override
+    public PCR materialize() {
+        PCR pcr = new PCR();
+        pcr.readFrom(buffer.duplicate().position(offset));
+        return pcr;
+    }
+}
@@ -1,12 +1,8 @@
 package LinearHashing.Core;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import LinearHashing.HashableStorableRecord;
+import UnsortedFile.RecordCodec;
 import UnsortedFile.StorableRecord;
 
 public class Person implements HashableStorableRecord {
@@ -61,88 +57,90 @@ public class Person implements HashableStorableRecord {
 
     @Override
     public byte[] ToByteArray() {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
-        try {
-            dataOutputStream.writeLong(birthdate);
-
-            byte[] nameBytes = (name != null ? name : "").getBytes(StandardCharsets.US_ASCII);
-            int nameLength = Math.min(nameBytes.length, 15);
-            byte[] nameFixed = new byte[15];
-            System.arraycopy(nameBytes, 0, nameFixed, 0, nameLength);
-            dataOutputStream.write(nameFixed);
-            dataOutputStream.writeByte(nameLength);
-
-            byte[] surnameBytes = (surname != null ? surname : "").getBytes(StandardCharsets.US_ASCII);
-            int surnameLength = Math.min(surnameBytes.length, 14);
-            byte[] surnameFixed = new byte[14];
-            System.arraycopy(surnameBytes, 0, surnameFixed, 0, surnameLength);
-            dataOutputStream.write(surnameFixed);
-            dataOutputStream.writeByte(surnameLength);
-
-            byte[] idBytes = (id).getBytes(StandardCharsets.US_ASCII);
-            int idLength = Math.min(idBytes.length, 10);
-            byte[] idFixed = new byte[10];
-            System.arraycopy(idBytes, 0, idFixed, 0, idLength);
-            dataOutputStream.write(idFixed);
-            dataOutputStream.writeByte(idLength);
-
-            dataOutputStream.writeInt(validTestsCount);
-
-            byte[] emptyPCR = new byte[44];
-
-            for (int i = 0; i < 6; i++) {
-                if (i < validTestsCount && pcrTests[i] != null) {
-                    dataOutputStream.write(pcrTests[i].ToByteArray());
-                } else {
-                    dataOutputStream.write(emptyPCR);
-                }
+        ByteBuffer buffer = ByteBuffer.allocate(sizeInBytes);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    @Override
+    public void FromByteArray(byte[] inputArray) {
+        readFrom(ByteBuffer.wrap(inputArray));
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putLong(birthdate);
+        RecordCodec.putFixedAscii(buffer, name, 15);
+        RecordCodec.putFixedAscii(buffer, surname, 14);
+        RecordCodec.putFixedAscii(buffer, id, 10);
+        buffer.putInt(validTestsCount);
+
+        for (int i = 0; i < 6; i++) {
+            if (i < validTestsCount && pcrTests[i] != null) {
+                pcrTests[i].writeTo(buffer);
+            } else {
+                RecordCodec.putZeros(buffer, PCR.sizeInBytes);
+            }
+        }
+    }
+
+    @Override
+    public void readFrom(ByteBuffer buffer) {
+        this.birthdate = buffer.getLong();
+        this.name = RecordCodec.getFixedAscii(buffer, 15);
+        this.surname = RecordCodec.getFixedAscii(buffer, 14);
+        this.id = RecordCodec.getFixedAscii(buffer, 10);
+        this.validTestsCount = buffer.getInt();
+
+        for (int i = 0; i < 6; i++) {
+            if (i < validTestsCount) {
+                PCR p = new PCR();
+                p.readFrom(buffer);
+                pcrTests[i] = p;
+            } else {
+                buffer.position(buffer.position() + PCR.sizeInBytes);
+                pcrTests[i] = new PCR();
             }
+        }
+    }
 
-            return byteArrayOutputStream.toByteArray();
-        } catch (Exception e) {
-            throw new IllegalStateException("Error during conversion to byte array.", e);
+    // Compact form for slotted pages: length-prefixed strings and only the tests actually held.
+    @Override
+    public int encodedSize() {
+        int size = 8 + RecordCodec.shortAsciiSize(name, 15) + RecordCodec.shortAsciiSize(surname, 14)
+                + RecordCodec.shortAsciiSize(id, 10) + 1;
+        for (int i = 0; i < validTestsCount; i++) {
+            size += pcrTests[i].encodedSize();
         }
+        return size;
     }
 
     @Override
-    public void FromByteArray(byte[] inputArray) {
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(inputArray);
-        DataInputStream dataInputStream = new DataInputStream(byteArrayInputStream);
-        try {
-            this.birthdate = dataInputStream.readLong();
-
-            byte[] nameBytes = new byte[15];
-            dataInputStream.readFully(nameBytes);
-            int nameLength = dataInputStream.readByte();
-            this.name = new String(nameBytes, 0, nameLength, StandardCharsets.US_ASCII);
-
-            byte[] surnameBytes = new byte[14];
-            dataInputStream.readFully(surnameBytes);
-            int surnameLength = dataInputStream.readByte();
-            this.surname = new String(surnameBytes, 0, surnameLength, StandardCharsets.US_ASCII);
-
-            byte[] idBytes = new byte[10];
-            dataInputStream.readFully(idBytes);
-            int idLength = dataInputStream.readByte();
-            this.id = new String(idBytes, 0, idLength, StandardCharsets.US_ASCII);
-
-            this.validTestsCount = dataInputStream.readInt();
-
-            for (int i = 0; i < 6; i++) {
-                byte[] pcrBytes = new byte[44];
-                dataInputStream.readFully(pcrBytes);
-
-                if (i < validTestsCount) {
-                    PCR p = new PCR();
-                    p.FromByteArray(pcrBytes);
-                    pcrTests[i] = p;
-                } else {
-                    pcrTests[i] = new PCR();
-                }
+    public void writeCompactTo(ByteBuffer buffer) {
+        buffer.putLong(birthdate);
+        RecordCodec.putShortAscii(buffer, name, 15);
+        RecordCodec.putShortAscii(buffer, surname, 14);
+        RecordCodec.putShortAscii(buffer, id, 10);
+        buffer.put((byte) validTestsCount);
+        for (int i = 0; i < validTestsCount; i++) {
+            pcrTests[i].writeCompactTo(buffer);
+        }
+    }
+
+    @Override
+    public void readCompactFrom(ByteBuffer buffer) {
+        this.birthdate = buffer.getLong();
+        this.name = RecordCodec.getShortAscii(buffer);
+        this.surname = RecordCodec.getShortAscii(buffer);
+        this.id = RecordCodec.getShortAscii(buffer);
+        this.validTestsCount = buffer.get();
+
+        for (int i = 0; i < 6; i++) {
+            PCR p = new PCR();
+            if (i < validTestsCount) {
+                p.readCompactFrom(buffer);
             }
-        } catch (IOException e) {
-            throw new IllegalStateException("Error during conversion from byte array.", e);
+            pcrTests[i] = p;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,82 @@
+package LinearHashing.Core;
+
+import java.nio.ByteBuffer;
+
+import UnsortedFile.RecordCodec;
+import UnsortedFile.RecordView;
+
+// Reads Person fields in place, in the fixed layout written by Person.writeTo.
+public class PersonView implements RecordView<Person> {
+    private static final int BIRTHDATE = 0;
+    private static final int NAME = 8;
+    private static final int SURNAME = NAME + 16;
+    private static final int ID = SURNAME + 15;
+    private static final int VALID_TESTS_COUNT = ID + 11;
+    private static final int TESTS = VALID_TESTS_COUNT + 4;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    @Override
+    public void wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    public long getBirthdate() {
+        return buffer.getLong(offset + BIRTHDATE);
+    }
+
+    public String getName() {
+        return RecordCodec.getFixedAscii(buffer, offset + NAME, 15);
+    }
+
+    public String getSurname() {
+        return RecordCodec.getFixedAscii(buffer, offset + SURNAME, 14);
+    }
+
+    public String getId() {
+        return RecordCodec.getFixedAscii(buffer, offset + ID, 10);
+    }
+
+    public boolean idEquals(String id) {
+        return RecordCodec.fixedAsciiEquals(buffer, offset + ID, 10, id);
+    }
+
+    public int getValidTestsCount() {
+        return buffer.getInt(offset + VALID_TESTS_COUNT);
+    }
+
+    // Tests are read in place as well; index must be below getValidTestsCount().
+    public long getTestDateTime(int index) {
+        return buffer.getLong(testOffset(index) + PCRView.DATE_TIME);
+    }
+
+    public int getTestCode(int index) {
+        return buffer.getInt(testOffset(index) + PCRView.TEST_CODE);
+    }
+
+    public boolean getTestResult(int index) {
+        return buffer.get(testOffset(index) + PCRView.TEST_RESULT) != 0;
+    }
+
+    public double getTestValue(int index) {
+        return buffer.getDouble(testOffset(index) + PCRView.TEST_VALUE);
+    }
+
+    public PCRView getTest(int index, PCRView view) {
+        view.wrap(buffer, testOffset(index));
+        return view;
+    }
+
+    @Override
+    public Person materialize() {
+        Person person = new Person();
+        person.readFrom(buffer.duplicate().position(offset));
+        return person;
+    }
+
+    private int testOffset(int index) {
+        return offset + TESTS + index * PCR.sizeInBytes;
+    }
+}
@@ -340,31 +340,7 @@ public class UIController {
         List<PersonDTO> result = new ArrayList<>();
         if (database == null) return result;
         
-        LinearHash<Person> personFile = database.getPersonFile();
-        BucketHeap<Person> bucketHeap = personFile.getBucketHeap();
-        int totalBuckets = personFile.getTotalPrimaryBuckets();
-        
-        for (int i = 0; i < totalBuckets; i++) {
-            try {
-                Bucket<Person> bucket = (Bucket<Person>) bucketHeap.getMainBucketsHeap().readBlock(i);
-                for (Person p : bucket.getAllValidRecords()) {
-                    result.add(new PersonDTO(p));
-                }
-                
-                // Read overflow chain
-                int overflowNum = bucket.getFirstOverflowBlock();
-                while (overflowNum != -1) {
-                    OverflowBlock<Person> overflow = bucketHeap.getOverflowHeap()
-                        .readBlock(overflowNum, OverflowBlock.class);
-                    for (Person p : overflow.getAllValidRecords()) {
-                        result.add(new PersonDTO(p));
-                    }
-                    overflowNum = overflow.getNextOverflowBlock();
-                }
-            } catch (Exception e) {
-                // Skip invalid blocks
-            }
-        }
+        database.getPersonFile().scan().forEach(p -> result.add(new PersonDTO(p)));
         
         return result;
     }
@@ -2,43 +2,109 @@ package LinearHashing;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import LinearHashing.BucketHeap.OverflowBlockAndNumber;
+import UnsortedFile.DurabilityMode;
+import UnsortedFile.ExtentPolicy;
+import UnsortedFile.FileAccessMode;
+import UnsortedFile.RecordView;
+import UnsortedFile.StorableRecord;
+import UnsortedFile.WriteAheadLog;
 
 public class LinearHash<T extends HashableStorableRecord> {
 
-    private static final int M = 2;
-    private static final double SPLIT_THRESHOLD = 0.8;
-    private static final double MERGE_THRESHOLD = 0.3;
+    public static final int DEFAULT_INITIAL_BUCKET_COUNT = 2;
 
     private BucketHeap<T> bucketHeap;
+    private SplitPolicy splitPolicy = OverflowRatioSplitPolicy.DEFAULT;
+
+    // M: the number of primary buckets at level 0. Stored in the header, since addresses depend on it.
+    private int M;
 
     private int level;
     private int splitPointer;
     private int totalPrimaryBuckets;
 
-    private int debugInfoTotalOverflowBlocks;
+    private LinearHashHeader header;
 
     public LinearHash(String mainBucketsPath, String overflowBlocksPath, int mainBucketsBlockSize,
             int overflowBlockSize, Class<T> recordClass) {
+        this(mainBucketsPath, overflowBlocksPath, mainBucketsBlockSize, overflowBlockSize, recordClass,
+                FileAccessMode.STANDARD);
+    }
+
+    public LinearHash(String mainBucketsPath, String overflowBlocksPath, int mainBucketsBlockSize,
+            int overflowBlockSize, Class<T> recordClass, FileAccessMode accessMode) {
+        this(mainBucketsPath, overflowBlocksPath, mainBucketsBlockSize, overflowBlockSize,
+                StorableRecord.factoryOf(recordClass), accessMode);
+    }
+
+    public LinearHash(String mainBucketsPath, String overflowBlocksPath, int mainBucketsBlockSize,
+            int overflowBlockSize, Supplier<T> recordFactory, FileAccessMode accessMode) {
+        this(mainBucketsPath, overflowBlocksPath, mainBucketsBlockSize, overflowBlockSize, recordFactory, accessMode,
+                DEFAULT_INITIAL_BUCKET_COUNT);
+    }
+
+    public LinearHash(String mainBucketsPath, String overflowBlocksPath, int mainBucketsBlockSize,
+            int overflowBlockSize, Supplier<T> recordFactory, FileAccessMode accessMode, int initialBucketCount) {
+        if (initialBucketCount < 1) {
+            throw new Error("A linear hash file needs at least one initial bucket");
+        }
         this.bucketHeap = new BucketHeap<>(mainBucketsPath, overflowBlocksPath, mainBucketsBlockSize, overflowBlockSize,
-                recordClass);
+                recordFactory, accessMode);
 
+        this.M = initialBucketCount;
         this.level = 0;
         this.splitPointer = 0;
-        this.debugInfoTotalOverflowBlocks = 0;
         this.totalPrimaryBuckets = M;
 
         bucketHeap.getMainBucketsHeap().extendToBlockCount(M);
-        updateDebugInfo();
+        this.header = new LinearHashHeader(LinearHashHeader.pathFor(mainBucketsPath));
+        header.initialBucketCount = M;
+        header.reset(level, splitPointer, totalPrimaryBuckets);
+        header.save();
+        bucketHeap.setBucketChangeListener(header);
     }
 
     public LinearHash(String mainBucketsPath, String mainMetadataPath,
             String overflowBlocksPath, String overflowMetadataPath,
             Class<T> recordClass) {
+        this(mainBucketsPath, mainMetadataPath, overflowBlocksPath, overflowMetadataPath, recordClass,
+                FileAccessMode.STANDARD);
+    }
+
+    public LinearHash(String mainBucketsPath, String mainMetadataPath,
+            String overflowBlocksPath, String overflowMetadataPath,
+            Class<T> recordClass, FileAccessMode accessMode) {
+        this(mainBucketsPath, mainMetadataPath, overflowBlocksPath, overflowMetadataPath,
+                StorableRecord.factoryOf(recordClass), accessMode);
+    }
+
+    public LinearHash(String mainBucketsPath, String mainMetadataPath,
+            String overflowBlocksPath, String overflowMetadataPath,
+            Supplier<T> recordFactory, FileAccessMode accessMode) {
         this.bucketHeap = new BucketHeap<>(mainBucketsPath, mainMetadataPath,
-                overflowBlocksPath, overflowMetadataPath, recordClass);
+                overflowBlocksPath, overflowMetadataPath, recordFactory, accessMode);
+
+        this.header = new LinearHashHeader(LinearHashHeader.pathFor(mainBucketsPath));
+        boolean clean = header.load();
+        this.M = header.initialBucketCount;
+        if (clean && header.totalPrimaryBuckets == bucketHeap.getMainBucketsHeap().getTotalBlockCount()) {
+            this.level = header.level;
+            this.splitPointer = header.splitPointer;
+            this.totalPrimaryBuckets = header.totalPrimaryBuckets;
+        } else {
+            restoreAddressingState();
+        }
+        bucketHeap.setBucketChangeListener(header);
+    }
 
+    // Used when the header is missing or was not saved cleanly: level and splitPointer follow from the
+    // number of primary buckets, and the statistics are summed up from every bucket once.
+    private void restoreAddressingState() {
         this.totalPrimaryBuckets = bucketHeap.getMainBucketsHeap().getTotalBlockCount();
 
         this.level = 0;
@@ -49,8 +115,12 @@ public class LinearHash<T extends HashableStorableRecord> {
         }
         this.splitPointer = totalPrimaryBuckets - (M * (1 << level));
 
-        this.debugInfoTotalOverflowBlocks = 0;
-        updateDebugInfo();
+        header.reset(level, splitPointer, totalPrimaryBuckets);
+        for (int i = 0; i < totalPrimaryBuckets; i++) {
+            Bucket<T> bucket = bucketHeap.getMainBucketsHeap().readBlock(i, Bucket::new);
+            header.addBucket(bucket.getTotalOverflowBlockCount(), bucket.getTotalRecordCount());
+        }
+        header.save();
     }
 
     private int hashU(int key) {
@@ -77,12 +147,11 @@ public class LinearHash<T extends HashableStorableRecord> {
         int bucketAddress = calculateBucketAddress(key);
         // System.out.print("Inserted into bucket: " + bucketAddress + "\n");
         bucketHeap.insertIntoBucket(bucketAddress, record);
-        updateDebugInfo();
 
-        double overflowRatio = calculateOverflowRatio();
-        if (overflowRatio > SPLIT_THRESHOLD) {
+        if (splitPolicy.shouldSplit(this)) {
             performSplit();
         }
+        bucketHeap.commit();
     }
 
     public T get(T partialRecord) {
@@ -97,15 +166,14 @@ public class LinearHash<T extends HashableStorableRecord> {
 
         boolean deleted = bucketHeap.delete(bucketAddress, partialRecord);
         if (deleted) {
-            updateDebugInfo();
             mergeIfNeeded();
+            bucketHeap.commit();
         }
         return deleted;
     }
 
     private void mergeIfNeeded() {
-        double overflowRatio = calculateOverflowRatio();
-        if (overflowRatio < MERGE_THRESHOLD && totalPrimaryBuckets > M) {
+        if (totalPrimaryBuckets > M && splitPolicy.shouldMerge(this)) {
             performMerge();
         }
     }
@@ -117,9 +185,9 @@ public class LinearHash<T extends HashableStorableRecord> {
     }
 
     private void performSplit() {
-        Bucket<T> bucketToSplit = (Bucket<T>) bucketHeap.getMainBucketsHeap().readBlock(splitPointer);
+        Bucket<T> bucketToSplit = bucketHeap.getMainBucketsHeap().readBlock(splitPointer, Bucket::new);
         List<T> allRecords = new ArrayList<>();
-        List<OverflowBlockAndNumber> overflowBlocks = new ArrayList<>();
+        List<OverflowBlockAndNumber<T>> overflowBlocks = new ArrayList<>();
         bucketHeap.collectAllRecords(bucketToSplit, allRecords, overflowBlocks);
 
         int newBucketAddress = splitPointer + (M * (1 << level));
@@ -135,13 +203,13 @@ public class LinearHash<T extends HashableStorableRecord> {
                 recordsForNewBucket.add(record);
             }
         }
-        List<OverflowBlockAndNumber> freedBlocks = bucketHeap.insertCompactly(bucketToSplit, recordsForOldBucket,
+        List<OverflowBlockAndNumber<T>> freedBlocks = bucketHeap.insertCompactly(bucketToSplit, recordsForOldBucket,
                 overflowBlocks);
         if (bucketToSplit.getTotalOverflowBlockCount() > 0 && !overflowBlocks.isEmpty()) {
             bucketToSplit.setFirstOverflowBlock(overflowBlocks.get(0).number());
         }
         bucketHeap.clearOverflowChain(freedBlocks);
-        bucketHeap.getMainBucketsHeap().writeBlock(splitPointer, bucketToSplit);
+        bucketHeap.writeBucket(splitPointer, bucketToSplit);
 
         bucketHeap.insertIntoBucket(newBucketAddress, recordsForNewBucket);
 
@@ -152,7 +220,7 @@ public class LinearHash<T extends HashableStorableRecord> {
         }
         totalPrimaryBuckets++;
         bucketHeap.getMainBucketsHeap().extendToBlockCount(totalPrimaryBuckets);
-        updateDebugInfo();
+        updateHeaderAddressing();
     }
 
     private void performMerge() {
@@ -177,14 +245,14 @@ public class LinearHash<T extends HashableStorableRecord> {
             return;
         }
 
-        Bucket<T> lastBucket = (Bucket<T>) bucketHeap.getMainBucketsHeap().readBlock(a);
+        Bucket<T> lastBucket = bucketHeap.getMainBucketsHeap().readBlock(a, Bucket::new);
         List<T> recordsToMerge = new ArrayList<>();
-        List<OverflowBlockAndNumber> overflowBlocks = new ArrayList<>();
+        List<OverflowBlockAndNumber<T>> overflowBlocks = new ArrayList<>();
         bucketHeap.collectAllRecords(lastBucket, recordsToMerge, overflowBlocks);
         bucketHeap.clearOverflowChain(overflowBlocks);
 
         bucketHeap.insertIntoBucket(b, recordsToMerge);
-        bucketHeap.getMainBucketsHeap().writeBlock(a, lastBucket);
+        bucketHeap.writeBucket(a, lastBucket);
 
         if (splitPointer > 0) {
             splitPointer = b; // S := b
@@ -195,24 +263,69 @@ public class LinearHash<T extends HashableStorableRecord> {
 
         totalPrimaryBuckets--;
         bucketHeap.getMainBucketsHeap().truncateToBlockCount(totalPrimaryBuckets);
-        updateDebugInfo();
+        updateHeaderAddressing();
     }
 
-    private void updateDebugInfo() {
-        int calculatedOverflowBlocks = 0;
-        for (int i = 0; i < totalPrimaryBuckets; i++) {
-            Bucket<T> bucket = (Bucket<T>) bucketHeap.getMainBucketsHeap().readBlock(i);
-            if (bucket != null) {
-                calculatedOverflowBlocks += bucket.getTotalOverflowBlockCount();
-            }
+    private void updateHeaderAddressing() {
+        header.markChanged();
+        header.level = level;
+        header.splitPointer = splitPointer;
+        header.totalPrimaryBuckets = totalPrimaryBuckets;
+    }
+
+    public void setDurability(DurabilityMode mode) {
+        bucketHeap.setDurability(mode);
+    }
+
+    public void setDurability(DurabilityMode mode, long flushIntervalMillis) {
+        bucketHeap.setDurability(mode, flushIntervalMillis);
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return bucketHeap.getDurabilityMode();
+    }
+
+    // The header is saved after the buckets are forced, so a clean header never describes newer data.
+    public void sync() {
+        bucketHeap.sync();
+        header.save();
+    }
+
+    // Must come before enableWriteAheadLog, like on a single heap.
+    public void enablePreallocation(ExtentPolicy policy) {
+        bucketHeap.enablePreallocation(policy);
+    }
+
+    public boolean enableWriteAheadLog(String pathToLog) {
+        return enableWriteAheadLog(pathToLog, WriteAheadLog.DEFAULT_GROUP_COMMIT_OPERATIONS);
+    }
+
+    // Each insert and delete, including the split or merge it triggers, becomes one log frame. A
+    // replay can change the number of primary buckets, so the addressing state is derived again.
+    public boolean enableWriteAheadLog(String pathToLog, int groupCommitOperations) {
+        boolean recovered = bucketHeap.enableWriteAheadLog(pathToLog, groupCommitOperations);
+        if (recovered) {
+            restoreAddressingState();
         }
-        debugInfoTotalOverflowBlocks = calculatedOverflowBlocks;
+        return recovered;
+    }
+
+    public Stream<T> scan() {
+        return bucketHeap.scan();
+    }
+
+    public <V extends RecordView<T>> void forEachView(V view, Consumer<? super V> action) {
+        bucketHeap.forEachView(view, action);
     }
 
     public void close() {
         if (bucketHeap != null) {
             bucketHeap.close();
         }
+        if (header != null) {
+            header.save();
+            header.close();
+        }
     }
 
     public int getLevel() {
@@ -224,17 +337,63 @@ public class LinearHash<T extends HashableStorableRecord> {
     }
 
     public int getDebugInfoTotalOverflowBlocks() {
-        return debugInfoTotalOverflowBlocks;
+        return (int) header.overflowBlockCount;
+    }
+
+    public long getRecordCount() {
+        return header.recordCount;
+    }
+
+    // Number of primary buckets by overflow chain length, up to the longest chain.
+    public long[] getChainLengthHistogram() {
+        return header.getChainLengthHistogram();
     }
 
     public int getTotalPrimaryBuckets() {
         return totalPrimaryBuckets;
     }
 
+    public int getInitialBucketCount() {
+        return M;
+    }
+
     public double getOverflowRatio() {
         return calculateOverflowRatio();
     }
 
+    public int getBucketCapacity() {
+        return bucketHeap.getMainBucketsHeap().getBlockingFactor();
+    }
+
+    public int getOverflowBlockCapacity() {
+        return bucketHeap.getOverflowHeap().getBlockingFactor();
+    }
+
+    public int getLongestChainLength() {
+        return header.getLongestChainLength();
+    }
+
+    // Records per slot over the primary buckets and the overflow blocks in their chains.
+    public double getLoadFactor() {
+        long slots = (long) totalPrimaryBuckets * getBucketCapacity()
+                + header.overflowBlockCount * getOverflowBlockCapacity();
+        return (double) header.recordCount / slots;
+    }
+
+    // Records per primary bucket slot; above 1 some records must live in overflow blocks.
+    public double getPrimaryLoadFactor() {
+        return (double) header.recordCount / ((long) totalPrimaryBuckets * getBucketCapacity());
+    }
+
+    public SplitPolicy getSplitPolicy() {
+        return splitPolicy;
+    }
+
+    // The policy is not stored with the file; a reopened file starts with the default again.
+    public void setSplitPolicy(SplitPolicy splitPolicy) {
+        this.splitPolicy = splitPolicy;
+    }
+
     public BucketHeap<T> getBucketHeap() {
         return bucketHeap;
     }
@@ -489,6 +489,12 @@ public class LinearHashDebugger extends JFrame {
         sb.append("Split Pointer:      ").append(linearHash.getSplitPointer()).append("\n");
         sb.append("Total Primary Buckets: ").append(linearHash.getTotalPrimaryBuckets()).append("\n");
         sb.append("Overflow Ratio:     ").append(String.format("%.4f", linearHash.getOverflowRatio())).append("\n");
+        sb.append("Initial Buckets (M): ").append(linearHash.getInitialBucketCount()).append("\n");
+        sb.append("Split Policy:       ").append(linearHash.getSplitPolicy().getClass().getSimpleName()).append("\n");
+        sb.append("Record Count:       ").append(linearHash.getRecordCount()).append("\n");
+        sb.append("Load Factor:        ").append(String.format("%.4f", linearHash.getLoadFactor())).append("\n");
+        sb.append("Overflow Blocks In Chains: ").append(linearHash.getDebugInfoTotalOverflowBlocks()).append("\n");
+        sb.append("Chain Length Histogram: ").append(java.util.Arrays.toString(linearHash.getChainLengthHistogram())).append("\n");
         sb.append("Main Buckets Block Size: ").append(bucketHeap.getMainBucketsBlockSize()).append(" bytes\n");
         sb.append("Overflow Block Size:     ").append(bucketHeap.getOverflowBlockSize()).append(" bytes\n");
         
@@ -0,0 +1,167 @@
+package LinearHashing;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import UnsortedFile.BinaryFile;
+
+// Addressing state and chain statistics of a linear hash file, kept next to the primary buckets in
+// <main buckets file>.header. Statistics change with every bucket write and are saved on sync() and
+// close(). Before the first change after a save the file is marked dirty, so a run that did not close
+// cleanly is noticed on the next open and the statistics are rebuilt from the buckets.
+class LinearHashHeader implements BucketHeap.BucketChangeListener {
+
+    private static final int MAGIC = 0x4C484832;
+    private static final int CLEAN_OFFSET = 4;
+    private static final int FIXED_SIZE = 41;
+
+    private final BinaryFile file;
+    private boolean dirtyOnDisk;
+
+    // M, the number of buckets at level 0. Files without a header always used two.
+    int initialBucketCount = 2;
+    int level;
+    int splitPointer;
+    int totalPrimaryBuckets;
+    long recordCount;
+    long overflowBlockCount;
+    // Buckets by overflow chain length. Index 0 is not kept: those are all the remaining buckets.
+    private long[] chainLengthCounts = new long[1];
+
+    LinearHashHeader(String pathToFile) {
+        this.file = new BinaryFile(pathToFile);
+    }
+
+    static String pathFor(String mainBucketsPath) {
+        return mainBucketsPath + ".header";
+    }
+
+    // Returns false if there is no header or it was not saved cleanly. The initial bucket count is
+    // taken over in either case, since it never changes after the file is created.
+    boolean load() {
+        if (file.getSize() < FIXED_SIZE) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) file.getSize());
+        file.read(0, buffer);
+        buffer.flip();
+        if (buffer.getInt() != MAGIC) {
+            return false;
+        }
+        boolean clean = buffer.get() == 1;
+        initialBucketCount = buffer.getInt();
+        if (!clean) {
+            return false;
+        }
+        level = buffer.getInt();
+        splitPointer = buffer.getInt();
+        totalPrimaryBuckets = buffer.getInt();
+        recordCount = buffer.getLong();
+        overflowBlockCount = buffer.getLong();
+        int histogramLength = buffer.getInt();
+        if (buffer.remaining() != histogramLength * 8) {
+            return false;
+        }
+        chainLengthCounts = new long[Math.max(1, histogramLength)];
+        for (int i = 0; i < histogramLength; i++) {
+            chainLengthCounts[i] = buffer.getLong();
+        }
+        return true;
+    }
+
+    void reset(int level, int splitPointer, int totalPrimaryBuckets) {
+        this.level = level;
+        this.splitPointer = splitPointer;
+        this.totalPrimaryBuckets = totalPrimaryBuckets;
+        this.recordCount = 0;
+        this.overflowBlockCount = 0;
+        this.chainLengthCounts = new long[1];
+    }
+
+    // The caller adds the buckets it finds; empty chains need no call.
+    void addBucket(int overflowBlocks, int records) {
+        bucketChanged(0, 0, overflowBlocks, records);
+    }
+
+    @Override
+    public void bucketChanged(int oldOverflowBlocks, int oldRecords, int newOverflowBlocks, int newRecords) {
+        if (oldOverflowBlocks == newOverflowBlocks && oldRecords == newRecords) {
+            return;
+        }
+        markChanged();
+        recordCount += newRecords - oldRecords;
+        overflowBlockCount += newOverflowBlocks - oldOverflowBlocks;
+        if (oldOverflowBlocks > 0) {
+            chainLengthCounts[oldOverflowBlocks]--;
+        }
+        if (newOverflowBlocks > 0) {
+            if (newOverflowBlocks >= chainLengthCounts.length) {
+                chainLengthCounts = Arrays.copyOf(chainLengthCounts, newOverflowBlocks + 1);
+            }
+            chainLengthCounts[newOverflowBlocks]++;
+        }
+    }
+
+    // Counts indexed by chain length, up to the longest chain present.
+    long[] getChainLengthHistogram() {
+        int length = chainLengthCounts.length;
+        while (length > 1 && chainLengthCounts[length - 1] == 0) {
+            length--;
+        }
+        long[] histogram = Arrays.copyOf(chainLengthCounts, length);
+        long bucketsWithChains = 0;
+        for (int i = 1; i < length; i++) {
+            bucketsWithChains += histogram[i];
+        }
+        histogram[0] = totalPrimaryBuckets - bucketsWithChains;
+        return histogram;
+    }
+
+    int getLongestChainLength() {
+        for (int length = chainLengthCounts.length - 1; length > 0; length--) {
+            if (chainLengthCounts[length] > 0) {
+                return length;
+            }
+        }
+        return 0;
+    }
+
+    // Forced, so the mark is on disk before any bucket it covers.
+    void markChanged() {
+        if (dirtyOnDisk) {
+            return;
+        }
+        ByteBuffer clean = ByteBuffer.allocate(1);
+        if (file.getSize() > CLEAN_OFFSET) {
+            file.write(CLEAN_OFFSET, clean);
+            file.force();
+        }
+        dirtyOnDisk = true;
+    }
+
+    void save() {
+        int histogramLength = getChainLengthHistogram().length;
+        ByteBuffer buffer = ByteBuffer.allocate(FIXED_SIZE + histogramLength * 8);
+        buffer.putInt(MAGIC);
+        buffer.put((byte) 1);
+        buffer.putInt(initialBucketCount);
+        buffer.putInt(level);
+        buffer.putInt(splitPointer);
+        buffer.putInt(totalPrimaryBuckets);
+        buffer.putLong(recordCount);
+        buffer.putLong(overflowBlockCount);
+        buffer.putInt(histogramLength);
+        for (int i = 0; i < histogramLength; i++) {
+            buffer.putLong(chainLengthCounts[i]);
+        }
+        buffer.flip();
+        file.write(0, buffer);
+        file.truncate(buffer.limit());
+        file.force();
+        dirtyOnDisk = false;
+    }
+
+    void close() {
+        file.close();
+    }
+}
@@ -0,0 +1,239 @@
+package LinearHashing;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import LinearHashing.Core.Person;
+import UnsortedFile.Heap;
+import UnsortedFile.TestReport;
+
+// Checks what a linear hash file leaves behind when a run ends without close(), and how the split
+// policies shape the file. A crash is simulated by dropping the open file without closing it and
+// opening its files again.
+public class LinearHashRecoveryTester {
+
+    private static final String TEST_DIRECTORY = "linearhashrecoverytest";
+    private static final int BLOCK_SIZE = 2048;
+    private static final int OVERFLOW_BLOCK_SIZE = 1024;
+    private static final int TOTAL_PERSONS = 6000;
+
+    private static final TestReport report = new TestReport("LINEAR HASH RECOVERY TESTER");
+
+    public static void main(String[] args) {
+        report.printHeader();
+
+        try {
+            report.cleanDirectory(TEST_DIRECTORY);
+
+            Person[] persons = generatePersons();
+
+            report.runTestMethod("Overflow blocks reused before a crash are not handed out again",
+                    () -> testReusedOverflowBlocksAfterCrash(persons));
+            report.runTestMethod("Write-ahead log replays splits and inserts after a crash",
+                    () -> testWriteAheadLogReplay(persons));
+            report.runTestMethod("Header statistics are rebuilt from the buckets after a crash",
+                    () -> testHeaderRebuiltAfterCrash(persons));
+            report.runTestMethod("Split policies keep their bound while growing and merge while shrinking",
+                    () -> testSplitPolicies(persons));
+        } catch (Exception e) {
+            report.fatal(e);
+        }
+        report.printSummary();
+    }
+
+    private static String path(String name) {
+        return TEST_DIRECTORY + File.separator + name;
+    }
+
+    private static Person[] generatePersons() {
+        Person[] persons = new Person[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            Person person = new Person();
+            person.name = "Name" + (i % 37);
+            person.surname = "Surname" + (i % 53);
+            person.birthdate = 19500101L + i;
+            person.id = String.format("%08d", 10000000 + i * 7);
+            persons[i] = person;
+        }
+        return persons;
+    }
+
+    private static LinearHash<Person> create(String name) {
+        return new LinearHash<>(path(name + "_main"), path(name + "_overflow"), BLOCK_SIZE, OVERFLOW_BLOCK_SIZE,
+                Person.class);
+    }
+
+    private static LinearHash<Person> open(String name) {
+        return new LinearHash<>(path(name + "_main"), path(name + "_main.meta"), path(name + "_overflow"),
+                path(name + "_overflow.meta"), Person.class);
+    }
+
+    // Counts records that get() does not return although they should be there, or returns although
+    // they were deleted.
+    private static int countWrong(LinearHash<Person> linearHash, Person[] persons, int count, Set<String> deleted) {
+        int wrong = 0;
+        for (int i = 0; i < count; i++) {
+            boolean found = linearHash.get(persons[i]) != null;
+            if (found == deleted.contains(persons[i].id)) {
+                wrong++;
+            }
+        }
+        return wrong;
+    }
+
+    private static void testReusedOverflowBlocksAfterCrash(Person[] persons) {
+        int half = TOTAL_PERSONS / 2;
+        LinearHash<Person> linearHash = create("overflow");
+        linearHash.setSplitPolicy(new OverflowRatioSplitPolicy(5.0, 0.0));
+        for (int i = 0; i < half; i++) {
+            linearHash.insert(persons[i]);
+        }
+        Set<String> deleted = new HashSet<>();
+        for (int i = 0; i < half; i += 2) {
+            linearHash.delete(persons[i]);
+            deleted.add(persons[i].id);
+        }
+        int freedBlocks = linearHash.getBucketHeap().getOverflowHeap().getBlockManager().getEmptyBlocks().size();
+        for (int i = half; i < TOTAL_PERSONS; i++) {
+            linearHash.insert(persons[i]);
+        }
+
+        LinearHash<Person> reopened = open("overflow");
+        Person extra = new Person();
+        for (int i = 0; i < 500; i++) {
+            extra = new Person();
+            extra.id = String.format("%08d", 90000000 + i);
+            extra.name = "Extra";
+            extra.surname = "Person";
+            reopened.insert(extra);
+        }
+        int wrong = countWrong(reopened, persons, TOTAL_PERSONS, deleted);
+        boolean extraFound = reopened.get(extra) != null;
+
+        // Every overflow block on a chain must be recorded as used.
+        Heap<Person> overflowHeap = reopened.getBucketHeap().getOverflowHeap();
+        Set<Integer> emptyBlocks = new HashSet<>(overflowHeap.getBlockManager().getEmptyBlocks());
+        int linkedButFree = 0;
+        Heap<Person> mainHeap = reopened.getBucketHeap().getMainBucketsHeap();
+        for (int bucket = 0; bucket < reopened.getTotalPrimaryBuckets(); bucket++) {
+            int next = mainHeap.readBlock(bucket, Bucket::new).getFirstOverflowBlock();
+            while (next != -1) {
+                if (emptyBlocks.contains(next)) {
+                    linkedButFree++;
+                }
+                next = overflowHeap.readBlock(next, OverflowBlock::new).getNextOverflowBlock();
+            }
+        }
+        reopened.close();
+
+        report.check(freedBlocks > 0 && wrong == 0 && extraFound && linkedButFree == 0,
+                freedBlocks + " freed overflow blocks, none linked and free after reopening",
+                freedBlocks + " freed blocks, " + wrong + " records wrong, extra found " + extraFound + ", "
+                        + linkedButFree + " linked blocks recorded as free");
+    }
+
+    private static void testWriteAheadLogReplay(Person[] persons) {
+        LinearHash<Person> linearHash = create("logged");
+        linearHash.enableWriteAheadLog(path("logged.wal"), 20);
+        for (Person person : persons) {
+            linearHash.insert(person);
+        }
+        int buckets = linearHash.getTotalPrimaryBuckets();
+
+        LinearHash<Person> reopened = open("logged");
+        boolean recovered = reopened.enableWriteAheadLog(path("logged.wal"), 20);
+        int wrong = countWrong(reopened, persons, TOTAL_PERSONS, new HashSet<>());
+        int reopenedBuckets = reopened.getTotalPrimaryBuckets();
+        long recordCount = reopened.getRecordCount();
+        reopened.close();
+
+        report.check(recovered && wrong == 0 && reopenedBuckets == buckets && recordCount == TOTAL_PERSONS,
+                "log replayed, " + buckets + " buckets and all " + recordCount + " records",
+                "recovered " + recovered + ", " + wrong + " records wrong, " + reopenedBuckets
+                        + " buckets instead of " + buckets + ", record count " + recordCount);
+    }
+
+    private static void testHeaderRebuiltAfterCrash(Person[] persons) {
+        LinearHash<Person> linearHash = create("header");
+        for (Person person : persons) {
+            linearHash.insert(person);
+        }
+        linearHash.sync();
+        Set<String> deleted = new HashSet<>();
+        for (int i = 0; i < TOTAL_PERSONS; i += 3) {
+            linearHash.delete(persons[i]);
+            deleted.add(persons[i].id);
+        }
+        int level = linearHash.getLevel();
+        int splitPointer = linearHash.getSplitPointer();
+        long recordCount = linearHash.getRecordCount();
+        int overflowBlocks = linearHash.getDebugInfoTotalOverflowBlocks();
+        long[] histogram = linearHash.getChainLengthHistogram();
+
+        // The deletes after sync() marked the header stale on disk, so it is rebuilt from the buckets.
+        LinearHash<Person> reopened = open("header");
+        boolean sameState = reopened.getLevel() == level && reopened.getSplitPointer() == splitPointer
+                && reopened.getRecordCount() == recordCount
+                && reopened.getDebugInfoTotalOverflowBlocks() == overflowBlocks
+                && Arrays.equals(reopened.getChainLengthHistogram(), histogram);
+        int wrong = countWrong(reopened, persons, TOTAL_PERSONS, deleted);
+        reopened.close();
+
+        report.check(sameState && recordCount == TOTAL_PERSONS - deleted.size() && wrong == 0,
+                recordCount + " records, level " + level + ", split pointer " + splitPointer + " after reopening",
+                "state after reopening matches: " + sameState + ", record count " + recordCount + ", " + wrong
+                        + " records wrong");
+    }
+
+    private static void testSplitPolicies(Person[] persons) {
+        SplitPolicy[] policies = {
+                OverflowRatioSplitPolicy.DEFAULT,
+                new LoadFactorSplitPolicy(0.8, 0.4),
+                new ControlledSplitPolicy(0.8, 0.4),
+                new ChainLengthSplitPolicy(1, 0.4)
+        };
+        for (int p = 0; p < policies.length; p++) {
+            SplitPolicy policy = policies[p];
+            String name = policy.getClass().getSimpleName();
+            LinearHash<Person> linearHash = create("policy" + p);
+            linearHash.setSplitPolicy(policy);
+            double worstPrimaryLoad = 0;
+            int worstChain = 0;
+            for (Person person : persons) {
+                linearHash.insert(person);
+                worstPrimaryLoad = Math.max(worstPrimaryLoad, linearHash.getPrimaryLoadFactor());
+                worstChain = Math.max(worstChain, linearHash.getLongestChainLength());
+            }
+            int grownBuckets = linearHash.getTotalPrimaryBuckets();
+            double finalPrimaryLoad = linearHash.getPrimaryLoadFactor();
+            int finalChain = linearHash.getLongestChainLength();
+
+            Set<String> deleted = new HashSet<>();
+            for (int i = 0; i < TOTAL_PERSONS * 9 / 10; i++) {
+                linearHash.delete(persons[i]);
+                deleted.add(persons[i].id);
+            }
+            int shrunkBuckets = linearHash.getTotalPrimaryBuckets();
+            int wrong = countWrong(linearHash, persons, TOTAL_PERSONS, deleted);
+            linearHash.close();
+
+            boolean bounded = true;
+            if (policy instanceof ControlledSplitPolicy) {
+                bounded = finalPrimaryLoad <= 0.8 + 0.01;
+            } else if (policy instanceof ChainLengthSplitPolicy) {
+                bounded = finalChain <= 1;
+            }
+            System.out.println("  " + name + ": " + grownBuckets + " buckets grown, " + shrunkBuckets
+                    + " after deletes, primary load " + String.format("%.2f", finalPrimaryLoad) + " (worst "
+                    + String.format("%.2f", worstPrimaryLoad) + "), longest chain " + finalChain + " (worst "
+                    + worstChain + ")");
+
+            report.check(wrong == 0 && bounded && shrunkBuckets < grownBuckets,
+                    name + " kept its bound and merged",
+                    name + " " + wrong + " records wrong, bounded " + bounded + ", " + grownBuckets + " -> "
+                            + shrunkBuckets + " buckets");
+        }
+    }
+}
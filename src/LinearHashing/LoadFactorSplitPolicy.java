@@ -0,0 +1,27 @@
+package LinearHashing;
+
+// Keeps the record load factor (records over all slots of the primary buckets and their overflow
+// blocks) between mergeLoad and splitLoad.
+public class LoadFactorSplitPolicy implements SplitPolicy {
+
+    private final double splitLoad;
+    private final double mergeLoad;
+
+    public LoadFactorSplitPolicy(double splitLoad, double mergeLoad) {
+        if (mergeLoad >= splitLoad) {
+            throw new Error("The merge load must be below the split load");
+        }
+        this.splitLoad = splitLoad;
+        this.mergeLoad = mergeLoad;
+    }
+
+    @Override
+    public boolean shouldSplit(LinearHash<?> file) {
+        return file.getLoadFactor() > splitLoad;
+    }
+
+    @Override
+    public boolean shouldMerge(LinearHash<?> file) {
+        return file.getLoadFactor() < mergeLoad;
+    }
+}
@@ -1,10 +1,7 @@
 package LinearHashing;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
 import UnsortedFile.*;
 
 public class OverflowBlock<T extends StorableRecord> extends Block<T> {
@@ -16,6 +13,11 @@ public class OverflowBlock<T extends StorableRecord> extends Block<T> {
         this.nextOverflowBlock = -1;
     }
 
+    public OverflowBlock(int blockingFactor, int blockSize, int recordSize, Supplier<T> recordFactory) {
+        super(blockingFactor, blockSize, recordSize, recordFactory);
+        this.nextOverflowBlock = -1;
+    }
+
     public int getNextOverflowBlock() {
         return nextOverflowBlock;
     }
@@ -25,62 +27,19 @@ public class OverflowBlock<T extends StorableRecord> extends Block<T> {
     }
 
     @Override
-    public byte[] ToByteArray() {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
-        try {
-            for (int i = 0; i < blockingFactor; i++) {
-                if (i < validBlockCount) {
-                    byte[] recordBytes = records[i].ToByteArray();
-                    dataOutputStream.write(recordBytes);
-                } else {
-                    byte[] emptyRecord = new byte[recordSize];
-                    dataOutputStream.write(emptyRecord);
-                }
-            }
-
-            dataOutputStream.writeInt(nextOverflowBlock);
-
-            dataOutputStream.writeInt(validBlockCount);
-
-            byte[] result = byteArrayOutputStream.toByteArray();
-
-            if (result.length > blockSize) {
-                throw new IllegalStateException(
-                        "OverflowBlock serialization exceeds blockSize: " + result.length + " > " + blockSize);
-            }
-            if (result.length < blockSize) {
-                byte[] paddedResult = new byte[blockSize];
-                System.arraycopy(result, 0, paddedResult, 0, result.length);
-                return paddedResult;
-            }
-            return result;
-        } catch (IOException e) {
-            throw new IllegalStateException("Error during conversion to byte array.", e);
-        }
+    protected int trailerSize() {
+        return 8;
     }
 
     @Override
-    public void FromByteArray(byte[] inputArray, Class<T> recordClass) {
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(inputArray);
-        DataInputStream dataInputStream = new DataInputStream(byteArrayInputStream);
-        try {
-            byte[][] recordBytesArray = new byte[blockingFactor][recordSize];
-            for (int i = 0; i < blockingFactor; i++) {
-                dataInputStream.readFully(recordBytesArray[i]);
-            }
-
-            nextOverflowBlock = dataInputStream.readInt();
-
-            validBlockCount = dataInputStream.readInt();
+    protected void writeTrailer(ByteBuffer buffer) {
+        buffer.putInt(nextOverflowBlock);
+        buffer.putInt(validBlockCount);
+    }
 
-            for (int i = 0; i < blockingFactor; i++) {
-                T record = recordClass.getDeclaredConstructor().newInstance();
-                record.FromByteArray(recordBytesArray[i]);
-                records[i] = record;
-            }
-        } catch (Exception e) {
-            throw new IllegalStateException("Error during conversion from byte array.", e);
-        }
+    @Override
+    protected void readTrailer(ByteBuffer buffer) {
+        nextOverflowBlock = buffer.getInt();
+        validBlockCount = buffer.getInt();
     }
 }
@@ -0,0 +1,29 @@
+package LinearHashing;
+
+// Splits when the overflow file holds more than splitThreshold blocks per primary bucket and merges
+// below mergeThreshold. This is how LinearHash always decided; it ignores how full the buckets are.
+public class OverflowRatioSplitPolicy implements SplitPolicy {
+
+    public static final OverflowRatioSplitPolicy DEFAULT = new OverflowRatioSplitPolicy(0.8, 0.3);
+
+    private final double splitThreshold;
+    private final double mergeThreshold;
+
+    public OverflowRatioSplitPolicy(double splitThreshold, double mergeThreshold) {
+        if (mergeThreshold >= splitThreshold) {
+            throw new Error("The merge threshold must be below the split threshold");
+        }
+        this.splitThreshold = splitThreshold;
+        this.mergeThreshold = mergeThreshold;
+    }
+
+    @Override
+    public boolean shouldSplit(LinearHash<?> file) {
+        return file.getOverflowRatio() > splitThreshold;
+    }
+
+    @Override
+    public boolean shouldMerge(LinearHash<?> file) {
+        return file.getOverflowRatio() < mergeThreshold;
+    }
+}
@@ -0,0 +1,11 @@
+package LinearHashing;
+
+// Decides when a LinearHash file grows or shrinks. shouldSplit is asked once after every insert and
+// shouldMerge once after every delete, so the file changes by at most one bucket per operation; a
+// merge is never asked for while only the initial buckets are left.
+public interface SplitPolicy {
+
+    public boolean shouldSplit(LinearHash<?> file);
+
+    public boolean shouldMerge(LinearHash<?> file);
+}
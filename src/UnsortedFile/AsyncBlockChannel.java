@@ -0,0 +1,117 @@
+package UnsortedFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+// Positional reads and writes on an AsynchronousFileChannel. At most maxInFlight requests are
+// outstanding at a time; read() and write() block the caller until a slot frees up, which keeps a
+// producer that issues requests in a loop from queueing unbounded work.
+public class AsyncBlockChannel {
+
+    private final AsynchronousFileChannel channel;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    public AsyncBlockChannel(String pathToFile, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new Error("At least one in-flight request must be allowed");
+        }
+        try {
+            this.channel = AsynchronousFileChannel.open(Paths.get(pathToFile), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.inFlight = new Semaphore(maxInFlight);
+            this.maxInFlight = maxInFlight;
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    public CompletableFuture<ByteBuffer> read(long position, ByteBuffer destination) {
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        inFlight.acquireUninterruptibly();
+        submit(result, "Failed to read from file", () -> channel.read(destination, position, position,
+                new CompletionHandler<Integer, Long>() {
+            @Override
+            public void completed(Integer bytesRead, Long filePosition) {
+                if (bytesRead < 0) {
+                    finish(result, new RuntimeException("Failed to read from file: reading past the end of the file"));
+                } else if (destination.hasRemaining()) {
+                    submit(result, "Failed to read from file", () -> channel.read(destination,
+                            filePosition + bytesRead, filePosition + bytesRead, this));
+                } else {
+                    destination.flip();
+                    inFlight.release();
+                    result.complete(destination);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Long filePosition) {
+                finish(result, new RuntimeException("Failed to read from file", exc));
+            }
+        }));
+        return result;
+    }
+
+    public CompletableFuture<Void> write(long position, ByteBuffer source) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        inFlight.acquireUninterruptibly();
+        submit(result, "Failed to write to file", () -> channel.write(source, position, position,
+                new CompletionHandler<Integer, Long>() {
+            @Override
+            public void completed(Integer bytesWritten, Long filePosition) {
+                if (source.hasRemaining()) {
+                    submit(result, "Failed to write to file", () -> channel.write(source,
+                            filePosition + bytesWritten, filePosition + bytesWritten, this));
+                } else {
+                    inFlight.release();
+                    result.complete(null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Long filePosition) {
+                finish(result, new RuntimeException("Failed to write to file", exc));
+            }
+        }));
+        return result;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getInFlightCount() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    // Waits for the outstanding requests before closing the channel.
+    public void close() {
+        try {
+            inFlight.acquireUninterruptibly(maxInFlight);
+            channel.close();
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    // The channel can also refuse a request right away (closed channel, bad position), in which case
+    // no completion handler runs and the slot has to be given back here.
+    private void submit(CompletableFuture<?> result, String message, Runnable request) {
+        try {
+            request.run();
+        } catch (RuntimeException e) {
+            finish(result, new RuntimeException(message, e));
+        }
+    }
+
+    private void finish(CompletableFuture<?> result, Throwable error) {
+        inFlight.release();
+        result.completeExceptionally(error);
+    }
+}
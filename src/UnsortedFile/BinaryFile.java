@@ -2,22 +2,68 @@ package UnsortedFile;
 
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class BinaryFile {
     
-    private RandomAccessFile file;
+    protected RandomAccessFile file;
+    protected FileChannel channel;
     
     public BinaryFile(String pathToFile) {
         File f = new File(pathToFile);
         
         try {
             this.file = new RandomAccessFile(f, "rw");
+            this.channel = file.getChannel();
         } catch (Exception e){
             throw new Error(e);
         }
     }
     
-    public void seek(long position) {
+    // For subclasses that do not own a file of their own.
+    protected BinaryFile() {
+    }
+
+    public static BinaryFile open(String pathToFile, FileAccessMode accessMode) {
+        if (accessMode == FileAccessMode.COMPRESSED) {
+            throw new Error("Compressed files need a block size");
+        }
+        return open(pathToFile, accessMode, 0);
+    }
+
+    public static BinaryFile open(String pathToFile, FileAccessMode accessMode, int blockSize) {
+        switch (accessMode) {
+            case MEMORY_MAPPED:
+                return new MappedBinaryFile(pathToFile);
+            case COMPRESSED:
+                return new CompressedBinaryFile(pathToFile, blockSize);
+            case DIRECT:
+                return new DirectBinaryFile(pathToFile);
+            case SEGMENTED:
+                return new SegmentedBinaryFile(pathToFile, blockSize);
+            default:
+                return new BinaryFile(pathToFile);
+        }
+    }
+
+    // Buffers handed to read/write should come from here; some file types need them aligned.
+    public ByteBuffer allocateBuffer(int size) {
+        return ByteBuffer.allocate(size);
+    }
+
+    // Whether blocks may be read and written through a separate channel opened on the same path, which
+    // needs the bytes on disk to be exactly the bytes written here, at the same offsets.
+    public boolean supportsAsyncIO() {
+        return true;
+    }
+
+    // Whether that channel may also write past the current end of the file.
+    public boolean supportsAsyncExtension() {
+        return true;
+    }
+
+    public synchronized void seek(long position) {
         try {
             file.seek(position);
         } catch (Exception e){
@@ -33,7 +79,7 @@ public class BinaryFile {
         }
     }
     
-    public void write(byte[] data) {
+    public synchronized void write(byte[] data) {
         try {
             file.write(data);
         } catch (Exception e){
@@ -41,7 +87,7 @@ public class BinaryFile {
         }
     }
     
-    public byte[] read(int length) {
+    public synchronized byte[] read(int length) {
         try {
             byte[] data = new byte[length];
             file.readFully(data);
@@ -51,6 +97,62 @@ public class BinaryFile {
         }        
     }
     
+    public void read(long position, ByteBuffer destination) {
+        try {
+            while (destination.hasRemaining()) {
+                int bytesRead = channel.read(destination, position);
+                if (bytesRead < 0) {
+                    throw new RuntimeException("Failed to read from file: reading past the end of the file");
+                }
+                position += bytesRead;
+            }
+        } catch (java.io.IOException e) {
+            throw new RuntimeException("Failed to read from file", e);
+        }
+    }
+
+    public void write(long position, ByteBuffer source) {
+        try {
+            while (source.hasRemaining()) {
+                position += channel.write(source, position);
+            }
+        } catch (Exception e){
+            throw new Error(e);
+        }
+    }
+
+    // FileChannel has no positional gathering write, so this one borrows the file pointer that seek(),
+    // read(int) and write(byte[]) use. All four hold the same lock and the pointer is put back before
+    // it is released, so a seek-based caller never sees it move.
+    public synchronized void write(long position, ByteBuffer[] sources) {
+        try {
+            long remaining = 0;
+            for (ByteBuffer source : sources) {
+                remaining += source.remaining();
+            }
+            long savedPosition = channel.position();
+            try {
+                channel.position(position);
+                while (remaining > 0) {
+                    remaining -= channel.write(sources);
+                }
+            } finally {
+                channel.position(savedPosition);
+            }
+        } catch (Exception e){
+            throw new Error(e);
+        }
+    }
+
+    // Forces written data to the device. Only the data is forced, not the file's own metadata.
+    public void force() {
+        try {
+            channel.force(false);
+        } catch (Exception e){
+            throw new Error(e);
+        }
+    }
+
     public void truncate(long length) {
         try {
             file.setLength(length);
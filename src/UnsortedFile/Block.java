@@ -1,7 +1,8 @@
 package UnsortedFile;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.function.Supplier;
 
 public class Block<T extends StorableRecord> {
 
@@ -11,30 +12,53 @@ public class Block<T extends StorableRecord> {
     protected int blockingFactor;
     protected int blockSize;
 
+    protected Supplier<T> recordFactory;
+
+    private byte[] undecodedRecords;
+
     public Block(int blockingFactor, int blockSize, Class<T> recordClass) {
         this.blockingFactor = blockingFactor;
         this.blockSize = blockSize;
         this.validBlockCount = 0;
         this.records = (T[]) java.lang.reflect.Array.newInstance(recordClass, blockingFactor);
+        this.recordFactory = StorableRecord.factoryOf(recordClass);
+        this.recordSize = recordFactory.get().sizeInBytes();
+    }
 
-        try {
-            T templateInstance = recordClass.getDeclaredConstructor().newInstance();
-            this.recordSize = templateInstance.sizeInBytes();
-        } catch (Exception e) { }
+    public Block(int blockingFactor, int blockSize, int recordSize, Supplier<T> recordFactory) {
+        this.blockingFactor = blockingFactor;
+        this.blockSize = blockSize;
+        this.validBlockCount = 0;
+        // Only T instances are stored in it, and debugGetAllRecords copies it out into a T-typed array.
+        @SuppressWarnings("unchecked")
+        T[] slots = (T[]) new StorableRecord[blockingFactor];
+        this.records = slots;
+        this.recordFactory = recordFactory;
+        this.recordSize = recordSize;
     }
 
     public T getRecord(int index) {
-        return records[index];
+        return decodedRecord(index);
     }
 
     public T[] debugGetAllRecords() {
+        for (int i = 0; i < blockingFactor; i++) {
+            decodedRecord(i);
+        }
+        if (records.getClass().getComponentType() == StorableRecord.class) {
+            // The array's component type is the runtime class of the records the factory makes.
+            @SuppressWarnings("unchecked")
+            T[] typedRecords = (T[]) java.lang.reflect.Array.newInstance(recordFactory.get().getClass(), blockingFactor);
+            System.arraycopy(records, 0, typedRecords, 0, blockingFactor);
+            return typedRecords;
+        }
         return records;
     }
 
     public List<T> getAllValidRecords() {
         List<T> validRecords = new ArrayList<>();
         for (int i = 0; i < validBlockCount; i++) {
-            validRecords.add(records[i]);
+            validRecords.add(decodedRecord(i));
         }
         return validRecords;
     }
@@ -45,7 +69,8 @@ public class Block<T extends StorableRecord> {
 
     public int findRecordIndex(T partialRecord) {
         for (int i = 0; i < validBlockCount; i++) {
-            if (records[i] != null && partialRecord.equals(records[i])) {
+            T record = decodedRecord(i);
+            if (record != null && partialRecord.equals(record)) {
                 return i;
             }
         }
@@ -72,6 +97,9 @@ public class Block<T extends StorableRecord> {
             return false;
         }
 
+        for (int i = index + 1; i < validBlockCount; i++) {
+            decodedRecord(i);
+        }
         for (int i = index; i < validBlockCount - 1; i++) {
             records[i] = records[i + 1];
         }
@@ -100,51 +128,92 @@ public class Block<T extends StorableRecord> {
     }
 
     public byte[] ToByteArray() {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
-        try {
-            for (int i = 0; i < blockingFactor; i++) {
-                if (i < validBlockCount) {
-                    byte[] recordBytes = records[i].ToByteArray();
-                    dataOutputStream.write(recordBytes);
-                } else {
-                    byte[] emptyRecord = new byte[recordSize];
-                    dataOutputStream.write(emptyRecord);
-                }
-            }
-            dataOutputStream.writeInt(validBlockCount);
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        writeTo(buffer);
+        return buffer.array();
+    }
 
-            byte[] result = byteArrayOutputStream.toByteArray();
+    public void FromByteArray(byte[] inputArray, Class<T> recordClass) {
+        readFrom(ByteBuffer.wrap(inputArray));
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        int usedBytes = blockingFactor * recordSize + trailerSize();
+        if (usedBytes > blockSize) {
+            throw new IllegalStateException(
+                    getClass().getSimpleName() + " serialization exceeds blockSize: " + usedBytes + " > " + blockSize);
+        }
 
-            if (result.length < blockSize) {
-                byte[] paddedResult = new byte[blockSize];
-                System.arraycopy(result, 0, paddedResult, 0, result.length);
-                return paddedResult;
+        int start = buffer.position();
+        for (int i = 0; i < blockingFactor; i++) {
+            if (i < validBlockCount && records[i] == null && undecodedRecords != null) {
+                buffer.put(undecodedRecords, i * recordSize, recordSize);
+            } else if (i < validBlockCount) {
+                records[i].writeTo(buffer);
+                buffer.position(start + (i + 1) * recordSize);
+            } else {
+                RecordCodec.putZeros(buffer, recordSize);
             }
-            return result;
-        } catch (IOException e) {
-            throw new IllegalStateException("Error during conversion to byte array.", e);
         }
+        writeTrailer(buffer);
+        RecordCodec.putZeros(buffer, blockSize - usedBytes);
     }
 
-    public void FromByteArray(byte[] inputArray, Class<T> recordClass) {
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(inputArray);
-        DataInputStream dataInputStream = new DataInputStream(byteArrayInputStream);
+    public void readFrom(ByteBuffer buffer) {
+        undecodedRecords = null;
+        int start = buffer.position();
         try {
-            byte[][] recordBytesArray = new byte[blockingFactor][recordSize];
-            for (int i = 0; i < blockingFactor; i++) {
-                dataInputStream.readFully(recordBytesArray[i]);
-            }
+            buffer.position(start + blockingFactor * recordSize);
+            readTrailer(buffer);
 
             for (int i = 0; i < blockingFactor; i++) {
-                T record = recordClass.getDeclaredConstructor().newInstance();
-                record.FromByteArray(recordBytesArray[i]);
+                buffer.position(start + i * recordSize);
+                T record = recordFactory.get();
+                record.readFrom(buffer);
                 records[i] = record;
             }
-            validBlockCount = dataInputStream.readInt();
-
         } catch (Exception e) {
             throw new IllegalStateException("Error during conversion from byte array.", e);
         }
+        buffer.position(start + blockSize);
+    }
+
+    // Reads only the trailer and keeps a copy of the slot bytes. Records are decoded one by one
+    // the first time a slot is accessed.
+    public void readFromLazily(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.position(start + blockingFactor * recordSize);
+        readTrailer(buffer);
+
+        undecodedRecords = new byte[blockingFactor * recordSize];
+        buffer.get(start, undecodedRecords);
+        Arrays.fill(records, null);
+        buffer.position(start + blockSize);
+    }
+
+    private T decodedRecord(int index) {
+        if (records[index] == null && undecodedRecords != null) {
+            T record = recordFactory.get();
+            record.readFrom(ByteBuffer.wrap(undecodedRecords, index * recordSize, recordSize));
+            records[index] = record;
+        }
+        return records[index];
+    }
+
+    protected int trailerSize() {
+        return 4;
+    }
+
+    // Every fixed-slot trailer ends with the valid record count.
+    int validCountOffset() {
+        return blockingFactor * recordSize + trailerSize() - 4;
+    }
+
+    protected void writeTrailer(ByteBuffer buffer) {
+        buffer.putInt(validBlockCount);
+    }
+
+    protected void readTrailer(ByteBuffer buffer) {
+        validBlockCount = buffer.getInt();
     }
 }
@@ -0,0 +1,9 @@
+package UnsortedFile;
+
+import java.util.function.Supplier;
+
+@FunctionalInterface
+public interface BlockFactory<T extends StorableRecord, B extends Block<T>> {
+
+    public B create(int blockingFactor, int blockSize, int recordSize, Supplier<T> recordFactory);
+}
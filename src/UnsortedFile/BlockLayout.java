@@ -0,0 +1,6 @@
+package UnsortedFile;
+
+public enum BlockLayout {
+    FIXED_SLOTS,
+    SLOTTED_PAGE
+}
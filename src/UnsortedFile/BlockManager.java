@@ -5,14 +5,37 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
 
+// Lookups go to one bitset per free state, kept in memory next to the persisted map, so finding the
+// next block with room is a nextSetBit() call instead of a scan over the map's words. The bitsets are
+// filled from the map one page at a time, the first time a lookup or an update reaches that page, so
+// opening a file reads none of the map. A block that is handed out only leaves the bitsets; the map
+// keeps its old state until updateAfterInsert() records the state after the write, so a crash in
+// between cannot leave a free block marked full for good. Likewise a state change of a block whose
+// newest image only sits in a write-back cache waits in memory until blockWritten() reports that
+// image in the file, so the map never describes contents a crash can still lose.
 public class BlockManager {
 
-    private List<Integer> emptyBlocks;
-    private List<Integer> partiallyEmptyBlocks;
+    private static final int NO_CANDIDATE = Integer.MAX_VALUE;
+
+    private FreeSpaceMap freeSpaceMap;
+    private final BitSet emptyBlocks = new BitSet();
+    private final BitSet partiallyEmptyBlocks = new BitSet();
+    // Map pages already copied into the bitsets. Pages at or past persistedPages had nothing in the
+    // map when it was opened, so everything there is in the bitsets already.
+    private final BitSet loadedPages = new BitSet();
+    private int persistedPages;
+    private IntPredicate unwrittenBlocks = blockIndex -> false;
+    private final Map<Integer, Integer> unwrittenStates = new HashMap<>();
+    private int lowestEmptyCandidate;
+    private int lowestPartiallyEmptyCandidate;
     private BinaryFile metadataFile;
     private String metadataFilePath;
     private int blockSize;
@@ -20,103 +43,226 @@ public class BlockManager {
     public BlockManager(String metadataFilePath, int blockSize) {
         this.metadataFilePath = metadataFilePath;
         this.blockSize = blockSize;
-        this.emptyBlocks = new ArrayList<>();
-        this.partiallyEmptyBlocks = new ArrayList<>();
         this.metadataFile = new BinaryFile(metadataFilePath);
+        FreeSpaceMap.delete(freeSpaceMapPath(metadataFilePath));
+        this.freeSpaceMap = new FreeSpaceMap(freeSpaceMapPath(metadataFilePath));
+        writeMetadata();
     }
 
     public BlockManager(String metadataFilePath) {
         this.metadataFilePath = metadataFilePath;
         this.metadataFile = new BinaryFile(metadataFilePath);
+        this.freeSpaceMap = new FreeSpaceMap(freeSpaceMapPath(metadataFilePath));
+        this.persistedPages = (int) ((freeSpaceMap.getCapacityInBlocks() + FreeSpaceMap.BLOCKS_PER_PAGE - 1)
+                / FreeSpaceMap.BLOCKS_PER_PAGE);
         loadFromFile();
     }
 
+    public static String freeSpaceMapPath(String metadataFilePath) {
+        if (metadataFilePath.endsWith(".meta")) {
+            return metadataFilePath.substring(0, metadataFilePath.length() - ".meta".length()) + ".fsm";
+        }
+        return metadataFilePath + ".fsm";
+    }
+
+    // Blocks for which the predicate holds have a newer image in memory than in the file.
+    public synchronized void setUnwrittenBlocks(IntPredicate unwrittenBlocks) {
+        this.unwrittenBlocks = unwrittenBlocks;
+    }
+
+    // Called once a block's image has reached the file. A state recorded while the block was unwritten
+    // goes to the map now, unless the block was changed again in the meantime.
+    public synchronized void blockWritten(int blockIndex) {
+        Integer state = unwrittenStates.get(blockIndex);
+        if (state != null && !unwrittenBlocks.test(blockIndex)) {
+            unwrittenStates.remove(blockIndex);
+            freeSpaceMap.setState(blockIndex, state);
+        }
+    }
+
     public int getBlockSize() {
         return blockSize;
     }
 
-    public List<Integer> getEmptyBlocks() {
-        return new ArrayList<>(emptyBlocks);
+    public synchronized List<Integer> getEmptyBlocks() {
+        return collectBlocks(emptyBlocks);
     }
 
-    public List<Integer> getPartiallyEmptyBlocks() {
-        return new ArrayList<>(partiallyEmptyBlocks);
+    public synchronized List<Integer> getPartiallyEmptyBlocks() {
+        return collectBlocks(partiallyEmptyBlocks);
     }
 
-    public int getNextPartiallyEmptyBlock() {
-        if (partiallyEmptyBlocks.isEmpty()) {
+    public synchronized int getNextPartiallyEmptyBlock() {
+        int minIndex = nextBlock(partiallyEmptyBlocks, lowestPartiallyEmptyCandidate);
+        if (minIndex == -1) {
+            lowestPartiallyEmptyCandidate = NO_CANDIDATE;
             return -1;
         }
-        int minIndex = Collections.min(partiallyEmptyBlocks);
-        partiallyEmptyBlocks.remove(Integer.valueOf(minIndex));
+        partiallyEmptyBlocks.clear(minIndex);
+        lowestPartiallyEmptyCandidate = minIndex + 1;
         return minIndex;
     }
 
-    public int getNextEmptyBlock() {
-        if (emptyBlocks.isEmpty()) {
+    public synchronized int getNextEmptyBlock() {
+        int minIndex = nextBlock(emptyBlocks, lowestEmptyCandidate);
+        if (minIndex == -1) {
+            lowestEmptyCandidate = NO_CANDIDATE;
             return -1;
         }
-        int minIndex = Collections.min(emptyBlocks);
-        emptyBlocks.remove(Integer.valueOf(minIndex));
+        emptyBlocks.clear(minIndex);
+        lowestEmptyCandidate = minIndex + 1;
         return minIndex;
     }
 
-    public void manageEmptyBlock(int blockNumber) {
-        emptyBlocks.add(blockNumber);
+    // Lowest block at or after fromIndex that still has room, without handing it out.
+    public synchronized int findFreeBlock(int fromIndex) {
+        int partial = nextBlock(partiallyEmptyBlocks, fromIndex);
+        int empty = nextBlock(emptyBlocks, fromIndex);
+        if (partial == -1 || empty == -1) {
+            return Math.max(partial, empty);
+        }
+        return Math.min(partial, empty);
     }
 
-    public void updateAfterInsert(int blockIndex, int validCount, int blockingFactor, int blockSize) {
-        emptyBlocks.remove(Integer.valueOf(blockIndex));
-        partiallyEmptyBlocks.remove(Integer.valueOf(blockIndex));
+    public synchronized void manageEmptyBlock(int blockNumber) {
+        setBlockState(blockNumber, FreeSpaceMap.EMPTY);
+    }
 
-        if (validCount == 0) {
-            emptyBlocks.add(blockIndex);
-        } else if (validCount < blockingFactor) {
-            partiallyEmptyBlocks.add(blockIndex);
+    // Goes to the map straight away, before anything links to the block.
+    public synchronized void manageUsedBlock(int blockNumber) {
+        setBlockState(blockNumber, FreeSpaceMap.FULL, false);
+    }
+
+    public synchronized void updateAfterInsert(int blockIndex, int validCount, int blockingFactor, int blockSize) {
+        updateBlockState(blockIndex, validCount, blockingFactor);
+    }
+
+    public synchronized void updateAfterInsert(int blockIndex, Block<?> block) {
+        if (block.isEmpty()) {
+            setBlockState(blockIndex, FreeSpaceMap.EMPTY);
+        } else if (block.isFull()) {
+            setBlockState(blockIndex, FreeSpaceMap.FULL);
+        } else {
+            setBlockState(blockIndex, FreeSpaceMap.PARTIALLY_EMPTY);
         }
     }
 
-    public void updateAfterDelete(int blockIndex, int validCount, int blockingFactor, int blockSize) {
-        emptyBlocks.remove(Integer.valueOf(blockIndex));
-        partiallyEmptyBlocks.remove(Integer.valueOf(blockIndex));
+    public synchronized void updateAfterDelete(int blockIndex, int validCount, int blockingFactor, int blockSize) {
+        updateBlockState(blockIndex, validCount, blockingFactor);
+    }
+
+    public synchronized void removeBlock(int blockIndex, int blockSize) {
+        setBlockState(blockIndex, FreeSpaceMap.FULL, false);
+    }
+
+    public synchronized boolean isEmptyBlock(int blockIndex) {
+        loadPageOf(blockIndex);
+        return emptyBlocks.get(blockIndex);
+    }
 
+    private void updateBlockState(int blockIndex, int validCount, int blockingFactor) {
         if (validCount == 0) {
-            emptyBlocks.add(blockIndex);
+            setBlockState(blockIndex, FreeSpaceMap.EMPTY);
         } else if (validCount < blockingFactor) {
-            partiallyEmptyBlocks.add(blockIndex);
+            setBlockState(blockIndex, FreeSpaceMap.PARTIALLY_EMPTY);
+        } else {
+            setBlockState(blockIndex, FreeSpaceMap.FULL);
         }
     }
 
-    public void removeBlock(int blockIndex, int blockSize) {
-        emptyBlocks.remove(Integer.valueOf(blockIndex));
-        partiallyEmptyBlocks.remove(Integer.valueOf(blockIndex));
+    private void setBlockState(int blockIndex, int state) {
+        setBlockState(blockIndex, state, true);
     }
 
-    public boolean isEmptyBlock(int blockIndex) {
-        return emptyBlocks.contains(blockIndex);
+    private void setBlockState(int blockIndex, int state, boolean afterWrite) {
+        loadPageOf(blockIndex);
+        if (afterWrite && unwrittenBlocks.test(blockIndex)) {
+            unwrittenStates.put(blockIndex, state);
+        } else {
+            unwrittenStates.remove(blockIndex);
+            freeSpaceMap.setState(blockIndex, state);
+        }
+        emptyBlocks.set(blockIndex, state == FreeSpaceMap.EMPTY);
+        partiallyEmptyBlocks.set(blockIndex, state == FreeSpaceMap.PARTIALLY_EMPTY);
+        if (state == FreeSpaceMap.EMPTY) {
+            lowestEmptyCandidate = Math.min(lowestEmptyCandidate, blockIndex);
+        } else if (state == FreeSpaceMap.PARTIALLY_EMPTY) {
+            lowestPartiallyEmptyCandidate = Math.min(lowestPartiallyEmptyCandidate, blockIndex);
+        }
+    }
+
+    // Reads every page of the map that was not needed yet.
+    private List<Integer> collectBlocks(BitSet blocks) {
+        for (int page = 0; page < persistedPages; page++) {
+            loadPage(page);
+        }
+        List<Integer> result = new ArrayList<>();
+        for (int i = blocks.nextSetBit(0); i >= 0; i = blocks.nextSetBit(i + 1)) {
+            result.add(i);
+        }
+        return result;
     }
 
-    public void saveToFile() {
+    // Pages are loaded in order until one of them has a block in the set, so a lookup reads the map only
+    // as far as the first block it returns.
+    private int nextBlock(BitSet blocks, int fromIndex) {
+        if (fromIndex == NO_CANDIDATE) {
+            return -1;
+        }
+        for (int page = fromIndex / FreeSpaceMap.BLOCKS_PER_PAGE; page < persistedPages; page++) {
+            loadPage(page);
+            int next = blocks.nextSetBit(fromIndex);
+            if (next >= 0 && next / FreeSpaceMap.BLOCKS_PER_PAGE <= page) {
+                return next;
+            }
+        }
+        return blocks.nextSetBit(fromIndex);
+    }
+
+    private void loadPageOf(int blockIndex) {
+        int page = blockIndex / FreeSpaceMap.BLOCKS_PER_PAGE;
+        if (page < persistedPages) {
+            loadPage(page);
+        }
+    }
+
+    private void loadPage(int page) {
+        if (loadedPages.get(page)) {
+            return;
+        }
+        loadedPages.set(page);
+        int from = page * FreeSpaceMap.BLOCKS_PER_PAGE;
+        int to = from + FreeSpaceMap.BLOCKS_PER_PAGE;
+        loadStates(FreeSpaceMap.EMPTY, emptyBlocks, from, to);
+        loadStates(FreeSpaceMap.PARTIALLY_EMPTY, partiallyEmptyBlocks, from, to);
+    }
+
+    private void loadStates(int state, BitSet blocks, int from, int to) {
+        for (int i = freeSpaceMap.nextBlockInState(state, from, to); i >= 0;
+                i = freeSpaceMap.nextBlockInState(state, i + 1, to)) {
+            blocks.set(i);
+        }
+    }
+
+    // Free-space state lives in the map, so the .meta file only carries the block size. The two
+    // list counts are kept (as zero) so the file keeps the original layout.
+    public synchronized void saveToFile() {
+        writeMetadata();
+    }
+
+    // Kept apart from saveToFile() so the constructors do not call a method a subclass may override.
+    private void writeMetadata() {
         try {
             ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
             DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
 
             dataOutputStream.writeInt(blockSize);
-
-            dataOutputStream.writeInt(emptyBlocks.size());
-            for (int idx : emptyBlocks) {
-                dataOutputStream.writeInt(idx);
-            }
-
-            dataOutputStream.writeInt(partiallyEmptyBlocks.size());
-            for (int idx : partiallyEmptyBlocks) {
-                dataOutputStream.writeInt(idx);
-            }
+            dataOutputStream.writeInt(0);
+            dataOutputStream.writeInt(0);
 
             byte[] data = byteArrayOutputStream.toByteArray();
 
-            metadataFile.seek(0);
-            metadataFile.write(data);
+            metadataFile.write(0, ByteBuffer.wrap(data));
             metadataFile.truncate(data.length);
 
         } catch (IOException e) {
@@ -130,22 +276,29 @@ public class BlockManager {
                 throw new RuntimeException("Metadata file is empty or doesn't exist: " + metadataFilePath);
             }
 
-            metadataFile.seek(0);
-            DataInputStream dataInputStream = new DataInputStream(
-                    new ByteArrayInputStream(metadataFile.read((int) metadataFile.getSize())));
+            byte[] data = new byte[(int) metadataFile.getSize()];
+            metadataFile.read(0, ByteBuffer.wrap(data));
+            DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(data));
 
             this.blockSize = dataInputStream.readInt();
 
+            if (freeSpaceMap.exists()) {
+                return;
+            }
+
             int emptyCount = dataInputStream.readInt();
-            this.emptyBlocks = new ArrayList<>();
             for (int i = 0; i < emptyCount; i++) {
-                this.emptyBlocks.add(dataInputStream.readInt());
+                setBlockState(dataInputStream.readInt(), FreeSpaceMap.EMPTY);
             }
 
             int partialCount = dataInputStream.readInt();
-            this.partiallyEmptyBlocks = new ArrayList<>();
             for (int i = 0; i < partialCount; i++) {
-                this.partiallyEmptyBlocks.add(dataInputStream.readInt());
+                setBlockState(dataInputStream.readInt(), FreeSpaceMap.PARTIALLY_EMPTY);
+            }
+
+            if (emptyCount > 0 || partialCount > 0) {
+                freeSpaceMap.force();
+                writeMetadata();
             }
 
         } catch (IOException e) {
@@ -153,9 +306,13 @@ public class BlockManager {
         }
     }
 
-    public void close() {
+    public synchronized void force() {
+        freeSpaceMap.force();
+    }
+
+    public synchronized void close() {
         if (metadataFile != null) {
-            saveToFile();
+            freeSpaceMap.close();
             metadataFile.close();
         }
     }
@@ -0,0 +1,49 @@
+package UnsortedFile;
+
+import java.nio.ByteBuffer;
+
+// Flyweight over one serialized fixed-slot block (classic blocks, buckets and overflow blocks). The
+// valid record count is read from the trailer and records are handed out through a RecordView, so
+// nothing is decoded unless asked for. Slotted pages have no fixed record offsets and are not supported.
+public class BlockView<T extends StorableRecord> {
+
+    private final int recordSize;
+    private final int validCountOffset;
+    private ByteBuffer buffer;
+    private int offset;
+
+    public BlockView(int recordSize, int validCountOffset) {
+        this.recordSize = recordSize;
+        this.validCountOffset = validCountOffset;
+    }
+
+    public static <T extends StorableRecord> BlockView<T> of(Block<T> template) {
+        if (template instanceof SlottedBlock) {
+            throw new Error("Block views need fixed-size record slots; slotted pages are not supported");
+        }
+        return new BlockView<>(template.recordSize, template.validCountOffset());
+    }
+
+    public BlockView<T> wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    public int getValidCount() {
+        return buffer.getInt(offset + validCountOffset);
+    }
+
+    public int recordOffset(int index) {
+        return offset + index * recordSize;
+    }
+
+    public <V extends RecordView<T>> V record(int index, V view) {
+        view.wrap(buffer, recordOffset(index));
+        return view;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+}
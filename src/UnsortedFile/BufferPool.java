@@ -0,0 +1,331 @@
+package UnsortedFile;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+// Frames hold the encoded image of a block, and once it has been pinned also the decoded Block. read()
+// hands out the image, so every reader decodes a copy of its own. pin() hands out the decoded block,
+// which stays in the frame after the last unpin, so later pins neither decode nor allocate. Changing a
+// pinned block and unpinning it dirty, or putting that same block back, only marks the image stale;
+// it is encoded again when a copy, a write-back or an eviction needs it. Every pin needs exactly one
+// unpin, and the block may only be changed between the two while nobody reads or flushes it.
+public class BufferPool<T extends StorableRecord> {
+
+    private final int capacity;
+    private final int blockSize;
+    private final BiConsumer<Integer, ByteBuffer> writeBack;
+    // Told the block number once a write-back has landed and the frame is no longer being written.
+    private final IntConsumer writtenBack;
+    // Write-backs take this before the pool's monitor, so they reach the file in the order their images
+    // were taken while lookups and puts never wait on the file.
+    private final Object writeBackLock = new Object();
+
+    private final int[] frameBlockNumbers;
+    private final byte[][] frameImages;
+    private final List<Block<T>> decodedBlocks;
+    // Set when an image replaces the one a pinned block was decoded from; the block is dropped at the
+    // last unpin unless that unpin marks it dirty.
+    private final boolean[] decodedOutdated;
+    private final int[] pinCounts;
+    private final boolean[] dirty;
+    private final boolean[] writing;
+    private final boolean[] referenced;
+    private final Map<Integer, Integer> frameByBlockNumber;
+    private int clockHand;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long writeBackCount;
+
+    public BufferPool(int capacity, int blockSize, BiConsumer<Integer, ByteBuffer> writeBack) {
+        this(capacity, blockSize, writeBack, blockNumber -> {
+        });
+    }
+
+    public BufferPool(int capacity, int blockSize, BiConsumer<Integer, ByteBuffer> writeBack,
+            IntConsumer writtenBack) {
+        if (capacity < 1) {
+            throw new Error("Buffer pool capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.blockSize = blockSize;
+        this.writeBack = writeBack;
+        this.writtenBack = writtenBack;
+        this.frameBlockNumbers = new int[capacity];
+        this.frameImages = new byte[capacity][];
+        this.decodedBlocks = new ArrayList<>(Collections.nCopies(capacity, null));
+        this.decodedOutdated = new boolean[capacity];
+        this.pinCounts = new int[capacity];
+        this.dirty = new boolean[capacity];
+        this.writing = new boolean[capacity];
+        this.referenced = new boolean[capacity];
+        this.frameByBlockNumber = new HashMap<>();
+        this.clockHand = 0;
+        for (int i = 0; i < capacity; i++) {
+            frameBlockNumbers[i] = -1;
+        }
+    }
+
+    // The cached image as a read-only buffer, or null when the block is not cached.
+    public synchronized ByteBuffer read(int blockNumber) {
+        Integer frame = frameByBlockNumber.get(blockNumber);
+        if (frame == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        referenced[frame] = true;
+        return ByteBuffer.wrap(imageOf(frame)).asReadOnlyBuffer();
+    }
+
+    // Returns null without pinning when the block is not cached. Only the first pin of a frame decodes
+    // the image; every later one gets the same block.
+    public synchronized Block<T> pin(int blockNumber, Function<ByteBuffer, ? extends Block<T>> decoder) {
+        Integer frame = frameByBlockNumber.get(blockNumber);
+        if (frame == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        if (decodedBlocks.get(frame) == null) {
+            decodedBlocks.set(frame, decoder.apply(ByteBuffer.wrap(frameImages[frame]).asReadOnlyBuffer()));
+            decodedOutdated[frame] = false;
+        }
+        pinCounts[frame]++;
+        referenced[frame] = true;
+        return decodedBlocks.get(frame);
+    }
+
+    // A block that was invalidated while pinned is simply gone; unpinning one that is cached but not
+    // pinned is a caller bug.
+    public synchronized void unpin(int blockNumber, boolean markDirty) {
+        Integer frame = frameByBlockNumber.get(blockNumber);
+        if (frame == null) {
+            return;
+        }
+        if (pinCounts[frame] == 0) {
+            throw new Error("Block " + blockNumber + " is not pinned");
+        }
+        if (markDirty && decodedBlocks.get(frame) != null) {
+            frameImages[frame] = null;
+            decodedOutdated[frame] = false;
+            dirty[frame] = true;
+        }
+        pinCounts[frame]--;
+        if (pinCounts[frame] == 0 && decodedOutdated[frame]) {
+            decodedBlocks.set(frame, null);
+            decodedOutdated[frame] = false;
+        }
+    }
+
+    // Putting back the block the frame already holds costs no encoding; any other block is encoded into
+    // a new image.
+    public boolean put(int blockNumber, Block<T> block, boolean markDirty) {
+        synchronized (this) {
+            Integer frame = frameByBlockNumber.get(blockNumber);
+            if (frame != null && decodedBlocks.get(frame) == block) {
+                frameImages[frame] = null;
+                decodedOutdated[frame] = false;
+                dirty[frame] = dirty[frame] || markDirty;
+                referenced[frame] = true;
+                return true;
+            }
+        }
+        return putImage(blockNumber, encode(block), markDirty);
+    }
+
+    // The pool keeps the array, so the caller must not change it afterwards.
+    public boolean putImage(int blockNumber, byte[] image, boolean markDirty) {
+        while (true) {
+            int victimBlockNumber;
+            synchronized (this) {
+                Integer frame = frameByBlockNumber.get(blockNumber);
+                if (frame == null) {
+                    frame = findVictim();
+                    if (frame == -1) {
+                        return false;
+                    }
+                }
+                if (frameBlockNumbers[frame] == blockNumber || !dirty[frame]) {
+                    if (frameBlockNumbers[frame] != blockNumber) {
+                        if (frameBlockNumbers[frame] != -1) {
+                            releaseFrame(frame);
+                            evictionCount++;
+                        }
+                        frameBlockNumbers[frame] = blockNumber;
+                        frameByBlockNumber.put(blockNumber, frame);
+                    }
+                    frameImages[frame] = image;
+                    if (pinCounts[frame] == 0) {
+                        decodedBlocks.set(frame, null);
+                    } else {
+                        decodedOutdated[frame] = decodedBlocks.get(frame) != null;
+                    }
+                    dirty[frame] = dirty[frame] || markDirty;
+                    referenced[frame] = true;
+                    return true;
+                }
+                // A dirty victim is written back with the monitor released. Pinning it meanwhile keeps
+                // it cached, so nobody reads the file before the write lands, and keeps it from being
+                // picked again.
+                victimBlockNumber = frameBlockNumbers[frame];
+                pinCounts[frame]++;
+            }
+            flush(victimBlockNumber);
+            unpin(victimBlockNumber, false);
+        }
+    }
+
+    public synchronized boolean contains(int blockNumber) {
+        return frameByBlockNumber.containsKey(blockNumber);
+    }
+
+    // True while the cached image is newer than the file: the frame is dirty or its write-back has
+    // not landed yet.
+    public synchronized boolean isUnwritten(int blockNumber) {
+        Integer frame = frameByBlockNumber.get(blockNumber);
+        return frame != null && (dirty[frame] || writing[frame]);
+    }
+
+    // The frame stays pinned while its image is written, so it cannot be evicted and read back from the
+    // file before the write lands.
+    public void flush(int blockNumber) {
+        synchronized (writeBackLock) {
+            byte[] image;
+            synchronized (this) {
+                Integer frame = frameByBlockNumber.get(blockNumber);
+                if (frame == null || !dirty[frame]) {
+                    return;
+                }
+                image = imageOf(frame);
+                dirty[frame] = false;
+                writing[frame] = true;
+                pinCounts[frame]++;
+                writeBackCount++;
+            }
+            try {
+                writeBack.accept(blockNumber, ByteBuffer.wrap(image));
+            } finally {
+                synchronized (this) {
+                    Integer frame = frameByBlockNumber.get(blockNumber);
+                    if (frame != null) {
+                        writing[frame] = false;
+                    }
+                }
+                unpin(blockNumber, false);
+            }
+            writtenBack.accept(blockNumber);
+        }
+    }
+
+    public void flushAll() {
+        int[] blockNumbers;
+        synchronized (this) {
+            blockNumbers = frameByBlockNumber.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        }
+        for (int blockNumber : blockNumbers) {
+            flush(blockNumber);
+        }
+    }
+
+    public synchronized void invalidateFrom(int firstBlockNumber) {
+        for (int i = 0; i < capacity; i++) {
+            if (frameBlockNumbers[i] >= firstBlockNumber) {
+                releaseFrame(i);
+            }
+        }
+    }
+
+    public synchronized void invalidate(int blockNumber) {
+        Integer frame = frameByBlockNumber.get(blockNumber);
+        if (frame != null) {
+            releaseFrame(frame);
+        }
+    }
+
+    // Picks a free frame, or an unpinned one by the clock. The frame is not released here: a dirty one
+    // has to be written back first.
+    private int findVictim() {
+        for (int i = 0; i < capacity; i++) {
+            if (frameBlockNumbers[i] == -1) {
+                return i;
+            }
+        }
+
+        for (int sweep = 0; sweep < 2 * capacity; sweep++) {
+            int frame = clockHand;
+            clockHand = (clockHand + 1) % capacity;
+            if (pinCounts[frame] > 0) {
+                continue;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            return frame;
+        }
+        return -1;
+    }
+
+    private void releaseFrame(int frame) {
+        frameByBlockNumber.remove(frameBlockNumbers[frame]);
+        frameBlockNumbers[frame] = -1;
+        frameImages[frame] = null;
+        decodedBlocks.set(frame, null);
+        decodedOutdated[frame] = false;
+        pinCounts[frame] = 0;
+        dirty[frame] = false;
+        writing[frame] = false;
+        referenced[frame] = false;
+    }
+
+    private byte[] imageOf(int frame) {
+        if (frameImages[frame] == null) {
+            frameImages[frame] = encode(decodedBlocks.get(frame));
+        }
+        return frameImages[frame];
+    }
+
+    private byte[] encode(Block<T> block) {
+        byte[] image = new byte[blockSize];
+        block.writeTo(ByteBuffer.wrap(image));
+        return image;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getCachedBlockCount() {
+        return frameByBlockNumber.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long getWriteBackCount() {
+        return writeBackCount;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+}
@@ -0,0 +1,317 @@
+package UnsortedFile;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Stores every logical block run-length compressed in a run of fixed-size physical pages. The
+// indirection table in "<file>.pages" maps each block number to its first page and stored length,
+// so callers keep addressing blocks at blockNumber * blockSize while the data file only holds the
+// compressed pages. Blocks that do not shrink are stored raw (stored length == blockSize). A block is
+// never rewritten in place: it goes to free pages and the table entry is switched over afterwards. The
+// pages it leaves are only reused once force() has made the data and then the table durable, so the
+// durable table never points at pages written since. After a process crash every block reads back as
+// last written; after a machine crash a block written since the last force() may read back damaged,
+// but no other block does. When released pages pile up without a force(), a write that would grow
+// the file forces it first so they can be reused.
+public class CompressedBinaryFile extends BinaryFile {
+
+    private static final int MAGIC = 0x52424C31;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 8;
+    private static final int NO_PAGE = -1;
+    // The file is forced to reuse released pages once they make up this fraction of the used ones,
+    // rather than grown past them.
+    private static final int RELEASED_PAGES_DIVISOR = 8;
+
+    private final int blockSize;
+    private final int pageSize;
+    private final String pageTablePath;
+    private final BinaryFile pageTable;
+    private final BitSet usedPages;
+    // Pages no table entry points at any more, kept from reuse until the table is forced.
+    private final BitSet releasedPages;
+    private final byte[] blockBytes;
+    private final byte[] compressedBytes;
+
+    private int[] firstPages;
+    private int[] storedLengths;
+    private int blockCount;
+    private long position;
+
+    public CompressedBinaryFile(String pathToFile, int blockSize) {
+        this(pathToFile, blockSize, defaultPageSize(blockSize));
+    }
+
+    public CompressedBinaryFile(String pathToFile, int blockSize, int pageSize) {
+        super(pathToFile);
+        this.blockSize = blockSize;
+        this.pageSize = pageSize;
+        this.pageTablePath = pageTablePath(pathToFile);
+        this.pageTable = new BinaryFile(pageTablePath);
+        this.usedPages = new BitSet();
+        this.releasedPages = new BitSet();
+        this.blockBytes = new byte[blockSize];
+        this.compressedBytes = new byte[blockSize];
+        this.firstPages = new int[16];
+        this.storedLengths = new int[16];
+
+        try {
+            if (file.length() == 0) {
+                writeHeader();
+                pageTable.truncate(HEADER_SIZE);
+            } else if (pageTable.getSize() == 0) {
+                throw new RuntimeException("Missing compressed block table: " + pageTablePath);
+            } else {
+                loadPageTable();
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    public static String pageTablePath(String pathToFile) {
+        return pathToFile + ".pages";
+    }
+
+    public static int defaultPageSize(int blockSize) {
+        return Math.max(32, blockSize / 8);
+    }
+
+    // Blocks are stored compressed, so the bytes on disk are not the bytes at their offsets.
+    @Override
+    public boolean supportsAsyncIO() {
+        return false;
+    }
+
+    @Override
+    public synchronized void seek(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return (long) blockCount * blockSize;
+    }
+
+    public synchronized long getPhysicalSize() {
+        return (long) usedPages.length() * pageSize;
+    }
+
+    @Override
+    public synchronized void write(byte[] data) {
+        write(position, ByteBuffer.wrap(data));
+        position += data.length;
+    }
+
+    @Override
+    public synchronized byte[] read(int length) {
+        byte[] data = new byte[length];
+        read(position, ByteBuffer.wrap(data));
+        position += length;
+        return data;
+    }
+
+    @Override
+    public synchronized void read(long position, ByteBuffer destination) {
+        if (position + destination.remaining() > getSize()) {
+            throw new RuntimeException("Failed to read from file: reading past the end of the file");
+        }
+        while (destination.hasRemaining()) {
+            int blockNumber = (int) (position / blockSize);
+            int offset = (int) (position % blockSize);
+            int chunk = Math.min(destination.remaining(), blockSize - offset);
+            loadBlock(blockNumber);
+            destination.put(blockBytes, offset, chunk);
+            position += chunk;
+        }
+    }
+
+    @Override
+    public synchronized void write(long position, ByteBuffer source) {
+        while (source.hasRemaining()) {
+            int blockNumber = (int) (position / blockSize);
+            int offset = (int) (position % blockSize);
+            int chunk = Math.min(source.remaining(), blockSize - offset);
+            if (chunk < blockSize) {
+                loadBlock(blockNumber);
+            }
+            source.get(blockBytes, offset, chunk);
+            storeBlock(blockNumber);
+            position += chunk;
+        }
+    }
+
+    @Override
+    public synchronized void write(long position, ByteBuffer[] sources) {
+        for (ByteBuffer source : sources) {
+            int length = source.remaining();
+            write(position, source);
+            position += length;
+        }
+    }
+
+    @Override
+    public synchronized void truncate(long length) {
+        int keptBlocks = (int) ((length + blockSize - 1) / blockSize);
+        for (int i = keptBlocks; i < blockCount; i++) {
+            releasePages(i);
+        }
+        blockCount = Math.min(blockCount, keptBlocks);
+
+        writeHeader();
+        pageTable.truncate(HEADER_SIZE + (long) blockCount * ENTRY_SIZE);
+        super.truncate(getPhysicalSize());
+        if (position > length) {
+            position = length;
+        }
+    }
+
+    @Override
+    public synchronized void force() {
+        super.force();
+        pageTable.force();
+        usedPages.andNot(releasedPages);
+        releasedPages.clear();
+    }
+
+    @Override
+    public synchronized void close() {
+        writeHeader();
+        pageTable.close();
+        super.close();
+    }
+
+    private void loadBlock(int blockNumber) {
+        if (blockNumber >= blockCount || firstPages[blockNumber] == NO_PAGE) {
+            Arrays.fill(blockBytes, (byte) 0);
+            return;
+        }
+
+        int storedLength = storedLengths[blockNumber];
+        long pagePosition = (long) firstPages[blockNumber] * pageSize;
+        if (storedLength == blockSize) {
+            super.read(pagePosition, ByteBuffer.wrap(blockBytes));
+        } else {
+            super.read(pagePosition, ByteBuffer.wrap(compressedBytes, 0, storedLength));
+            RunLengthCodec.decompress(compressedBytes, storedLength, blockBytes, blockSize);
+        }
+    }
+
+    private void storeBlock(int blockNumber) {
+        int compressedLength = RunLengthCodec.compress(blockBytes, blockSize, compressedBytes);
+        boolean raw = compressedLength < 0 || compressedLength >= blockSize;
+        int storedLength = raw ? blockSize : compressedLength;
+        int pagesNeeded = (storedLength + pageSize - 1) / pageSize;
+
+        ensureEntries(blockNumber + 1);
+        for (int i = blockCount; i < blockNumber; i++) {
+            writeEntry(i);
+        }
+        int firstPage = allocatePages(pagesNeeded);
+        super.write((long) firstPage * pageSize, ByteBuffer.wrap(raw ? blockBytes : compressedBytes, 0, storedLength));
+        releasePages(blockNumber);
+        firstPages[blockNumber] = firstPage;
+        storedLengths[blockNumber] = storedLength;
+        writeEntry(blockNumber);
+
+        if (blockNumber >= blockCount) {
+            blockCount = blockNumber + 1;
+            writeHeader();
+        }
+    }
+
+    private int allocatePages(int count) {
+        int candidate = findFreePages(count);
+        if (candidate + count > usedPages.length()
+                && releasedPages.cardinality() * RELEASED_PAGES_DIVISOR >= usedPages.cardinality()) {
+            force();
+            candidate = findFreePages(count);
+        }
+        usedPages.set(candidate, candidate + count);
+        return candidate;
+    }
+
+    private int findFreePages(int count) {
+        int candidate = usedPages.nextClearBit(0);
+        while (true) {
+            int nextUsed = usedPages.nextSetBit(candidate);
+            if (nextUsed == -1 || nextUsed - candidate >= count) {
+                return candidate;
+            }
+            candidate = usedPages.nextClearBit(nextUsed);
+        }
+    }
+
+    private void releasePages(int blockNumber) {
+        int firstPage = firstPages[blockNumber];
+        if (firstPage != NO_PAGE) {
+            releasedPages.set(firstPage, firstPage + pagesFor(storedLengths[blockNumber]));
+            firstPages[blockNumber] = NO_PAGE;
+            storedLengths[blockNumber] = 0;
+        }
+    }
+
+    private int pagesFor(int storedLength) {
+        return (storedLength + pageSize - 1) / pageSize;
+    }
+
+    private void ensureEntries(int count) {
+        int oldLength = firstPages.length;
+        if (count > oldLength) {
+            int newLength = Math.max(count, oldLength * 2);
+            firstPages = Arrays.copyOf(firstPages, newLength);
+            storedLengths = Arrays.copyOf(storedLengths, newLength);
+            Arrays.fill(firstPages, oldLength, newLength, NO_PAGE);
+        }
+    }
+
+    private void writeEntry(int blockNumber) {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.putInt(firstPages[blockNumber]);
+        entry.putInt(storedLengths[blockNumber]);
+        entry.flip();
+        pageTable.write(HEADER_SIZE + (long) blockNumber * ENTRY_SIZE, entry);
+    }
+
+    private void writeHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(blockSize);
+        header.putInt(pageSize);
+        header.putInt(blockCount);
+        header.flip();
+        pageTable.write(0, header);
+    }
+
+    private void loadPageTable() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        pageTable.read(0, header);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new RuntimeException("Not a compressed block table: " + pageTablePath);
+        }
+        int storedBlockSize = header.getInt();
+        int storedPageSize = header.getInt();
+        if (storedBlockSize != blockSize || storedPageSize != pageSize) {
+            throw new RuntimeException("Compressed file was written with block size " + storedBlockSize
+                    + " and page size " + storedPageSize);
+        }
+        int count = header.getInt();
+
+        ByteBuffer entries = ByteBuffer.allocate(count * ENTRY_SIZE);
+        pageTable.read(HEADER_SIZE, entries);
+        entries.flip();
+        ensureEntries(count);
+        for (int i = 0; i < count; i++) {
+            firstPages[i] = entries.getInt();
+            storedLengths[i] = entries.getInt();
+            if (firstPages[i] != NO_PAGE) {
+                usedPages.set(firstPages[i], firstPages[i] + pagesFor(storedLengths[i]));
+            }
+        }
+        blockCount = count;
+    }
+}
@@ -0,0 +1,233 @@
+package UnsortedFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import LinearHashing.Core.Person;
+
+// Runs insert, get and delete from several threads at once on a heap with concurrent access enabled.
+// The buffer pool is kept far smaller than the heap, so blocks are evicted and written back while
+// other threads work on them.
+public class ConcurrencyTester {
+
+    private static final String TEST_DIRECTORY = "concurrencytest";
+    private static final int BLOCK_SIZE = 2048;
+    private static final int THREADS = 8;
+    private static final int PERSONS_PER_THREAD = 1500;
+    private static final int POOL_BLOCKS = 8;
+    private static final int LOCK_STRIPES = 16;
+
+    private static final TestReport report = new TestReport("HEAP CONCURRENCY TESTER");
+
+    public static void main(String[] args) {
+        report.printHeader();
+
+        try {
+            report.cleanDirectory(TEST_DIRECTORY);
+
+            Person[] persons = generatePersons();
+
+            report.runTestMethod("Concurrent inserts, gets and deletes keep every record and the free-space map",
+                    () -> testConcurrentInsertGetDelete(persons));
+            report.runTestMethod("Concurrent deletes that empty the tail truncate it while other threads read",
+                    () -> testConcurrentTailTruncation(persons));
+        } catch (Exception e) {
+            report.fatal(e);
+        }
+        report.printSummary();
+    }
+
+    private static String path(String name) {
+        return TEST_DIRECTORY + File.separator + name;
+    }
+
+    private static Person[] generatePersons() {
+        Person[] persons = new Person[THREADS * PERSONS_PER_THREAD];
+        for (int i = 0; i < persons.length; i++) {
+            Person person = new Person();
+            person.name = "Name" + (i % 37);
+            person.surname = "Surname" + (i % 53);
+            person.birthdate = 19500101L + i;
+            person.id = String.format("%08d", 20000000 + i);
+            persons[i] = person;
+        }
+        return persons;
+    }
+
+    private static Heap<Person> createHeap(String name) {
+        Heap<Person> heap = new Heap<>(path(name), BLOCK_SIZE, Person::new, false, 0, FileAccessMode.STANDARD);
+        heap.enableBufferPool(POOL_BLOCKS);
+        heap.enableConcurrentAccess(LOCK_STRIPES);
+        return heap;
+    }
+
+    private static Heap<Person> openHeap(String name) {
+        return new Heap<>(path(name), path(name + ".meta"), Person::new, false, 0, FileAccessMode.STANDARD);
+    }
+
+    // Runs one task per thread and waits for all of them; an exception in any task is rethrown.
+    private static void runThreads(ThreadTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    task.run(thread);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private interface ThreadTask {
+        void run(int thread) throws Exception;
+    }
+
+    // Every third record of each thread is deleted by the thread that inserted it.
+    private static boolean isDeleted(int index) {
+        return index % PERSONS_PER_THREAD % 3 == 0;
+    }
+
+    private static int countWrong(Heap<Person> heap, Person[] persons, AtomicIntegerArray blockNumbers) {
+        int wrong = 0;
+        for (int i = 0; i < persons.length; i++) {
+            boolean found = heap.get(blockNumbers.get(i), persons[i]) != null;
+            if (found == isDeleted(i)) {
+                wrong++;
+            }
+        }
+        return wrong;
+    }
+
+    private static void testConcurrentInsertGetDelete(Person[] persons) throws Exception {
+        Heap<Person> heap = createHeap("mixed");
+        AtomicIntegerArray blockNumbers = new AtomicIntegerArray(persons.length);
+        for (int i = 0; i < persons.length; i++) {
+            blockNumbers.set(i, -1);
+        }
+        AtomicInteger lostOwnRecords = new AtomicInteger();
+        AtomicInteger lostOtherRecords = new AtomicInteger();
+        AtomicInteger failedDeletes = new AtomicInteger();
+
+        runThreads(thread -> {
+            int first = thread * PERSONS_PER_THREAD;
+            int other = (thread + 1) % THREADS * PERSONS_PER_THREAD;
+            for (int i = first; i < first + PERSONS_PER_THREAD; i++) {
+                blockNumbers.set(i, heap.insert(persons[i]));
+                if (heap.get(blockNumbers.get(i), persons[i]) == null) {
+                    lostOwnRecords.incrementAndGet();
+                }
+
+                // A record of the next thread that it has already inserted and never deletes.
+                int otherIndex = other + (i - first);
+                int otherBlock = blockNumbers.get(otherIndex);
+                if (otherBlock != -1 && !isDeleted(otherIndex) && heap.get(otherBlock, persons[otherIndex]) == null) {
+                    lostOtherRecords.incrementAndGet();
+                }
+
+                // Deleting a few records behind the insert point keeps freeing space other threads reuse.
+                int deleteIndex = i - 10;
+                if (deleteIndex >= first && isDeleted(deleteIndex)
+                        && !heap.delete(blockNumbers.get(deleteIndex), persons[deleteIndex], Block<Person>::new,
+                                null, null)) {
+                    failedDeletes.incrementAndGet();
+                }
+            }
+            for (int i = first + PERSONS_PER_THREAD - 10; i < first + PERSONS_PER_THREAD; i++) {
+                if (isDeleted(i) && !heap.delete(blockNumbers.get(i), persons[i], Block<Person>::new, null, null)) {
+                    failedDeletes.incrementAndGet();
+                }
+            }
+        });
+
+        BufferPool<Person> pool = heap.getBufferPool();
+        long evictions = pool.getEvictionCount();
+        long writeBacks = pool.getWriteBackCount();
+        int expected = 0;
+        for (int i = 0; i < persons.length; i++) {
+            if (!isDeleted(i)) {
+                expected++;
+            }
+        }
+        int wrong = countWrong(heap, persons, blockNumbers);
+        long scanned = heap.scan().count();
+        heap.flush();
+        int mismatches = RecoveryTester.countStateMismatches(heap);
+        heap.close();
+
+        Heap<Person> reopened = openHeap("mixed");
+        int wrongAfterReopen = countWrong(reopened, persons, blockNumbers);
+        long scannedAfterReopen = reopened.scan().count();
+        int mismatchesAfterReopen = RecoveryTester.countStateMismatches(reopened);
+        reopened.close();
+
+        report.check(lostOwnRecords.get() == 0 && lostOtherRecords.get() == 0 && failedDeletes.get() == 0
+                && evictions > 0 && writeBacks > 0 && wrong == 0 && scanned == expected && mismatches == 0
+                && wrongAfterReopen == 0 && scannedAfterReopen == expected && mismatchesAfterReopen == 0,
+                expected + " records from " + THREADS + " threads, " + evictions + " evictions, " + writeBacks
+                        + " write-backs",
+                lostOwnRecords + " own and " + lostOtherRecords + " other records not found while running, "
+                        + failedDeletes + " deletes failed, " + evictions + " evictions, " + writeBacks
+                        + " write-backs, " + wrong + " wrong and " + scanned + " of " + expected + " scanned, "
+                        + mismatches + " mismatched states; after reopening " + wrongAfterReopen + " wrong, "
+                        + scannedAfterReopen + " scanned, " + mismatchesAfterReopen + " mismatched");
+    }
+
+    private static void testConcurrentTailTruncation(Person[] persons) throws Exception {
+        Heap<Person> heap = createHeap("tail");
+        int[] blockNumbers = new int[persons.length];
+        for (int i = 0; i < persons.length; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        int blocksBefore = heap.getTotalBlockCount();
+
+        // Half of the threads empty the second half of the heap, the other half read the first half.
+        int half = persons.length / 2;
+        int slice = half / (THREADS / 2);
+        AtomicInteger failedDeletes = new AtomicInteger();
+        AtomicInteger lostRecords = new AtomicInteger();
+        runThreads(thread -> {
+            int first = thread / 2 * slice;
+            for (int i = first; i < first + slice; i++) {
+                if (thread % 2 == 0) {
+                    if (!heap.delete(blockNumbers[half + i], persons[half + i], Block<Person>::new, null, null)) {
+                        failedDeletes.incrementAndGet();
+                    }
+                } else if (heap.get(blockNumbers[i], persons[i]) == null) {
+                    lostRecords.incrementAndGet();
+                }
+            }
+        });
+
+        int blocksAfter = heap.getTotalBlockCount();
+        int missing = 0;
+        for (int i = 0; i < half; i++) {
+            if (heap.get(blockNumbers[i], persons[i]) == null) {
+                missing++;
+            }
+        }
+        long scanned = heap.scan().count();
+        heap.flush();
+        int mismatches = RecoveryTester.countStateMismatches(heap);
+        heap.close();
+
+        report.check(failedDeletes.get() == 0 && lostRecords.get() == 0 && missing == 0 && scanned == half
+                && blocksAfter < blocksBefore && mismatches == 0,
+                blocksBefore + " blocks truncated to " + blocksAfter + ", all " + half + " remaining records found",
+                failedDeletes + " deletes failed, " + lostRecords + " records not found while running, " + missing
+                        + " missing and " + scanned + " of " + half + " scanned afterwards, " + blocksBefore
+                        + " -> " + blocksAfter + " blocks, " + mismatches + " mismatched states");
+    }
+}
@@ -0,0 +1,234 @@
+package UnsortedFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Reads and writes bypass the OS page cache (O_DIRECT). The kernel then requires file offsets,
+// lengths and buffer addresses to be multiples of the file system block size. Buffers from
+// allocateBuffer() meet that and go straight to the device; anything else is copied through an
+// aligned bounce buffer, with a read-modify-write for partial blocks.
+public class DirectBinaryFile extends BinaryFile {
+
+    // O_DIRECT is only offered by the JDK's own open option in jdk.unsupported. It is looked up by name
+    // so that nothing else here depends on that internal API, and a JDK without it fails on open.
+    private static final String DIRECT_OPTION_CLASS = "com.sun.nio.file.ExtendedOpenOption";
+
+    private final FileChannel directChannel;
+    private final int alignment;
+    private final ThreadLocal<ByteBuffer> bounceBuffer = new ThreadLocal<>();
+    private long position;
+
+    public DirectBinaryFile(String pathToFile) {
+        super(pathToFile);
+        try {
+            Path path = Paths.get(pathToFile);
+            this.alignment = fileSystemBlockSize(pathToFile);
+            this.directChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    directOpenOption());
+        } catch (Exception e) {
+            throw new Error("Failed to open file for direct I/O: " + pathToFile, e);
+        }
+    }
+
+    private static OpenOption directOpenOption() {
+        try {
+            for (Object option : Class.forName(DIRECT_OPTION_CLASS).getEnumConstants()) {
+                if (((Enum<?>) option).name().equals("DIRECT")) {
+                    return (OpenOption) option;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            // Falls through to the error below.
+        }
+        throw new Error("This JDK has no " + DIRECT_OPTION_CLASS + ".DIRECT; direct I/O is not possible");
+    }
+
+    public static int fileSystemBlockSize(String pathToFile) {
+        try {
+            Path path = Paths.get(pathToFile).toAbsolutePath();
+            Path probe = Files.exists(path) ? path : path.getParent();
+            return (int) Files.getFileStore(probe).getBlockSize();
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    public static int alignBlockSize(String pathToFile, int blockSize) {
+        int alignment = fileSystemBlockSize(pathToFile);
+        return (blockSize + alignment - 1) / alignment * alignment;
+    }
+
+    public int getAlignment() {
+        return alignment;
+    }
+
+    // A second, cached channel on the same file would not stay coherent with the direct one.
+    @Override
+    public boolean supportsAsyncIO() {
+        return false;
+    }
+
+    @Override
+    public ByteBuffer allocateBuffer(int size) {
+        int alignedSize = roundUp(size);
+        return ByteBuffer.allocateDirect(alignedSize + alignment).alignedSlice(alignment).slice(0, size);
+    }
+
+    @Override
+    public void seek(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public void write(byte[] data) {
+        write(position, ByteBuffer.wrap(data));
+        position += data.length;
+    }
+
+    @Override
+    public byte[] read(int length) {
+        byte[] data = new byte[length];
+        read(position, ByteBuffer.wrap(data));
+        position += length;
+        return data;
+    }
+
+    @Override
+    public void read(long position, ByteBuffer destination) {
+        if (position + destination.remaining() > getSize()) {
+            throw new RuntimeException("Failed to read from file: reading past the end of the file");
+        }
+        if (isAligned(position, destination)) {
+            readDirect(position, destination);
+            return;
+        }
+
+        long alignedStart = position / alignment * alignment;
+        int length = (int) (roundUp(position + destination.remaining()) - alignedStart);
+        ByteBuffer bounce = bounce(length);
+        readDirect(alignedStart, bounce);
+        bounce.position((int) (position - alignedStart));
+        bounce.limit(bounce.position() + destination.remaining());
+        destination.put(bounce);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer source) {
+        if (isAligned(position, source)) {
+            writeDirect(position, source);
+            return;
+        }
+
+        long oldSize = getSize();
+        long end = position + source.remaining();
+        long alignedStart = position / alignment * alignment;
+        long alignedEnd = roundUp(end);
+        ByteBuffer bounce = bounce((int) (alignedEnd - alignedStart));
+        if (alignedStart != position || alignedEnd != end) {
+            readDirect(alignedStart, bounce);
+            bounce.clear().limit((int) (alignedEnd - alignedStart));
+        }
+        bounce.position((int) (position - alignedStart));
+        bounce.put(source);
+        bounce.position(0);
+        writeDirect(alignedStart, bounce);
+
+        // The padding after the last written byte must not become part of the file.
+        if (alignedEnd > Math.max(oldSize, end)) {
+            truncate(Math.max(oldSize, end));
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer[] sources) {
+        int length = 0;
+        for (ByteBuffer source : sources) {
+            length += source.remaining();
+        }
+        ByteBuffer gathered = position % alignment == 0 && length % alignment == 0
+                ? bounce(length) : ByteBuffer.allocate(length);
+        for (ByteBuffer source : sources) {
+            gathered.put(source);
+        }
+        gathered.flip();
+        write(position, gathered);
+    }
+
+    // Direct writes skip the page cache but can still sit in the device's write cache.
+    @Override
+    public void force() {
+        try {
+            directChannel.force(false);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            directChannel.close();
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+        super.close();
+    }
+
+    private boolean isAligned(long position, ByteBuffer buffer) {
+        return buffer.isDirect() && position % alignment == 0 && buffer.remaining() % alignment == 0
+                && buffer.alignmentOffset(buffer.position(), alignment) == 0;
+    }
+
+    // Stops at the end of the file and zero-fills the rest, which only happens for the aligned
+    // padding around a partial write.
+    private void readDirect(long position, ByteBuffer destination) {
+        try {
+            while (destination.hasRemaining()) {
+                int bytesRead = directChannel.read(destination, position);
+                if (bytesRead < 0) {
+                    while (destination.hasRemaining()) {
+                        destination.put((byte) 0);
+                    }
+                    return;
+                }
+                position += bytesRead;
+            }
+        } catch (java.io.IOException e) {
+            throw new RuntimeException("Failed to read from file", e);
+        }
+    }
+
+    private void writeDirect(long position, ByteBuffer source) {
+        try {
+            while (source.hasRemaining()) {
+                position += directChannel.write(source, position);
+            }
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    private ByteBuffer bounce(int length) {
+        ByteBuffer buffer = bounceBuffer.get();
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = allocateBuffer(roundUp(length));
+            bounceBuffer.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    private int roundUp(int size) {
+        return (size + alignment - 1) / alignment * alignment;
+    }
+
+    private long roundUp(long size) {
+        return (size + alignment - 1) / alignment * alignment;
+    }
+}
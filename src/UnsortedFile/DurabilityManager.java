@@ -0,0 +1,127 @@
+package UnsortedFile;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides when written data is forced to the device. Every finished logical operation calls commit().
+// PERIODIC only counts the commit and a background thread forces every intervalMillis if anything
+// was committed since the last force, so at most one interval of work is lost on a crash.
+// PER_OPERATION forces before commit() returns. Commits that arrive while a force is running wait
+// for it and are then covered by a single shared force (group commit), so concurrent writers pay
+// for far fewer forces than operations.
+public class DurabilityManager {
+
+    private final DurabilityMode mode;
+    private final long intervalMillis;
+    private final Runnable forceAction;
+    private final AtomicLong commitSequence = new AtomicLong();
+    private final Object forceLock = new Object();
+    private long forcedSequence;
+    private long forceCount;
+    private ScheduledExecutorService flusher;
+    private volatile RuntimeException flusherFailure;
+
+    public DurabilityManager(DurabilityMode mode, long intervalMillis, Runnable forceAction) {
+        if (mode == DurabilityMode.PERIODIC && intervalMillis <= 0) {
+            throw new Error("Flush interval must be positive");
+        }
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+        this.forceAction = forceAction;
+
+        if (mode == DurabilityMode.PERIODIC) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "durability-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushInBackground, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void commit() {
+        if (mode == DurabilityMode.NONE) {
+            return;
+        }
+        long ticket = commitSequence.incrementAndGet();
+        if (mode == DurabilityMode.PERIODIC) {
+            RuntimeException failure = flusherFailure;
+            if (failure != null) {
+                throw new RuntimeException("Background flush failed", failure);
+            }
+            return;
+        }
+
+        synchronized (forceLock) {
+            if (forcedSequence >= ticket) {
+                return;
+            }
+            forceUpTo(commitSequence.get());
+        }
+    }
+
+    // Forces everything committed so far, whatever the mode.
+    public void sync() {
+        synchronized (forceLock) {
+            forceUpTo(commitSequence.get());
+        }
+    }
+
+    private void flushInBackground() {
+        try {
+            synchronized (forceLock) {
+                long target = commitSequence.get();
+                if (target > forcedSequence) {
+                    forceUpTo(target);
+                }
+            }
+        } catch (RuntimeException e) {
+            flusherFailure = e;
+        }
+    }
+
+    // Commits numbered up to target finished their writes before target was read, so one force
+    // started afterwards covers all of them.
+    private void forceUpTo(long target) {
+        forceAction.run();
+        forceCount++;
+        forcedSequence = target;
+    }
+
+    public DurabilityMode getMode() {
+        return mode;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public long getCommitCount() {
+        return commitSequence.get();
+    }
+
+    public long getForceCount() {
+        synchronized (forceLock) {
+            return forceCount;
+        }
+    }
+
+    // Stops the background thread and forces whatever is still pending.
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(intervalMillis + 1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusher = null;
+        }
+        if (mode != DurabilityMode.NONE) {
+            sync();
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package UnsortedFile;
+
+public enum DurabilityMode {
+    NONE,
+    PERIODIC,
+    PER_OPERATION
+}
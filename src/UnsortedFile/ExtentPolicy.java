@@ -0,0 +1,62 @@
+package UnsortedFile;
+
+// How a preallocated file grows and shrinks. Fixed extents add the same amount every time; doubling
+// extents add as much as the file already holds, starting at initialBytes and capped at
+// maxExtentBytes. The physical file is only cut back once more than shrinkThresholdBytes past the
+// end of data are unused, so a file that hovers around one size keeps its space.
+public final class ExtentPolicy {
+
+    private final long initialBytes;
+    private final long maxExtentBytes;
+    private final long shrinkThresholdBytes;
+
+    private ExtentPolicy(long initialBytes, long maxExtentBytes, long shrinkThresholdBytes) {
+        if (initialBytes <= 0 || maxExtentBytes < initialBytes || shrinkThresholdBytes < 0) {
+            throw new Error("Invalid extent policy");
+        }
+        this.initialBytes = initialBytes;
+        this.maxExtentBytes = maxExtentBytes;
+        this.shrinkThresholdBytes = shrinkThresholdBytes;
+    }
+
+    public static ExtentPolicy fixed(long extentBytes) {
+        return new ExtentPolicy(extentBytes, extentBytes, 2 * extentBytes);
+    }
+
+    public static ExtentPolicy doubling(long initialBytes, long maxExtentBytes) {
+        return new ExtentPolicy(initialBytes, maxExtentBytes, 2 * maxExtentBytes);
+    }
+
+    public ExtentPolicy withShrinkThreshold(long shrinkThresholdBytes) {
+        return new ExtentPolicy(initialBytes, maxExtentBytes, shrinkThresholdBytes);
+    }
+
+    public long getInitialBytes() {
+        return initialBytes;
+    }
+
+    public long getMaxExtentBytes() {
+        return maxExtentBytes;
+    }
+
+    public long getShrinkThresholdBytes() {
+        return shrinkThresholdBytes;
+    }
+
+    long grownSize(long physicalSize, long requiredSize) {
+        long size = physicalSize;
+        while (size < requiredSize) {
+            size += Math.min(maxExtentBytes, Math.max(initialBytes, size));
+        }
+        return size;
+    }
+
+    boolean shouldShrink(long physicalSize, long logicalSize) {
+        return physicalSize - logicalSize > shrinkThresholdBytes;
+    }
+
+    // Keeps one initial extent of room past the end of data.
+    long shrunkSize(long logicalSize) {
+        return (logicalSize / initialBytes + 1) * initialBytes;
+    }
+}
@@ -0,0 +1,9 @@
+package UnsortedFile;
+
+public enum FileAccessMode {
+    STANDARD,
+    MEMORY_MAPPED,
+    COMPRESSED,
+    DIRECT,
+    SEGMENTED
+}
@@ -0,0 +1,163 @@
+package UnsortedFile;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Memory-mapped sidecar with two bits of state per block. Updating a block touches only the page
+// holding its word, and opening the map does not read it.
+public class FreeSpaceMap {
+
+    public static final int FULL = 0;
+    public static final int EMPTY = 1;
+    public static final int PARTIALLY_EMPTY = 2;
+
+    private static final int MAGIC = 0x46534D31;
+    private static final int HEADER_SIZE = 16;
+    private static final int PAGE_SIZE = 4096;
+    private static final int BLOCKS_PER_WORD = 32;
+    // Blocks covered by one page of the mapping.
+    public static final int BLOCKS_PER_PAGE = PAGE_SIZE / 8 * BLOCKS_PER_WORD;
+    private static final long LOW_BITS = 0x5555555555555555L;
+
+    private final String path;
+    private RandomAccessFile file;
+    private MappedByteBuffer map;
+    private int capacityInWords;
+
+    public FreeSpaceMap(String path) {
+        this.path = path;
+        if (new File(path).exists()) {
+            open();
+        }
+    }
+
+    public boolean exists() {
+        return map != null;
+    }
+
+    // Blocks the mapping has room for; every block past them is full.
+    public long getCapacityInBlocks() {
+        return map == null ? 0 : (long) capacityInWords * BLOCKS_PER_WORD;
+    }
+
+    public int getState(int blockIndex) {
+        int word = blockIndex / BLOCKS_PER_WORD;
+        if (map == null || word >= capacityInWords) {
+            return FULL;
+        }
+        int shift = 2 * (blockIndex % BLOCKS_PER_WORD);
+        return (int) ((readWord(word) >>> shift) & 3L);
+    }
+
+    public void setState(int blockIndex, int state) {
+        int word = blockIndex / BLOCKS_PER_WORD;
+        if (state == FULL && (map == null || word >= capacityInWords)) {
+            return;
+        }
+        ensureCapacity(word + 1);
+        int shift = 2 * (blockIndex % BLOCKS_PER_WORD);
+        long value = readWord(word);
+        value = (value & ~(3L << shift)) | ((long) state << shift);
+        map.putLong(HEADER_SIZE + word * 8, value);
+    }
+
+    public int nextBlockInState(int state, int fromIndex) {
+        return nextBlockInState(state, fromIndex, Integer.MAX_VALUE);
+    }
+
+    // Lowest block in [fromIndex, toIndex) with the given state, or -1.
+    public int nextBlockInState(int state, int fromIndex, int toIndex) {
+        if (map == null) {
+            return -1;
+        }
+        long pattern = state * LOW_BITS;
+        int endWord = (int) Math.min(capacityInWords, ((long) toIndex + BLOCKS_PER_WORD - 1) / BLOCKS_PER_WORD);
+        for (int word = fromIndex / BLOCKS_PER_WORD; word < endWord; word++) {
+            long difference = readWord(word) ^ pattern;
+            long matches = ~(difference | (difference >>> 1)) & LOW_BITS;
+            if (word == fromIndex / BLOCKS_PER_WORD) {
+                matches &= -1L << (2 * (fromIndex % BLOCKS_PER_WORD));
+            }
+            if (matches != 0) {
+                int blockIndex = word * BLOCKS_PER_WORD + Long.numberOfTrailingZeros(matches) / 2;
+                return blockIndex < toIndex ? blockIndex : -1;
+            }
+        }
+        return -1;
+    }
+
+    public void force() {
+        if (map != null) {
+            map.force();
+        }
+    }
+
+    public void close() {
+        try {
+            force();
+            map = null;
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    public static void delete(String path) {
+        File f = new File(path);
+        if (f.exists()) {
+            f.delete();
+        }
+    }
+
+    private long readWord(int word) {
+        return map.getLong(HEADER_SIZE + word * 8);
+    }
+
+    private void open() {
+        try {
+            boolean isNew = !new File(path).exists();
+            this.file = new RandomAccessFile(path, "rw");
+            if (isNew) {
+                mapWords(PAGE_SIZE / 8);
+                map.putInt(0, MAGIC);
+            } else {
+                mapWords((int) ((file.length() - HEADER_SIZE) / 8));
+                if (map.getInt(0) != MAGIC) {
+                    throw new RuntimeException("Not a free space map file: " + path);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    private void ensureCapacity(int words) {
+        if (map == null) {
+            open();
+        }
+        if (words <= capacityInWords) {
+            return;
+        }
+        int pageWords = PAGE_SIZE / 8;
+        int grownWords = Math.max(words, capacityInWords * 2);
+        mapWords((grownWords + pageWords - 1) / pageWords * pageWords);
+    }
+
+    private void mapWords(int words) {
+        try {
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) words * 8);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            capacityInWords = words;
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
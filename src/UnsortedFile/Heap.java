@@ -1,29 +1,89 @@
 package UnsortedFile;
 
 import java.io.File;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import LinearHashing.Bucket;
 
 public class Heap<T extends StorableRecord> {
 
+    private static final int MAX_RUN_BYTES = 1 << 20;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    private static final int DEFAULT_DIRECT_POOL_BLOCKS = 256;
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
     private int blockSize;
     private int recordSize;
     private int blockingFactor;
-    private Class<T> recordClass;
+    private Supplier<T> recordFactory;
+    private String pathToFile;
     private BinaryFile binaryFile;
+    private PreallocatedBinaryFile preallocatedFile;
+    private AsyncBlockChannel asyncChannel;
     private BlockManager blockManager;
     private boolean directBlockAddressingMode;
+    private BlockLayout blockLayout;
+    private BufferPool<T> bufferPool;
+    private boolean lazyDecoding;
+    private ReentrantReadWriteLock structureLock;
+    private ReentrantReadWriteLock[] blockLocks;
+    private int reservedBlockCount;
+    private DurabilityManager durability;
+    private WriteAheadLog writeAheadLog;
+    private boolean ownsWriteAheadLog;
+    // Set by the create constructor; a log found next to a heap created in this run is not its own.
+    private boolean newFile;
+    private final ThreadLocal<ByteBuffer> blockBuffer = ThreadLocal.withInitial(() -> binaryFile.allocateBuffer(blockSize));
+    private final Map<Class<?>, BlockFactory<T, ? extends Block<T>>> blockFactories = new ConcurrentHashMap<>();
 
     public Heap(String pathToFile, int blockSize, Class<T> recordClass, boolean directBlockAddressingMode,
             int reservedBytes) {
+        this(pathToFile, blockSize, recordClass, directBlockAddressingMode, reservedBytes, FileAccessMode.STANDARD);
+    }
+
+    public Heap(String pathToFile, int blockSize, Class<T> recordClass, boolean directBlockAddressingMode,
+            int reservedBytes, FileAccessMode accessMode) {
+        this(pathToFile, blockSize, StorableRecord.factoryOf(recordClass), directBlockAddressingMode, reservedBytes,
+                accessMode);
+    }
+
+    public Heap(String pathToFile, int blockSize, Supplier<T> recordFactory, boolean directBlockAddressingMode,
+            int reservedBytes, FileAccessMode accessMode) {
+        this(pathToFile, blockSize, recordFactory, directBlockAddressingMode, reservedBytes, accessMode,
+                BlockLayout.FIXED_SLOTS);
+    }
+
+    public Heap(String pathToFile, int blockSize, Supplier<T> recordFactory, boolean directBlockAddressingMode,
+            int reservedBytes, FileAccessMode accessMode, BlockLayout blockLayout) {
         try {
-            this.recordClass = recordClass;
+            this.recordFactory = recordFactory;
             this.directBlockAddressingMode = directBlockAddressingMode;
-            this.blockSize = blockSize;
+            this.blockLayout = blockLayout;
+            // Direct I/O transfers whole file system blocks, so the heap block is padded up to one.
+            this.blockSize = accessMode == FileAccessMode.DIRECT
+                    ? DirectBinaryFile.alignBlockSize(pathToFile, blockSize) : blockSize;
 
+            // A segment directory is kept so that a placement set up with SegmentedBinaryFile.create
+            // survives; its segments are dropped by the truncate below. Anything else at the path, such
+            // as a heap file written in another mode, is deleted.
             File heapFile = new File(pathToFile);
-            if (heapFile.exists()) {
+            if (heapFile.exists() && !(accessMode == FileAccessMode.SEGMENTED
+                    && SegmentedBinaryFile.isSegmentDirectory(pathToFile))) {
                 heapFile.delete();
             }
             String metadataPath = pathToFile + ".meta";
@@ -31,108 +91,343 @@ public class Heap<T extends StorableRecord> {
             if (metaFile.exists()) {
                 metaFile.delete();
             }
+            new File(PreallocatedBinaryFile.endOfDataPath(pathToFile)).delete();
+            new File(MappedBinaryFile.logicalSizePath(pathToFile)).delete();
 
-            T templateRecord = recordClass.getDeclaredConstructor().newInstance();
-            this.recordSize = templateRecord.sizeInBytes();
+            this.recordSize = recordFactory.get().sizeInBytes();
 
-            this.blockingFactor = (int) Math.floor((double) (this.blockSize - reservedBytes) / this.recordSize);
+            this.blockingFactor = computeBlockingFactor(reservedBytes);
 
-            if (this.blockingFactor < 1) {
-                throw new Error("Record size (" + recordSize + ") is larger than Block size (" + blockSize + ")");
+            this.pathToFile = pathToFile;
+            this.binaryFile = BinaryFile.open(pathToFile, accessMode, this.blockSize);
+            if (binaryFile.getSize() > 0) {
+                binaryFile.truncate(0);
             }
-
-            this.binaryFile = new BinaryFile(pathToFile);
-            this.blockManager = new BlockManager(metadataPath, blockSize);
+            this.blockManager = new BlockManager(metadataPath, this.blockSize);
 
             if (directBlockAddressingMode) {
                 this.blockManager.close();
                 this.blockManager = null;
+            } else {
+                this.blockManager.setUnwrittenBlocks(this::isBlockUnwritten);
             }
+            this.newFile = true;
+            enableDefaultBufferPool();
         } catch (Exception e) {
             throw new Error("Failed to create new heap", e);
         }
     }
 
+    // Without the page cache every uncached read goes to the device, so direct I/O heaps always
+    // start with a block cache. It can still be resized or disabled afterwards. The constructors
+    // cannot go through enableBufferPool(), which a subclass may override.
+    private void enableDefaultBufferPool() {
+        if (binaryFile instanceof DirectBinaryFile) {
+            this.bufferPool = newBufferPool(DEFAULT_DIRECT_POOL_BLOCKS);
+        }
+    }
+
     public Heap(String pathToFile, String metadataPath, Class<T> recordClass, boolean directBlockAddressingMode,
             int reservedBytes) {
+        this(pathToFile, metadataPath, recordClass, directBlockAddressingMode, reservedBytes, FileAccessMode.STANDARD);
+    }
+
+    public Heap(String pathToFile, String metadataPath, Class<T> recordClass, boolean directBlockAddressingMode,
+            int reservedBytes, FileAccessMode accessMode) {
+        this(pathToFile, metadataPath, StorableRecord.factoryOf(recordClass), directBlockAddressingMode, reservedBytes,
+                accessMode);
+    }
+
+    public Heap(String pathToFile, String metadataPath, Supplier<T> recordFactory, boolean directBlockAddressingMode,
+            int reservedBytes, FileAccessMode accessMode) {
+        this(pathToFile, metadataPath, recordFactory, directBlockAddressingMode, reservedBytes, accessMode,
+                BlockLayout.FIXED_SLOTS);
+    }
+
+    public Heap(String pathToFile, String metadataPath, Supplier<T> recordFactory, boolean directBlockAddressingMode,
+            int reservedBytes, FileAccessMode accessMode, BlockLayout blockLayout) {
         try {
-            this.recordClass = recordClass;
+            this.recordFactory = recordFactory;
             this.directBlockAddressingMode = directBlockAddressingMode;
+            this.blockLayout = blockLayout;
 
             this.blockManager = new BlockManager(metadataPath);
             this.blockSize = blockManager.getBlockSize();
 
-            T templateRecord = recordClass.getDeclaredConstructor().newInstance();
-            this.recordSize = templateRecord.sizeInBytes();
+            this.recordSize = recordFactory.get().sizeInBytes();
 
-            this.blockingFactor = (int) Math.floor((double) (this.blockSize - reservedBytes) / this.recordSize);
+            this.blockingFactor = computeBlockingFactor(reservedBytes);
 
-            if (this.blockingFactor < 1) {
-                throw new Error("Record size (" + recordSize + ") is larger than Block size (" + blockSize + ")");
+            this.pathToFile = pathToFile;
+            this.binaryFile = BinaryFile.open(pathToFile, accessMode, blockSize);
+            if (binaryFile instanceof DirectBinaryFile && blockSize % ((DirectBinaryFile) binaryFile).getAlignment() != 0) {
+                throw new Error("Block size " + blockSize + " is not a multiple of the file system block size "
+                        + ((DirectBinaryFile) binaryFile).getAlignment() + "; direct I/O is not possible");
             }
-
-            this.binaryFile = new BinaryFile(pathToFile);
+            PreallocatedBinaryFile.trimToEndOfData(binaryFile, pathToFile, blockSize);
 
             if (directBlockAddressingMode) {
                 this.blockManager.close();
                 this.blockManager = null;
+            } else {
+                this.blockManager.setUnwrittenBlocks(this::isBlockUnwritten);
             }
+            enableDefaultBufferPool();
         } catch (Exception e) {
             throw new Error("Failed to open existing heap", e);
         }
     }
 
+    // A slotted page holds as many records as fit by their encoded size, so its blocking factor is
+    // only an upper bound on the slot count.
+    private int computeBlockingFactor(int reservedBytes) {
+        if (blockLayout == BlockLayout.SLOTTED_PAGE) {
+            if (directBlockAddressingMode) {
+                throw new Error("Slotted pages can only be used in classic heap");
+            }
+            return SlottedBlock.maxSlots(blockSize);
+        }
+
+        int blockingFactor = (int) Math.floor((double) (this.blockSize - reservedBytes) / this.recordSize);
+        if (blockingFactor < 1) {
+            throw new Error("Record size (" + recordSize + ") is larger than Block size (" + blockSize + ")");
+        }
+        return blockingFactor;
+    }
+
     public int insert(T instance) {
+        int blockNumber = insertRecord(instance);
+        commit();
+        return blockNumber;
+    }
+
+    private int insertRecord(T instance) {
         if (directBlockAddressingMode) {
             throw new Error("Cannot use insert() in sequential mode.");
         }
 
-        int blockNumber = -1;
-        Block<T> block = null;
+        Map<Integer, Block<T>> skippedBlocks = null;
+        lockStructure(false);
+        try {
+            while (true) {
+                int blockNumber = nextFreeBlock(true);
 
-        blockNumber = blockManager.getNextPartiallyEmptyBlock();
+                boolean newBlock = blockNumber == -1;
+                if (newBlock) {
+                    blockNumber = reserveNewBlockNumber();
+                }
 
-        if (blockNumber != -1) {
-            block = readBlock(blockNumber);
-        }
+                lockBlock(blockNumber, true);
+                try {
+                    Block<T> block = newBlock ? createBlock() : readBlock(blockNumber);
 
-        if (blockNumber == -1) {
-            blockNumber = blockManager.getNextEmptyBlock();
-            if (blockNumber != -1) {
-                block = readBlock(blockNumber);
+                    boolean added = block.addRecord(instance);
+
+                    if (!added) {
+                        // A slotted page can be partially empty and still too small for this record. The
+                        // BlockManager took it off its free lists when handing it out, so try the next one
+                        // and put it back once this record has landed somewhere else.
+                        if (newBlock || block.isEmpty()) {
+                            throw new Error("Could not insert a record. This should not happen.");
+                        }
+                        if (skippedBlocks == null) {
+                            skippedBlocks = new LinkedHashMap<>();
+                        }
+                        skippedBlocks.put(blockNumber, block);
+                        continue;
+                    }
+
+                    writeBlock(blockNumber, block);
+
+                    blockManager.updateAfterInsert(blockNumber, block);
+
+                    return blockNumber;
+                } finally {
+                    unlockBlock(blockNumber, true);
+                }
+            }
+        } finally {
+            if (skippedBlocks != null) {
+                for (Map.Entry<Integer, Block<T>> skipped : skippedBlocks.entrySet()) {
+                    returnSkippedBlock(skipped.getKey(), skipped.getValue());
+                }
             }
+            unlockStructure(false);
+        }
+    }
+
+    // With concurrent access another thread may have changed the block since it was read, so its state
+    // comes from a fresh read under its lock rather than from the copy that was skipped.
+    private void returnSkippedBlock(int blockNumber, Block<T> block) {
+        if (blockLocks == null) {
+            blockManager.updateAfterInsert(blockNumber, block);
+            return;
+        }
+        lockBlock(blockNumber, true);
+        try {
+            blockManager.updateAfterInsert(blockNumber, readBlock(blockNumber));
+        } finally {
+            unlockBlock(blockNumber, true);
+        }
+    }
+
+    // Returns the block number of every record, in the order the collection iterates them. Free blocks
+    // are filled first, one read and one write each. The rest goes into new blocks at the end of the
+    // file, written in runs of up to MAX_RUN_BYTES per write.
+    public List<Integer> insertAll(Collection<T> instances) {
+        if (directBlockAddressingMode) {
+            throw new Error("Cannot use insertAll() in sequential mode.");
         }
 
-        if (blockNumber == -1) {
-            blockNumber = getNumberForNewBlock();
-            block = new Block<>(blockingFactor, blockSize, recordClass);
+        List<Integer> blockNumbers;
+        lockStructure(true);
+        try {
+            blockNumbers = insertAllLocked(instances);
+        } finally {
+            unlockStructure(true);
         }
+        commit();
+        return blockNumbers;
+    }
 
-        boolean added = block.addRecord(instance);
+    private List<Integer> insertAllLocked(Collection<T> instances) {
+        List<Integer> blockNumbers = new ArrayList<>(instances.size());
+        Iterator<T> iterator = instances.iterator();
+        T pending = iterator.hasNext() ? iterator.next() : null;
 
-        if (!added) {
-            throw new Error("Could not insert a record. This should not happen.");
+        // Free blocks leave the BlockManager's free lists when handed out. One that took nothing goes
+        // back only after this pass, or it would be handed out again straight away.
+        Map<Integer, Block<T>> skippedBlocks = new LinkedHashMap<>();
+        try {
+            while (pending != null) {
+                int blockNumber = nextFreeBlock(true);
+                if (blockNumber == -1) {
+                    break;
+                }
+
+                Block<T> block = readBlock(blockNumber);
+                int countBefore = block.getValidBlockCount();
+                while (pending != null && block.addRecord(pending)) {
+                    blockNumbers.add(blockNumber);
+                    pending = iterator.hasNext() ? iterator.next() : null;
+                }
+                if (block.getValidBlockCount() == countBefore) {
+                    skippedBlocks.put(blockNumber, block);
+                    continue;
+                }
+                writeBlock(blockNumber, block);
+                blockManager.updateAfterInsert(blockNumber, block);
+            }
+        } finally {
+            for (Map.Entry<Integer, Block<T>> skipped : skippedBlocks.entrySet()) {
+                blockManager.updateAfterInsert(skipped.getKey(), skipped.getValue());
+            }
         }
 
-        writeBlock(blockNumber, block);
+        int blocksPerRun = Math.max(1, MAX_RUN_BYTES / blockSize);
+        while (pending != null) {
+            int firstBlockNumber = getNumberForNewBlock();
+            // Slotted pages are sized from the next record; a run that turns out too small is written and
+            // followed by another one.
+            int recordsPerBlock = blockingFactor;
+            if (blockLayout == BlockLayout.SLOTTED_PAGE) {
+                int recordBytes = SlottedBlock.SLOT_SIZE + pending.encodedSize();
+                recordsPerBlock = Math.max(1, Math.min(blockingFactor, (blockSize - SlottedBlock.HEADER_SIZE) / recordBytes));
+            }
+            int remainingRecords = instances.size() - blockNumbers.size();
+            int remainingBlocks = (remainingRecords + recordsPerBlock - 1) / recordsPerBlock;
+            ByteBuffer run = binaryFile.allocateBuffer(Math.max(1, Math.min(blocksPerRun, remainingBlocks)) * blockSize);
+            List<Block<T>> runBlocks = new ArrayList<>();
 
-        blockManager.updateAfterInsert(blockNumber, block.getValidBlockCount(), blockingFactor, blockSize);
+            while (pending != null && run.remaining() >= blockSize) {
+                Block<T> block = createBlock();
+                while (pending != null && block.addRecord(pending)) {
+                    blockNumbers.add(firstBlockNumber + runBlocks.size());
+                    pending = iterator.hasNext() ? iterator.next() : null;
+                }
+                if (block.isEmpty()) {
+                    throw new Error("Could not insert a record. This should not happen.");
+                }
+                block.writeTo(run);
+                runBlocks.add(block);
+            }
 
-        return blockNumber;
+            run.flip();
+            binaryFile.write((long) firstBlockNumber * blockSize, run);
+            for (int i = 0; i < runBlocks.size(); i++) {
+                blockManager.updateAfterInsert(firstBlockNumber + i, runBlocks.get(i));
+            }
+        }
 
+        return blockNumbers;
+    }
+
+    private BlockFactory<T, Block<T>> classicBlockFactory() {
+        if (blockLayout == BlockLayout.SLOTTED_PAGE) {
+            return SlottedBlock::new;
+        }
+        return Block::new;
+    }
+
+    private Block<T> createBlock() {
+        if (blockLayout == BlockLayout.SLOTTED_PAGE) {
+            return new SlottedBlock<>(blockingFactor, blockSize, recordSize, recordFactory);
+        }
+        return new Block<>(blockingFactor, blockSize, recordSize, recordFactory);
     }
 
     public T get(int blockNumber, T partialRecord) {
-        Block<T> block = readBlock(blockNumber);
-        if (block == null) {
-            return null;
+        lockStructure(false);
+        lockBlock(blockNumber, false);
+        try {
+            Block<T> block = readBlock(blockNumber);
+            if (block == null) {
+                return null;
+            }
+            return block.getRecord(partialRecord);
+        } finally {
+            unlockBlock(blockNumber, false);
+            unlockStructure(false);
         }
-        return block.getRecord(partialRecord);
     }
 
     public <B extends Block<T>> boolean delete(int blockNumber, T partialRecord, Class<B> blockClass,
             Consumer<B> onSuccessDelete, Consumer<B> onUnsuccessDelete) {
-        B block = readBlock(blockNumber, blockClass);
+        return delete(blockNumber, partialRecord, blockFactoryOf(blockClass), blockClass, onSuccessDelete,
+                onUnsuccessDelete);
+    }
+
+    public <B extends Block<T>> boolean delete(int blockNumber, T partialRecord, BlockFactory<T, B> blockFactory,
+            Consumer<B> onSuccessDelete, Consumer<B> onUnsuccessDelete) {
+        return delete(blockNumber, partialRecord, blockFactory, null, onSuccessDelete, onUnsuccessDelete);
+    }
+
+    // The tail can only be truncated under the exclusive structure lock, so in concurrent mode that
+    // happens after the block lock is released.
+    private <B extends Block<T>> boolean delete(int blockNumber, T partialRecord, BlockFactory<T, B> blockFactory,
+            Class<?> expectedClass, Consumer<B> onSuccessDelete, Consumer<B> onUnsuccessDelete) {
+        boolean deleted;
+        lockStructure(false);
+        lockBlock(blockNumber, true);
+        try {
+            deleted = delete(blockNumber, partialRecord, readBlock(blockNumber, blockFactory, expectedClass),
+                    onSuccessDelete, onUnsuccessDelete);
+        } finally {
+            unlockBlock(blockNumber, true);
+            unlockStructure(false);
+        }
+
+        if (deleted && blockLocks != null && !directBlockAddressingMode) {
+            truncateAtTheEndIfPossible();
+        }
+        if (deleted) {
+            commit();
+        }
+        return deleted;
+    }
+
+    private <B extends Block<T>> boolean delete(int blockNumber, T partialRecord, B block,
+            Consumer<B> onSuccessDelete, Consumer<B> onUnsuccessDelete) {
         boolean deleted = block.delete(partialRecord);
 
         if (deleted) {
@@ -142,13 +437,13 @@ public class Heap<T extends StorableRecord> {
         
             int newValidCount = block.getValidBlockCount();
         
+            writeBlock(blockNumber, block);
+        
             if (!directBlockAddressingMode) {
                 blockManager.updateAfterDelete(blockNumber, newValidCount, blockingFactor, blockSize);
             }
         
-            writeBlock(blockNumber, block);
-        
-            if (block.isEmpty() && !directBlockAddressingMode) {
+            if (block.isEmpty() && !directBlockAddressingMode && blockLocks == null) {
                 truncateAtTheEndIfPossible();
             }
         
@@ -161,22 +456,128 @@ public class Heap<T extends StorableRecord> {
         return false;
     }
 
+    // One bounded compaction step: records from up to maxTailBlocks blocks at the end of the file are
+    // moved into free space nearer the front, and the emptied tail is truncated. The listener is told
+    // about every move once both blocks are written. Returns the number of records moved; 0 means the
+    // heap cannot be compacted further. Not for heaps whose blocks are linked to each other, such as
+    // the overflow heap of a BucketHeap.
+    public int compact(int maxTailBlocks, RecordMovedListener<T> listener) {
+        if (directBlockAddressingMode) {
+            throw new Error("Cannot compact a heap in sequential mode.");
+        }
+
+        int movedRecords;
+        lockStructure(true);
+        try {
+            movedRecords = compactLocked(maxTailBlocks, listener);
+        } finally {
+            unlockStructure(true);
+        }
+        commit();
+        return movedRecords;
+    }
+
+    private int compactLocked(int maxTailBlocks, RecordMovedListener<T> listener) {
+        int movedRecords = 0;
+        truncateAtTheEndIfPossible();
+
+        for (int processed = 0; processed < maxTailBlocks; processed++) {
+            int tailBlockNumber = getTotalBlockCount() - 1;
+            int targetBlockNumber = blockManager.findFreeBlock(0);
+            if (tailBlockNumber <= 0 || targetBlockNumber == -1 || targetBlockNumber >= tailBlockNumber) {
+                break;
+            }
+
+            Block<T> tailBlock = readBlock(tailBlockNumber);
+            List<T> remaining = tailBlock.getAllValidRecords();
+            int movedFromTail = 0;
+
+            while (!remaining.isEmpty() && targetBlockNumber != -1 && targetBlockNumber < tailBlockNumber) {
+                Block<T> targetBlock = readBlock(targetBlockNumber);
+                List<T> moved = new ArrayList<>();
+                while (!remaining.isEmpty() && targetBlock.addRecord(remaining.getLast())) {
+                    moved.add(remaining.removeLast());
+                }
+
+                if (!moved.isEmpty()) {
+                    writeBlock(targetBlockNumber, targetBlock);
+                    blockManager.updateAfterInsert(targetBlockNumber, targetBlock);
+                    tailBlock.deleteAllRecords();
+                    for (T record : remaining) {
+                        tailBlock.addRecord(record);
+                    }
+                    writeBlock(tailBlockNumber, tailBlock);
+                    blockManager.updateAfterDelete(tailBlockNumber, tailBlock.getValidBlockCount(), blockingFactor,
+                            blockSize);
+
+                    for (T record : moved) {
+                        if (listener != null) {
+                            listener.recordMoved(record, tailBlockNumber, targetBlockNumber);
+                        }
+                    }
+                    movedFromTail += moved.size();
+                }
+
+                targetBlockNumber = blockManager.findFreeBlock(targetBlockNumber + 1);
+            }
+
+            movedRecords += movedFromTail;
+            if (!remaining.isEmpty()) {
+                break;
+            }
+            truncateAtTheEndIfPossible();
+        }
+
+        return movedRecords;
+    }
+
     public int getTotalBlockCount() {
         return getNumberForNewBlock();
     }
 
     public int getNumberForNewBlock() {
-        long fileSize = binaryFile.getSize();
-        return (int) (fileSize / blockSize);
+        return blockCountOf(binaryFile.getSize());
     }
 
+    // Block numbers are ints here, in the BlockManager, the free-space map, the buffer pool and the
+    // overflow chain pointers on disk, which with a 4 KiB block still addresses 8 TiB. Past that, fail
+    // instead of wrapping around; a segmented file does not lift this limit.
+    private int blockCountOf(long fileSize) {
+        long blocks = fileSize / blockSize;
+        if (blocks > Integer.MAX_VALUE) {
+            throw new Error("Heap file has " + blocks + " blocks, more than int block numbers can address");
+        }
+        return (int) blocks;
+    }
+
+    // The block stays recorded as empty until the caller calls manageUsedBlock().
     public int getEmptyBlock() {
-        return blockManager.getNextEmptyBlock();
+        return nextFreeBlock(false);
+    }
+
+    // A crash between truncating the file and recording the cut blocks as full can leave free blocks
+    // in the map past the end of the file. They are dropped here instead of being handed out.
+    private int nextFreeBlock(boolean partiallyEmptyFirst) {
+        int totalBlocks = getNumberForNewBlock();
+        while (true) {
+            int blockNumber = partiallyEmptyFirst ? blockManager.getNextPartiallyEmptyBlock() : -1;
+            if (blockNumber == -1) {
+                blockNumber = blockManager.getNextEmptyBlock();
+            }
+            if (blockNumber >= totalBlocks) {
+                // Under concurrent access another insert may have appended the block since the size was
+                // taken.
+                totalBlocks = getNumberForNewBlock();
+            }
+            if (blockNumber < totalBlocks) {
+                return blockNumber;
+            }
+            blockManager.removeBlock(blockNumber, blockSize);
+        }
     }
 
     private int countConsecutiveEmptyBlocksAtEnd() {
-        long fileSize = binaryFile.getSize();
-        int totalBlocks = (int) (fileSize / blockSize);
+        int totalBlocks = getNumberForNewBlock();
 
         if (totalBlocks == 0) {
             return 0;
@@ -198,9 +599,21 @@ public class Heap<T extends StorableRecord> {
         blockManager.manageEmptyBlock(blockNumber);
     }
 
+    public void manageUsedBlock(int blockNumber) {
+        blockManager.manageUsedBlock(blockNumber);
+    }
+
     public void truncateAtTheEndIfPossible() {
-        long fileSize = binaryFile.getSize();
-        int totalBlocks = (int) (fileSize / blockSize);
+        lockStructure(true);
+        try {
+            truncateAtTheEndLocked();
+        } finally {
+            unlockStructure(true);
+        }
+    }
+
+    private void truncateAtTheEndLocked() {
+        int totalBlocks = getNumberForNewBlock();
 
         int consecutiveEmptyBlocks = countConsecutiveEmptyBlocksAtEnd();
 
@@ -212,6 +625,10 @@ public class Heap<T extends StorableRecord> {
         long newFileSize = (long) newTotalBlocks * blockSize;
 
         binaryFile.truncate(newFileSize);
+        reservedBlockCount = newTotalBlocks;
+        if (bufferPool != null) {
+            bufferPool.invalidateFrom(newTotalBlocks);
+        }
 
         for (int i = newTotalBlocks; i < totalBlocks; i++) {
             blockManager.removeBlock(i, blockSize);
@@ -220,42 +637,626 @@ public class Heap<T extends StorableRecord> {
 
     public Block<T> readBlock(int blockNumber) {
         if (directBlockAddressingMode) {
-            return readBlock(blockNumber, Bucket.class);
+            return readBlock(blockNumber, Bucket::new);
+        } else {
+            return readBlock(blockNumber, classicBlockFactory());
+        }
+    }
+
+    public Stream<T> scan() {
+        if (directBlockAddressingMode) {
+            return scan(Bucket::new);
+        } else {
+            return scan(classicBlockFactory());
+        }
+    }
+
+    // Scan over every stored record; call parallel() on the result to split the block range across the
+    // common fork-join pool. Dirty pool frames are flushed first because the scan reads the file
+    // directly; changes made to the heap while the stream is consumed may not be seen.
+    public <B extends Block<T>> Stream<T> scan(BlockFactory<T, B> blockFactory) {
+        flush();
+        return StreamSupport.stream(new HeapScanner<>(this, blockFactory, 0, getTotalBlockCount(),
+                Math.max(1, MAX_RUN_BYTES / blockSize)), false);
+    }
+
+    public <V extends RecordView<T>> void forEachView(V view, Consumer<? super V> action) {
+        if (directBlockAddressingMode) {
+            forEachView(Bucket::new, view, action);
         } else {
-            return readBlock(blockNumber, Block.class);
+            forEachView(classicBlockFactory(), view, action);
         }
     }
 
+    // Like scan(), but every record is handed to the action through the same view instead of being
+    // decoded into a new object.
+    public <B extends Block<T>, V extends RecordView<T>> void forEachView(BlockFactory<T, B> blockFactory, V view,
+            Consumer<? super V> action) {
+        flush();
+        new HeapScanner<>(this, blockFactory, 0, getTotalBlockCount(), Math.max(1, MAX_RUN_BYTES / blockSize))
+                .forEachRemainingView(view, action);
+    }
+
+    // Reads the block into a buffer of its own and returns a view over it; nothing is decoded.
+    public <B extends Block<T>> BlockView<T> readBlockView(int blockNumber, BlockFactory<T, B> blockFactory) {
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        ByteBuffer cached = bufferPool != null ? bufferPool.read(blockNumber) : null;
+        if (cached != null) {
+            buffer.put(cached).flip();
+        } else {
+            readRawBlocks(blockNumber, buffer);
+        }
+        return BlockView.<T>of(blockFactory.create(blockingFactor, blockSize, recordSize, recordFactory)).wrap(buffer, 0);
+    }
+
+    boolean isFreeBlock(int blockNumber) {
+        return blockManager != null && blockManager.isEmptyBlock(blockNumber);
+    }
+
+    void readRawBlocks(int firstBlockNumber, ByteBuffer destination) {
+        binaryFile.read((long) firstBlockNumber * blockSize, destination);
+    }
+
+    ByteBuffer allocateBuffer(int size) {
+        return binaryFile.allocateBuffer(size);
+    }
+
     public boolean checkIfBlockExists(int blockNumber) {
         long position = (long) blockNumber * blockSize;
         return position < binaryFile.getSize();
     }
 
     public <B extends Block<T>> B readBlock(int blockNumber, Class<B> blockClass) {
+        return readBlock(blockNumber, blockFactoryOf(blockClass), blockClass);
+    }
+
+    public <B extends Block<T>> B readBlock(int blockNumber, BlockFactory<T, B> blockFactory) {
+        return readBlock(blockNumber, blockFactory, null);
+    }
+
+    // With a buffer pool the block is decoded from the cached image, so it belongs to the caller just
+    // like one read from the file; changes reach the pool only through writeBlock.
+    private <B extends Block<T>> B readBlock(int blockNumber, BlockFactory<T, B> blockFactory,
+            Class<?> expectedClass) {
+        if (bufferPool == null) {
+            return readBlockFromFile(blockNumber, blockFactory);
+        }
+        ByteBuffer cached = bufferPool.read(blockNumber);
+        if (cached != null) {
+            return decodeBlock(cached, blockFactory, lazyDecoding);
+        }
+        byte[] image = readImageFromFile(blockNumber);
+        bufferPool.putImage(blockNumber, image, false);
+        return decodeBlock(ByteBuffer.wrap(image), blockFactory, lazyDecoding);
+    }
+
+    // Unlike readBlock, this hands out the pool's shared block, which stays decoded in the pool for the
+    // next pin. Pair every call with one unpinBlock, passing dirty when the block was changed, or write
+    // the block with writeBlock before unpinning it. Records taken from it are shared as well. Without
+    // a pool the block is a private copy, and unpinning it dirty writes it.
+    public <B extends Block<T>> B pinBlock(int blockNumber, Class<B> blockClass) {
+        return pinBlock(blockNumber, blockFactoryOf(blockClass), blockClass);
+    }
+
+    public <B extends Block<T>> B pinBlock(int blockNumber, BlockFactory<T, B> blockFactory) {
+        return pinBlock(blockNumber, blockFactory, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <B extends Block<T>> B pinBlock(int blockNumber, BlockFactory<T, B> blockFactory,
+            Class<?> expectedClass) {
+        if (bufferPool == null) {
+            return readBlockFromFile(blockNumber, blockFactory);
+        }
+
+        // Pinned blocks are shared between pinners, so they are always decoded in full.
+        Block<T> pinned;
+        while ((pinned = bufferPool.pin(blockNumber, image -> decodeBlock(image, blockFactory, false))) == null) {
+            if (!bufferPool.putImage(blockNumber, readImageFromFile(blockNumber), false)) {
+                throw new Error("All buffer pool frames are pinned, cannot load block " + blockNumber);
+            }
+        }
+        if (expectedClass != null && !expectedClass.isInstance(pinned)) {
+            bufferPool.unpin(blockNumber, false);
+            throw new Error("Block " + blockNumber + " is already pinned as " + pinned.getClass().getName());
+        }
+        return (B) pinned;
+    }
+
+    // True when pinBlock hands out the pool's shared block rather than a private copy.
+    public boolean sharesPinnedBlocks() {
+        return bufferPool != null;
+    }
+
+    // For a pinned block that an operation may have changed part way before it failed. Every other
+    // pinner already sees the shared block with those changes, so it is marked dirty rather than left
+    // to differ from the file; a private copy is dropped unwritten.
+    public void unpinBlockAfterFailure(int blockNumber, Block<T> block) {
+        unpinBlock(blockNumber, block, bufferPool != null);
+    }
+
+    public void unpinBlock(int blockNumber, Block<T> block, boolean dirty) {
+        if (bufferPool == null) {
+            if (dirty) {
+                writeBlockToFile(blockNumber, block);
+            }
+            return;
+        }
+        bufferPool.unpin(blockNumber, dirty);
+        if (!isPoolWriteBack()) {
+            bufferPool.flush(blockNumber);
+        }
+    }
+
+    private <B extends Block<T>> B readBlockFromFile(int blockNumber, BlockFactory<T, B> blockFactory) {
+        return decodeBlock(readBlockBuffer(blockNumber), blockFactory, lazyDecoding);
+    }
+
+    private byte[] readImageFromFile(int blockNumber) {
+        ByteBuffer buffer = readBlockBuffer(blockNumber);
+        byte[] image = new byte[blockSize];
+        buffer.get(image);
+        return image;
+    }
+
+    private ByteBuffer readBlockBuffer(int blockNumber) {
         long position = (long) blockNumber * blockSize;
 
         if (position >= binaryFile.getSize()) {
             throw new Error("Passed blockNumber does not exist in the file");
         }
 
-        binaryFile.seek(position);
-        byte[] blockData = binaryFile.read(blockSize);
+        ByteBuffer buffer = blockBuffer.get();
+        buffer.clear();
+        binaryFile.read(position, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private <B extends Block<T>> B decodeBlock(ByteBuffer buffer, BlockFactory<T, B> blockFactory, boolean lazy) {
+        B block = blockFactory.create(blockingFactor, blockSize, recordSize, recordFactory);
+        if (lazy) {
+            block.readFromLazily(buffer);
+        } else {
+            block.readFrom(buffer);
+        }
+        return block;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <B extends Block<T>> BlockFactory<T, B> blockFactoryOf(Class<B> blockClass) {
+        return (BlockFactory<T, B>) blockFactories.computeIfAbsent(blockClass, this::resolveBlockFactory);
+    }
 
+    private BlockFactory<T, ? extends Block<T>> resolveBlockFactory(Class<?> blockClass) {
+        if (blockClass == Block.class) {
+            return classicBlockFactory();
+        }
+        if (blockClass == Bucket.class) {
+            return (BlockFactory<T, Bucket<T>>) Bucket::new;
+        }
         try {
-            B block = blockClass.getDeclaredConstructor(int.class, int.class, Class.class)
-                    .newInstance(blockingFactor, blockSize, recordClass);
-            block.FromByteArray(blockData, recordClass);
-            return block;
-        } catch (Exception e) {
-            throw new Error("Cannot instantiate block class: " + blockClass.getName(), e);
+            Constructor<?> constructor = blockClass.getDeclaredConstructor(int.class, int.class, int.class,
+                    Supplier.class);
+            return (BlockFactory<T, Block<T>>) (blockingFactor, blockSize, recordSize, recordFactory) -> {
+                try {
+                    @SuppressWarnings("unchecked")
+                    Block<T> block = (Block<T>) constructor.newInstance(blockingFactor, blockSize, recordSize,
+                            recordFactory);
+                    return block;
+                } catch (Exception e) {
+                    throw new Error("Cannot instantiate block class: " + blockClass.getName(), e);
+                }
+            };
+        } catch (NoSuchMethodException e) {
+            throw new Error("Block class has no factory constructor: " + blockClass.getName(), e);
         }
     }
 
+    // With a durability mode or a write-ahead log the buffer pool is write-through, so whatever is
+    // forced or committed includes every block written so far.
+    private boolean isPoolWriteBack() {
+        return durability == null && writeAheadLog == null;
+    }
+
     public void writeBlock(int blockNumber, Block<T> block) {
+        if (bufferPool != null && isPoolWriteBack() && blockNumber < getNumberForNewBlock()
+                && bufferPool.put(blockNumber, block, true)) {
+            return;
+        }
+        writeBlockToFile(blockNumber, block);
+        if (bufferPool != null) {
+            bufferPool.put(blockNumber, block, false);
+        }
+    }
+
+    // Writes the blocks in ascending order. Blocks the buffer pool accepts are only cached, as in
+    // writeBlock; the rest are grouped into runs of adjacent block numbers and each run goes to the
+    // file in one gathering write.
+    public void writeBlocks(Map<Integer, ? extends Block<T>> blocks) {
+        int totalBlocks = getNumberForNewBlock();
+        List<ByteBuffer> run = new ArrayList<>();
+        int runStart = -1;
+
+        for (Map.Entry<Integer, ? extends Block<T>> entry : new TreeMap<>(blocks).entrySet()) {
+            int blockNumber = entry.getKey();
+            Block<T> block = entry.getValue();
+            if (bufferPool != null && isPoolWriteBack() && blockNumber < totalBlocks
+                    && bufferPool.put(blockNumber, block, true)) {
+                continue;
+            }
+
+            if (!run.isEmpty() && blockNumber != runStart + run.size()) {
+                writeRun(runStart, run);
+            }
+            if (run.isEmpty()) {
+                runStart = blockNumber;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+            block.writeTo(buffer);
+            buffer.flip();
+            run.add(buffer);
+
+            if (bufferPool != null) {
+                bufferPool.putImage(blockNumber, buffer.array(), false);
+            }
+        }
+
+        if (!run.isEmpty()) {
+            writeRun(runStart, run);
+        }
+    }
+
+    private void writeRun(int firstBlockNumber, List<ByteBuffer> run) {
+        binaryFile.write((long) firstBlockNumber * blockSize, run.toArray(new ByteBuffer[0]));
+        run.clear();
+    }
+
+    private void writeBlockToFile(int blockNumber, Block<T> block) {
+        long position = (long) blockNumber * blockSize;
+        ByteBuffer buffer = blockBuffer.get();
+        buffer.clear();
+        block.writeTo(buffer);
+        buffer.flip();
+        binaryFile.write(position, buffer);
+    }
+
+    // Copied into the block buffer first, since direct I/O only takes aligned buffers.
+    private void writeImageToFile(int blockNumber, ByteBuffer image) {
+        long position = (long) blockNumber * blockSize;
+        ByteBuffer buffer = blockBuffer.get();
+        buffer.clear();
+        buffer.put(image);
+        buffer.flip();
+        binaryFile.write(position, buffer);
+    }
+
+    public void enableBufferPool(int capacity) {
+        disableBufferPool();
+        this.bufferPool = newBufferPool(capacity);
+    }
+
+    private BufferPool<T> newBufferPool(int capacity) {
+        return new BufferPool<>(capacity, blockSize, this::writeImageToFile, this::blockWrittenBack);
+    }
+
+    // The BlockManager holds back the map entry of a block while the pool has a newer image of it than
+    // the file, so after a crash the map matches the blocks that are actually there.
+    private boolean isBlockUnwritten(int blockNumber) {
+        BufferPool<T> pool = bufferPool;
+        return pool != null && pool.isUnwritten(blockNumber);
+    }
+
+    private void blockWrittenBack(int blockNumber) {
+        if (blockManager != null) {
+            blockManager.blockWritten(blockNumber);
+        }
+    }
+
+    public void disableBufferPool() {
+        if (bufferPool != null) {
+            bufferPool.flushAll();
+            bufferPool = null;
+        }
+    }
+
+    // Lets insert, get and delete run from many threads. Each block number maps to one of lockStripes
+    // read/write locks; operations that change the number of blocks (truncation, insertAll, compact,
+    // extend) take the structure lock exclusively.
+    public void enableConcurrentAccess(int lockStripes) {
+        if (writeAheadLog != null) {
+            throw new Error("Concurrent access cannot be combined with a write-ahead log");
+        }
+        int stripes = Integer.highestOneBit(Math.max(1, lockStripes - 1)) << 1;
+        ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        this.structureLock = new ReentrantReadWriteLock();
+        this.blockLocks = locks;
+    }
+
+    public boolean isConcurrentAccessEnabled() {
+        return blockLocks != null;
+    }
+
+    private void lockStructure(boolean exclusive) {
+        if (structureLock != null) {
+            if (exclusive) {
+                structureLock.writeLock().lock();
+            } else {
+                structureLock.readLock().lock();
+            }
+        }
+    }
+
+    private void unlockStructure(boolean exclusive) {
+        if (structureLock != null) {
+            if (exclusive) {
+                structureLock.writeLock().unlock();
+            } else {
+                structureLock.readLock().unlock();
+            }
+        }
+    }
+
+    private void lockBlock(int blockNumber, boolean exclusive) {
+        if (blockLocks != null) {
+            ReentrantReadWriteLock lock = blockLocks[blockNumber & (blockLocks.length - 1)];
+            if (exclusive) {
+                lock.writeLock().lock();
+            } else {
+                lock.readLock().lock();
+            }
+        }
+    }
+
+    private void unlockBlock(int blockNumber, boolean exclusive) {
+        if (blockLocks != null) {
+            ReentrantReadWriteLock lock = blockLocks[blockNumber & (blockLocks.length - 1)];
+            if (exclusive) {
+                lock.writeLock().unlock();
+            } else {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    // New blocks are numbered past both the end of the file and any number already handed out but not
+    // yet written, so concurrent inserts never append to the same block.
+    private synchronized int reserveNewBlockNumber() {
+        int blockNumber = Math.max(reservedBlockCount, getNumberForNewBlock());
+        if (blockNumber == Integer.MAX_VALUE) {
+            throw new Error("Heap file is full: block numbers are ints");
+        }
+        reservedBlockCount = blockNumber + 1;
+        return blockNumber;
+    }
+
+    public void setLazyDecoding(boolean lazyDecoding) {
+        this.lazyDecoding = lazyDecoding;
+    }
+
+    public boolean isLazyDecoding() {
+        return lazyDecoding;
+    }
+
+    public BufferPool<T> getBufferPool() {
+        return bufferPool;
+    }
+
+    public void flush() {
+        if (bufferPool != null) {
+            bufferPool.flushAll();
+        }
+    }
+
+    public void setDurability(DurabilityMode mode) {
+        setDurability(mode, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    // Operations that change records (insert, insertAll, delete, compact) commit when they finish.
+    // Callers that only use writeBlock and friends, such as BucketHeap, call commit() themselves once
+    // per logical operation.
+    public void setDurability(DurabilityMode mode, long flushIntervalMillis) {
+        if (writeAheadLog != null) {
+            throw new Error("A heap with a write-ahead log is made durable by the log");
+        }
+        flush();
+        if (durability != null) {
+            durability.close();
+        }
+        durability = mode == DurabilityMode.NONE ? null
+                : new DurabilityManager(mode, flushIntervalMillis, this::force);
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durability == null ? DurabilityMode.NONE : durability.getMode();
+    }
+
+    public DurabilityManager getDurabilityManager() {
+        return durability;
+    }
+
+    public void commit() {
+        if (writeAheadLog != null) {
+            if (ownsWriteAheadLog) {
+                writeAheadLog.commit();
+            }
+        } else if (durability != null) {
+            durability.commit();
+        }
+    }
+
+    // Writes back the buffer pool and forces the heap file and free-space map, regardless of mode. With
+    // a write-ahead log it forces the committed operations instead; writes after the last commit() stay
+    // pending until the next one, so an operation is never split by a sync.
+    public void sync() {
+        flush();
+        if (writeAheadLog != null) {
+            writeAheadLog.sync();
+        } else if (durability != null) {
+            durability.sync();
+        } else {
+            force();
+        }
+    }
+
+    public void enableWriteAheadLog(String pathToLog) {
+        enableWriteAheadLog(pathToLog, WriteAheadLog.DEFAULT_GROUP_COMMIT_OPERATIONS);
+    }
+
+    // Logs every insert, insertAll, delete and compact step as one redo frame. If the previous run
+    // did not close the log, its frames are replayed here and the free-space map is rebuilt from the
+    // blocks. Returns true in that case. A heap created in this run drops such a log instead.
+    public boolean enableWriteAheadLog(String pathToLog, int groupCommitOperations) {
+        WriteAheadLog log = new WriteAheadLog(pathToLog, groupCommitOperations, WriteAheadLog.DEFAULT_CHECKPOINT_BYTES);
+        attachWriteAheadLog(log, 0);
+        ownsWriteAheadLog = true;
+        boolean recovered = log.recover();
+        if (recovered) {
+            rebuildFreeSpaceMap(classicBlockFactory());
+        }
+        return recovered;
+    }
+
+    // For owners that log several heaps together and decide themselves when an operation ends. The
+    // owner calls recover() on the log once all heaps are attached, and commits and closes it.
+    public void attachWriteAheadLog(WriteAheadLog log, int fileId) {
+        if (writeAheadLog != null) {
+            throw new Error("Write-ahead log is already enabled");
+        }
+        if (blockLocks != null) {
+            throw new Error("A write-ahead log cannot be combined with concurrent access");
+        }
+        flush();
+        if (durability != null) {
+            durability.close();
+            durability = null;
+        }
+        this.writeAheadLog = log;
+        this.binaryFile = log.attach(fileId, binaryFile, blockSize, newFile);
+        // Replayed frames change the data file under the pool, whichever owner runs the recovery.
+        log.addRecoveryListener(() -> {
+            if (bufferPool != null) {
+                bufferPool.invalidateFrom(0);
+            }
+        });
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    // Free-space state is not logged, so after a crash it is derived from the blocks themselves.
+    public <B extends Block<T>> void rebuildFreeSpaceMap(BlockFactory<T, B> blockFactory) {
+        if (blockManager == null) {
+            return;
+        }
+        if (bufferPool != null) {
+            bufferPool.invalidateFrom(0);
+        }
+        int totalBlocks = getTotalBlockCount();
+        for (int blockNumber = 0; blockNumber < totalBlocks; blockNumber++) {
+            blockManager.updateAfterInsert(blockNumber, readBlockFromFile(blockNumber, blockFactory));
+        }
+        blockManager.force();
+    }
+
+    private void force() {
+        binaryFile.force();
+        if (blockManager != null) {
+            blockManager.force();
+        }
+    }
+
+    // Grows the file in extents instead of block by block and keeps space freed at the end until
+    // the policy's shrink threshold is passed. Must be enabled before a write-ahead log, which then
+    // logs the heap's blocks and not the zero-filled extents.
+    public void enablePreallocation(ExtentPolicy policy) {
+        if (writeAheadLog != null) {
+            throw new Error("Preallocation must be enabled before the write-ahead log");
+        }
+        if (preallocatedFile != null) {
+            throw new Error("Preallocation is already enabled");
+        }
+        flush();
+        this.preallocatedFile = new PreallocatedBinaryFile(binaryFile, pathToFile, policy);
+        this.binaryFile = preallocatedFile;
+    }
+
+    public PreallocatedBinaryFile getPreallocatedFile() {
+        return preallocatedFile;
+    }
+
+    public void enableAsyncIO(int maxInFlight) {
+        if (asyncChannel != null) {
+            asyncChannel.close();
+        }
+        asyncChannel = new AsyncBlockChannel(pathToFile, maxInFlight);
+    }
+
+    public CompletableFuture<Block<T>> readBlockAsync(int blockNumber) {
+        if (directBlockAddressingMode) {
+            return readBlockAsync(blockNumber, Bucket::new);
+        } else {
+            return readBlockAsync(blockNumber, classicBlockFactory());
+        }
+    }
+
+    // Served from the buffer pool when the block is cached there; otherwise decoded on the channel's
+    // completion thread and not added to the pool, which is only touched from the calling thread.
+    public <B extends Block<T>> CompletableFuture<B> readBlockAsync(int blockNumber,
+            BlockFactory<T, B> blockFactory) {
         long position = (long) blockNumber * blockSize;
-        binaryFile.seek(position);
-        byte[] blockData = block.ToByteArray();
-        binaryFile.write(blockData);
+        if (position >= binaryFile.getSize()) {
+            throw new Error("Passed blockNumber does not exist in the file");
+        }
+
+        if (bufferPool != null && bufferPool.contains(blockNumber)) {
+            return CompletableFuture.completedFuture(readBlock(blockNumber, blockFactory));
+        }
+
+        boolean lazy = lazyDecoding;
+        return asyncChannel().read(position, ByteBuffer.allocate(blockSize)).thenApply(buffer -> {
+            B block = blockFactory.create(blockingFactor, blockSize, recordSize, recordFactory);
+            if (lazy) {
+                block.readFromLazily(buffer);
+            } else {
+                block.readFrom(buffer);
+            }
+            return block;
+        });
+    }
+
+    // The block is encoded before this returns, so the caller may keep modifying it. With a buffer
+    // pool the block also replaces the cached copy, so synchronous reads see it before the write lands.
+    public CompletableFuture<Void> writeBlockAsync(int blockNumber, Block<T> block) {
+        if (blockNumber >= getTotalBlockCount() && !binaryFile.supportsAsyncExtension()) {
+            throw new Error("Heaps backed by a " + binaryFile.getClass().getSimpleName()
+                    + " cannot be extended with asynchronous writes");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        block.writeTo(buffer);
+        buffer.flip();
+
+        if (bufferPool != null && !bufferPool.put(blockNumber, block, false)) {
+            bufferPool.invalidate(blockNumber);
+        }
+        return asyncChannel().write((long) blockNumber * blockSize, buffer);
+    }
+
+    private AsyncBlockChannel asyncChannel() {
+        if (!binaryFile.supportsAsyncIO()) {
+            throw new Error("Asynchronous block I/O is not available for heaps backed by a "
+                    + binaryFile.getClass().getSimpleName());
+        }
+        if (asyncChannel == null) {
+            enableAsyncIO(DEFAULT_MAX_IN_FLIGHT);
+        }
+        return asyncChannel;
     }
 
     public void extendToBlockCount(int blockCount) {
@@ -263,21 +1264,28 @@ public class Heap<T extends StorableRecord> {
             throw new Error("Cannot be used in classic heap");
         }
 
+        lockStructure(true);
+        try {
+            extendToBlockCountLocked(blockCount);
+        } finally {
+            unlockStructure(true);
+        }
+    }
+
+    private void extendToBlockCountLocked(int blockCount) {
         int currentBlocks = getTotalBlockCount();
         if (blockCount > currentBlocks) {
             int blocksToAdd = blockCount - currentBlocks;
-            byte[] allBlocksData = new byte[blocksToAdd * blockSize];
-            
-            Block<T> emptyBlock = new Bucket<>(blockingFactor, blockSize, recordClass);
-            byte[] singleBlockData = emptyBlock.ToByteArray();
+            ByteBuffer allBlocksData = binaryFile.allocateBuffer(blocksToAdd * blockSize);
             
+            Block<T> emptyBlock = new Bucket<>(blockingFactor, blockSize, recordSize, recordFactory);
             for (int i = 0; i < blocksToAdd; i++) {
-                System.arraycopy(singleBlockData, 0, allBlocksData, i * blockSize, blockSize);
+                emptyBlock.writeTo(allBlocksData);
             }
+            allBlocksData.flip();
             
             long position = (long) currentBlocks * blockSize;
-            binaryFile.seek(position);
-            binaryFile.write(allBlocksData);
+            binaryFile.write(position, allBlocksData);
         }
     }
 
@@ -286,10 +1294,19 @@ public class Heap<T extends StorableRecord> {
             throw new Error("Cannot be used in classic heap");
         }
 
-        int currentBlocks = getTotalBlockCount();
-        if (blockCount < currentBlocks) {
-            long newFileSize = (long) blockCount * blockSize;
-            binaryFile.truncate(newFileSize);
+        lockStructure(true);
+        try {
+            int currentBlocks = getTotalBlockCount();
+            if (blockCount < currentBlocks) {
+                long newFileSize = (long) blockCount * blockSize;
+                binaryFile.truncate(newFileSize);
+                reservedBlockCount = blockCount;
+                if (bufferPool != null) {
+                    bufferPool.invalidateFrom(blockCount);
+                }
+            }
+        } finally {
+            unlockStructure(true);
         }
     }
 
@@ -297,6 +1314,18 @@ public class Heap<T extends StorableRecord> {
         return blockSize;
     }
 
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    public Supplier<T> getRecordFactory() {
+        return recordFactory;
+    }
+
+    public BlockLayout getBlockLayout() {
+        return blockLayout;
+    }
+
     public int getBlockingFactor() {
         return blockingFactor;
     }
@@ -306,6 +1335,16 @@ public class Heap<T extends StorableRecord> {
     }
 
     public void close() {
+        flush();
+        if (durability != null) {
+            durability.close();
+        }
+        if (writeAheadLog != null && ownsWriteAheadLog) {
+            writeAheadLog.close();
+        }
+        if (asyncChannel != null) {
+            asyncChannel.close();
+        }
         if (blockManager != null) {
             blockManager.close();
         }
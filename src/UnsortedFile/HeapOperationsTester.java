@@ -0,0 +1,345 @@
+package UnsortedFile;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import LinearHashing.Core.Person;
+
+// Checks heap operations that move records or read many blocks at once against what get() and the
+// blocks themselves say.
+public class HeapOperationsTester {
+
+    private static final String TEST_DIRECTORY = "heapoperationstest";
+    private static final int BLOCK_SIZE = 2048;
+    private static final int TOTAL_PERSONS = 3000;
+    private static final int SCAN_BLOCK_SIZE = 512;
+    // What Heap.scan() reads per call with SCAN_BLOCK_SIZE, so the last run is only partly filled.
+    private static final int SCAN_READ_AHEAD_BLOCKS = (1 << 20) / SCAN_BLOCK_SIZE;
+
+    private static final TestReport report = new TestReport("HEAP OPERATIONS TESTER");
+
+    public static void main(String[] args) {
+        report.printHeader();
+
+        try {
+            report.cleanDirectory(TEST_DIRECTORY);
+
+            Person[] persons = generatePersons();
+
+            report.runTestMethod("Compaction moves tail records forward, reports every move and shrinks the file",
+                    () -> testCompaction(persons));
+            report.runTestMethod("Sequential and parallel scans return the stored records once each",
+                    () -> testScanMatchesGet(persons));
+            report.runTestMethod("A scanner split part way through its read-ahead covers its range once",
+                    () -> testScannerSplitAfterAdvancing(persons));
+            report.runTestMethod("Asynchronous channel keeps its in-flight limit and frees slots of refused requests",
+                    () -> testAsyncChannelInFlightLimit(persons));
+            report.runTestMethod("Asynchronous block reads and writes agree with the buffer pool",
+                    () -> testAsyncBlocksPreferBufferPool(persons));
+        } catch (Exception e) {
+            report.fatal(e);
+        }
+        report.printSummary();
+    }
+
+    private static String path(String name) {
+        return TEST_DIRECTORY + File.separator + name;
+    }
+
+    private static Person[] generatePersons() {
+        Person[] persons = new Person[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            Person person = new Person();
+            person.name = "Name" + (i % 37);
+            person.surname = "Surname" + (i % 53);
+            person.birthdate = 19500101L + i;
+            person.id = String.format("%08d", 30000000 + i);
+            persons[i] = person;
+        }
+        return persons;
+    }
+
+    private static Heap<Person> createHeap(String name) {
+        return new Heap<>(path(name), BLOCK_SIZE, Person::new, false, 0, FileAccessMode.STANDARD);
+    }
+
+    private static Heap<Person> openHeap(String name) {
+        return new Heap<>(path(name), path(name + ".meta"), Person::new, false, 0, FileAccessMode.STANDARD);
+    }
+
+    // The block every stored record is in, read block by block.
+    private static Map<String, Integer> locateRecords(Heap<Person> heap) {
+        Map<String, Integer> blocksById = new HashMap<>();
+        for (int blockNumber = 0; blockNumber < heap.getTotalBlockCount(); blockNumber++) {
+            for (Person person : heap.readBlock(blockNumber).getAllValidRecords()) {
+                blocksById.put(person.id, blockNumber);
+            }
+        }
+        return blocksById;
+    }
+
+    private static void testCompaction(Person[] persons) {
+        Heap<Person> heap = createHeap("compact");
+        heap.enableBufferPool(16);
+        Map<String, Integer> expectedBlocks = new HashMap<>();
+        int[] blockNumbers = new int[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+
+        // Scattered deletes leave free slots all over the file, including in the tail.
+        Random random = new Random(3);
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            if (random.nextInt(5) < 2) {
+                heap.delete(blockNumbers[i], persons[i], Block<Person>::new, null, null);
+            } else {
+                expectedBlocks.put(persons[i].id, blockNumbers[i]);
+            }
+        }
+        int blocksBefore = heap.getTotalBlockCount();
+
+        int[] reportedMoves = {0};
+        int[] wrongReports = {0};
+        RecordMovedListener<Person> listener = (record, fromBlockNumber, toBlockNumber) -> {
+            Integer current = expectedBlocks.get(record.id);
+            if (current == null || current != fromBlockNumber || toBlockNumber >= fromBlockNumber) {
+                wrongReports[0]++;
+            }
+            expectedBlocks.put(record.id, toBlockNumber);
+            reportedMoves[0]++;
+        };
+        int movedRecords = 0;
+        int moved;
+        while ((moved = heap.compact(8, listener)) > 0) {
+            movedRecords += moved;
+        }
+        int blocksAfter = heap.getTotalBlockCount();
+        Map<String, Integer> actualBlocks = locateRecords(heap);
+        heap.close();
+
+        Heap<Person> reopened = openHeap("compact");
+        int unreachable = 0;
+        for (Person person : persons) {
+            Integer blockNumber = expectedBlocks.get(person.id);
+            if (blockNumber != null && reopened.get(blockNumber, person) == null) {
+                unreachable++;
+            }
+        }
+        reopened.close();
+
+        report.check(movedRecords > 0 && reportedMoves[0] == movedRecords && wrongReports[0] == 0
+                && actualBlocks.equals(expectedBlocks) && unreachable == 0 && blocksAfter < blocksBefore,
+                movedRecords + " records moved and reported, " + blocksBefore + " -> " + blocksAfter + " blocks",
+                movedRecords + " moved, " + reportedMoves[0] + " reported, " + wrongReports[0]
+                        + " wrong reports, records where the listener said: " + actualBlocks.equals(expectedBlocks)
+                        + ", " + unreachable + " unreachable after reopening, " + blocksBefore + " -> "
+                        + blocksAfter + " blocks");
+    }
+
+    // One record per block, so every deleted record leaves a free block for the scan to skip. The last
+    // record is kept, so the file still ends in a partly filled read-ahead run.
+    private static Heap<Person> createScanHeap(Person[] persons, Map<String, Integer> storedBlocks) {
+        Heap<Person> heap = new Heap<>(path("scan"), SCAN_BLOCK_SIZE, Person::new, false, 0,
+                FileAccessMode.STANDARD);
+        int[] blockNumbers = new int[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        Random random = new Random(9);
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            if (i < TOTAL_PERSONS - 1 && random.nextInt(4) == 0) {
+                heap.delete(blockNumbers[i], persons[i], Block<Person>::new, null, null);
+            } else {
+                storedBlocks.put(persons[i].id, blockNumbers[i]);
+            }
+        }
+        return heap;
+    }
+
+    private static void testScanMatchesGet(Person[] persons) {
+        Map<String, Integer> storedBlocks = new HashMap<>();
+        Heap<Person> heap = createScanHeap(persons, storedBlocks);
+        Set<String> storedIds = storedBlocks.keySet();
+        int blockCount = heap.getTotalBlockCount();
+
+        Set<String> foundByGet = new HashSet<>();
+        for (Person person : persons) {
+            Integer blockNumber = storedBlocks.get(person.id);
+            if (blockNumber != null && heap.get(blockNumber, person) != null) {
+                foundByGet.add(person.id);
+            }
+        }
+        List<String> sequential = heap.scan().map(person -> person.id).collect(Collectors.toList());
+        List<String> parallel = heap.scan().parallel().map(person -> person.id).collect(Collectors.toList());
+        heap.close();
+
+        List<String> sortedSequential = new ArrayList<>(sequential);
+        Collections.sort(sortedSequential);
+        List<String> sortedParallel = new ArrayList<>(parallel);
+        Collections.sort(sortedParallel);
+        boolean sequentialMatches = sequential.size() == storedIds.size() && storedIds.containsAll(sequential);
+        boolean parallelMatches = sortedParallel.equals(sortedSequential);
+
+        report.check(blockCount % SCAN_READ_AHEAD_BLOCKS != 0 && foundByGet.equals(storedIds) && sequentialMatches
+                && parallelMatches,
+                storedIds.size() + " records in " + blockCount + " blocks, same from get, scan and parallel scan",
+                blockCount + " blocks, " + storedIds.size() + " stored, " + foundByGet.size() + " found by get, "
+                        + sequential.size() + " scanned (match: " + sequentialMatches + "), " + parallel.size()
+                        + " scanned in parallel (match: " + parallelMatches + ")");
+    }
+
+    private static void testScannerSplitAfterAdvancing(Person[] persons) {
+        Map<String, Integer> storedBlocks = new HashMap<>();
+        Heap<Person> heap = createScanHeap(persons, storedBlocks);
+        Set<String> storedIds = storedBlocks.keySet();
+        int blockCount = heap.getTotalBlockCount();
+
+        // A small read-ahead so that the split points land inside, at the end of and past a buffer.
+        int readAheadBlocks = 7;
+        int[] advances = {0, 1, 5, 6, 7, 40, storedIds.size() - 20};
+        BlockFactory<Person, Block<Person>> blockFactory = Block::new;
+        List<String> failures = new ArrayList<>();
+        for (int advance : advances) {
+            HeapScanner<Person, Block<Person>> scanner = new HeapScanner<>(heap, blockFactory, 0, blockCount,
+                    readAheadBlocks);
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < advance; i++) {
+                scanner.tryAdvance(person -> ids.add(person.id));
+            }
+            Spliterator<Person> upperHalf = scanner.trySplit();
+            scanner.forEachRemaining(person -> ids.add(person.id));
+            if (upperHalf != null) {
+                upperHalf.forEachRemaining(person -> ids.add(person.id));
+            }
+            if (ids.size() != storedIds.size() || !storedIds.containsAll(ids)) {
+                failures.add("split after " + advance + " records: " + ids.size() + " scanned, "
+                        + new HashSet<>(ids).size() + " distinct");
+            }
+        }
+        heap.close();
+
+        report.check(failures.isEmpty(),
+                "all " + advances.length + " split points returned the " + storedIds.size() + " records once",
+                String.join("; ", failures));
+    }
+
+    private static void testAsyncChannelInFlightLimit(Person[] persons) throws Exception {
+        Heap<Person> heap = createHeap("asynclimit");
+        for (Person person : persons) {
+            heap.insert(person);
+        }
+        int blockCount = heap.getTotalBlockCount();
+        heap.close();
+
+        int maxInFlight = 4;
+        AsyncBlockChannel channel = new AsyncBlockChannel(path("asynclimit"), maxInFlight);
+        List<CompletableFuture<ByteBuffer>> reads = new ArrayList<>();
+        int mostInFlight = 0;
+        for (int blockNumber = 0; blockNumber < blockCount; blockNumber++) {
+            reads.add(channel.read((long) blockNumber * BLOCK_SIZE, ByteBuffer.allocate(BLOCK_SIZE)));
+            mostInFlight = Math.max(mostInFlight, channel.getInFlightCount());
+        }
+        int incompleteReads = 0;
+        for (CompletableFuture<ByteBuffer> read : reads) {
+            if (read.join().remaining() != BLOCK_SIZE) {
+                incompleteReads++;
+            }
+        }
+
+        // The channel refuses a negative position right away. Each refusal must give its slot back, or
+        // the read after them waits forever.
+        int refusedFailed = 0;
+        for (int i = 0; i < 2 * maxInFlight; i++) {
+            try {
+                channel.read(-BLOCK_SIZE, ByteBuffer.allocate(BLOCK_SIZE)).join();
+            } catch (CompletionException e) {
+                refusedFailed++;
+            }
+        }
+        int inFlightAfterRefusals = channel.getInFlightCount();
+        boolean readAfterRefusals;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ByteBuffer> read = executor.submit(() -> channel.read(0, ByteBuffer.allocate(BLOCK_SIZE)).join());
+            readAfterRefusals = read.get(10, TimeUnit.SECONDS).remaining() == BLOCK_SIZE;
+        } catch (TimeoutException e) {
+            readAfterRefusals = false;
+        } finally {
+            executor.shutdownNow();
+        }
+        if (readAfterRefusals) {
+            channel.close();
+        }
+
+        report.check(mostInFlight <= maxInFlight && incompleteReads == 0 && refusedFailed == 2 * maxInFlight
+                && inFlightAfterRefusals == 0 && readAfterRefusals,
+                blockCount + " reads with at most " + mostInFlight + " of " + maxInFlight
+                        + " in flight, slots back after " + refusedFailed + " refusals",
+                mostInFlight + " in flight for a limit of " + maxInFlight + ", " + incompleteReads
+                        + " incomplete reads, " + refusedFailed + " refused requests failed, "
+                        + inFlightAfterRefusals + " slots held afterwards, read after them completed: "
+                        + readAfterRefusals);
+    }
+
+    private static void testAsyncBlocksPreferBufferPool(Person[] persons) {
+        Heap<Person> heap = createHeap("asyncpool");
+        int[] blockNumbers = new int[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        heap.enableBufferPool(16);
+        heap.enableAsyncIO(4);
+
+        // A write the pool holds back: the asynchronous read must return it, not the file's image.
+        int cachedBlock = blockNumbers[0];
+        Block<Person> block = heap.readBlock(cachedBlock);
+        block.delete(persons[0]);
+        heap.writeBlock(cachedBlock, block);
+        boolean heldBack = heap.getBufferPool().isUnwritten(cachedBlock);
+        boolean cachedWins = heap.readBlockAsync(cachedBlock).join().getRecord(persons[0]) == null;
+
+        // An asynchronous write replaces the cached copy, which the first read put in the pool, before it
+        // lands.
+        int writtenIndex = TOTAL_PERSONS / 2;
+        int writtenBlock = blockNumbers[writtenIndex];
+        heap.readBlock(writtenBlock);
+        Block<Person> changed = heap.readBlock(writtenBlock);
+        changed.delete(persons[writtenIndex]);
+        CompletableFuture<Void> write = heap.writeBlockAsync(writtenBlock, changed);
+        boolean seenBeforeLanding = heap.get(writtenBlock, persons[writtenIndex]) == null;
+        write.join();
+        boolean seenAsync = heap.readBlockAsync(writtenBlock).join().getRecord(persons[writtenIndex]) == null;
+        heap.close();
+
+        Heap<Person> reopened = openHeap("asyncpool");
+        boolean cachedWriteKept = reopened.get(cachedBlock, persons[0]) == null;
+        boolean asyncWriteKept = reopened.get(writtenBlock, persons[writtenIndex]) == null;
+        boolean othersKept = reopened.get(blockNumbers[1], persons[1]) != null
+                && reopened.get(blockNumbers[TOTAL_PERSONS - 1], persons[TOTAL_PERSONS - 1]) != null;
+        reopened.close();
+
+        report.check(heldBack && cachedWins && seenBeforeLanding && seenAsync && cachedWriteKept && asyncWriteKept
+                && othersKept,
+                "pooled write won over the file, asynchronous write seen before and after it landed",
+                "held back " + heldBack + ", cached block won " + cachedWins + ", async write seen before landing "
+                        + seenBeforeLanding + " and after " + seenAsync + ", kept after reopening: cached "
+                        + cachedWriteKept + ", async " + asyncWriteKept + ", others " + othersKept);
+    }
+}
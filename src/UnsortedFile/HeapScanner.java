@@ -0,0 +1,135 @@
+package UnsortedFile;
+
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+// Walks a range of heap blocks front to back. Blocks are read readAheadBlocks at a time into one
+// buffer and each block is decoded lazily, one record per step, so stopping early skips the remaining
+// I/O. trySplit hands the upper half of the not yet read range to a new scanner; every scanner has
+// its own buffer and uses positional reads, so the halves can run on different threads.
+public class HeapScanner<T extends StorableRecord, B extends Block<T>> implements Spliterator<T> {
+
+    private static final int MIN_SPLIT_BLOCKS = 8;
+
+    private final Heap<T> heap;
+    private final BlockFactory<T, B> blockFactory;
+    private final int readAheadBlocks;
+    private int endBlock;
+    private ByteBuffer readAheadBuffer;
+
+    private int nextBlockToRead;
+    private int bufferedBlocks;
+    private int nextBufferedBlock;
+    private B currentBlock;
+    private int nextRecordIndex;
+
+    public HeapScanner(Heap<T> heap, BlockFactory<T, B> blockFactory, int startBlock, int endBlock,
+            int readAheadBlocks) {
+        this.heap = heap;
+        this.blockFactory = blockFactory;
+        this.nextBlockToRead = startBlock;
+        this.endBlock = endBlock;
+        this.readAheadBlocks = Math.max(1, readAheadBlocks);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        while (currentBlock == null || nextRecordIndex >= currentBlock.getValidBlockCount()) {
+            if (!advanceBlock()) {
+                return false;
+            }
+        }
+        action.accept(currentBlock.getRecord(nextRecordIndex++));
+        return true;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        int unread = endBlock - nextBlockToRead;
+        if (unread < 2 * MIN_SPLIT_BLOCKS) {
+            return null;
+        }
+        int middle = nextBlockToRead + unread / 2;
+        HeapScanner<T, B> upperHalf = new HeapScanner<>(heap, blockFactory, middle, endBlock, readAheadBlocks);
+        endBlock = middle;
+        return upperHalf;
+    }
+
+    @Override
+    public long estimateSize() {
+        long blocks = (long) (endBlock - nextBlockToRead) + (bufferedBlocks - nextBufferedBlock);
+        return blocks * heap.getBlockingFactor();
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    // Walks the remaining records through one view and one block view, without decoding a record or
+    // creating a block per step. The view must not be kept past the action.
+    public <V extends RecordView<T>> void forEachRemainingView(V view, Consumer<? super V> action) {
+        int blockSize = heap.getBlockSize();
+        BlockView<T> blockView = BlockView.of(blockFactory.create(heap.getBlockingFactor(), blockSize,
+                heap.getRecordSize(), heap.getRecordFactory()));
+        while (nextBufferedBlock < bufferedBlocks || fillBuffer()) {
+            int blockNumber = nextBlockToRead - bufferedBlocks + nextBufferedBlock;
+            int blockOffset = nextBufferedBlock * blockSize;
+            nextBufferedBlock++;
+            if (heap.isFreeBlock(blockNumber)) {
+                continue;
+            }
+
+            blockView.wrap(readAheadBuffer, blockOffset);
+            int validCount = blockView.getValidCount();
+            for (int i = 0; i < validCount; i++) {
+                action.accept(blockView.record(i, view));
+            }
+        }
+    }
+
+    private boolean advanceBlock() {
+        int blockSize = heap.getBlockSize();
+        while (true) {
+            if (nextBufferedBlock >= bufferedBlocks && !fillBuffer()) {
+                currentBlock = null;
+                return false;
+            }
+
+            int blockNumber = nextBlockToRead - bufferedBlocks + nextBufferedBlock;
+            ByteBuffer slice = readAheadBuffer.slice(nextBufferedBlock * blockSize, blockSize);
+            nextBufferedBlock++;
+
+            if (heap.isFreeBlock(blockNumber)) {
+                continue;
+            }
+
+            currentBlock = blockFactory.create(heap.getBlockingFactor(), blockSize, heap.getRecordSize(),
+                    heap.getRecordFactory());
+            currentBlock.readFromLazily(slice);
+            nextRecordIndex = 0;
+            return true;
+        }
+    }
+
+    private boolean fillBuffer() {
+        int blockSize = heap.getBlockSize();
+        int count = Math.min(readAheadBlocks, endBlock - nextBlockToRead);
+        if (count <= 0) {
+            return false;
+        }
+
+        if (readAheadBuffer == null) {
+            readAheadBuffer = heap.allocateBuffer(count * blockSize);
+        }
+        readAheadBuffer.clear();
+        readAheadBuffer.limit(count * blockSize);
+        heap.readRawBlocks(nextBlockToRead, readAheadBuffer);
+
+        nextBlockToRead += count;
+        bufferedBlocks = count;
+        nextBufferedBlock = 0;
+        return true;
+    }
+}
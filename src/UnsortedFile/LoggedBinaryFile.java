@@ -0,0 +1,263 @@
+package UnsortedFile;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// A data file behind a WriteAheadLog. Writes are kept in memory as whole block images and reads are
+// served from them, so the data file only changes once the log has made the writes durable. A frame
+// entry keeps its own copy of the images it logged, and only those are applied: a write made after
+// the last commit stays in memory until a later frame holds it. The size is tracked logically: bytes
+// cut off by a truncate read back as zeros if the file grows again before the change reaches the data
+// file.
+class LoggedBinaryFile extends BinaryFile {
+
+    private final WriteAheadLog log;
+    private final int fileId;
+    private final BinaryFile dataFile;
+    private final int blockSize;
+    private final TreeMap<Long, byte[]> pendingBlocks = new TreeMap<>();
+    private final TreeSet<Long> unframedBlocks = new TreeSet<>();
+    private final TreeMap<Long, byte[]> framedBlocks = new TreeMap<>();
+
+    private long size;
+    private long pendingMinSize;
+    private long frameStartSize;
+    private long frameMinSize;
+    private long framedMinSize;
+    private long position;
+
+    LoggedBinaryFile(WriteAheadLog log, int fileId, BinaryFile dataFile, int blockSize) {
+        this.log = log;
+        this.fileId = fileId;
+        this.dataFile = dataFile;
+        this.blockSize = blockSize;
+        reload();
+    }
+
+    int getFileId() {
+        return fileId;
+    }
+
+    BinaryFile getDataFile() {
+        return dataFile;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    // Drops everything kept in memory and takes the size from the data file again.
+    void reload() {
+        pendingBlocks.clear();
+        unframedBlocks.clear();
+        framedBlocks.clear();
+        size = dataFile.getSize();
+        pendingMinSize = size;
+        frameStartSize = size;
+        frameMinSize = size;
+        framedMinSize = size;
+    }
+
+    // Writes have to go through the log.
+    @Override
+    public boolean supportsAsyncIO() {
+        return false;
+    }
+
+    @Override
+    public ByteBuffer allocateBuffer(int size) {
+        return dataFile.allocateBuffer(size);
+    }
+
+    @Override
+    public synchronized void seek(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized void write(byte[] data) {
+        write(position, ByteBuffer.wrap(data));
+        position += data.length;
+    }
+
+    @Override
+    public synchronized byte[] read(int length) {
+        byte[] data = new byte[length];
+        read(position, ByteBuffer.wrap(data));
+        position += length;
+        return data;
+    }
+
+    // Runs of blocks that are neither pending nor past a pending truncate are read from the data file
+    // in one call, so read-ahead over unchanged blocks costs the same as without the log.
+    @Override
+    public synchronized void read(long position, ByteBuffer destination) {
+        if (position + destination.remaining() > size) {
+            throw new RuntimeException("Failed to read from file: reading past the end of the file");
+        }
+        while (destination.hasRemaining()) {
+            long blockNumber = position / blockSize;
+            int offset = (int) (position % blockSize);
+            byte[] pending = pendingBlocks.get(blockNumber);
+            if (pending != null) {
+                int chunk = Math.min(destination.remaining(), blockSize - offset);
+                destination.put(pending, offset, chunk);
+                position += chunk;
+                continue;
+            }
+
+            Long nextPending = pendingBlocks.higherKey(blockNumber);
+            long runEnd = Math.min(position + destination.remaining(), pendingMinSize);
+            if (nextPending != null) {
+                runEnd = Math.min(runEnd, nextPending * blockSize);
+            }
+            if (runEnd > position) {
+                int chunk = (int) (runEnd - position);
+                ByteBuffer slice = destination.slice(destination.position(), chunk);
+                dataFile.read(position, slice);
+                destination.position(destination.position() + chunk);
+                position += chunk;
+                continue;
+            }
+
+            int chunk = Math.min(destination.remaining(), blockSize - offset);
+            for (int i = 0; i < chunk; i++) {
+                destination.put((byte) 0);
+            }
+            position += chunk;
+        }
+    }
+
+    @Override
+    public synchronized void write(long position, ByteBuffer source) {
+        while (source.hasRemaining()) {
+            long blockNumber = position / blockSize;
+            int offset = (int) (position % blockSize);
+            int chunk = Math.min(source.remaining(), blockSize - offset);
+            byte[] image = pendingBlocks.get(blockNumber);
+            if (image == null) {
+                image = new byte[blockSize];
+                if (chunk < blockSize) {
+                    readCommitted(blockNumber, image);
+                }
+                pendingBlocks.put(blockNumber, image);
+            }
+            source.get(image, offset, chunk);
+            unframedBlocks.add(blockNumber);
+            position += chunk;
+            size = Math.max(size, position);
+        }
+    }
+
+    @Override
+    public synchronized void write(long position, ByteBuffer[] sources) {
+        for (ByteBuffer source : sources) {
+            int length = source.remaining();
+            write(position, source);
+            position += length;
+        }
+    }
+
+    @Override
+    public synchronized void truncate(long length) {
+        long firstDroppedBlock = (length + blockSize - 1) / blockSize;
+        pendingBlocks.tailMap(firstDroppedBlock, true).clear();
+        unframedBlocks.tailSet(firstDroppedBlock, true).clear();
+        if (length % blockSize != 0) {
+            byte[] lastBlock = pendingBlocks.get(length / blockSize);
+            if (lastBlock != null) {
+                Arrays.fill(lastBlock, (int) (length % blockSize), blockSize, (byte) 0);
+            }
+        }
+
+        size = length;
+        pendingMinSize = Math.min(pendingMinSize, length);
+        frameMinSize = Math.min(frameMinSize, length);
+        if (position > length) {
+            position = length;
+        }
+    }
+
+    // Only what has reached the data file can be forced; committing through the log is what makes
+    // the rest durable.
+    @Override
+    public void force() {
+        dataFile.force();
+    }
+
+    @Override
+    public void close() {
+        log.close();
+        dataFile.close();
+    }
+
+    synchronized boolean hasUnframedChanges() {
+        return !unframedBlocks.isEmpty() || size != frameStartSize || frameMinSize != frameStartSize;
+    }
+
+    synchronized int frameEntrySize() {
+        return 4 + 8 + 8 + 4 + unframedBlocks.size() * (8 + blockSize);
+    }
+
+    // Appends the changes since the previous frame: the smallest size reached, the final size and the
+    // block images. Replaying entries in order reproduces the file.
+    synchronized void writeFrameEntry(ByteBuffer frame) {
+        frame.putInt(fileId);
+        frame.putLong(frameMinSize);
+        frame.putLong(size);
+        frame.putInt(unframedBlocks.size());
+        for (long blockNumber : unframedBlocks) {
+            byte[] image = pendingBlocks.get(blockNumber);
+            frame.putLong(blockNumber);
+            frame.put(image);
+            framedBlocks.put(blockNumber, image.clone());
+        }
+
+        unframedBlocks.clear();
+        framedMinSize = Math.min(framedMinSize, frameMinSize);
+        frameStartSize = size;
+        frameMinSize = size;
+    }
+
+    // Called once the frames written since the last call are durable. Applies what they logged and
+    // keeps the blocks written since the last frame pending.
+    synchronized void applyFramed() {
+        applyTo(dataFile, blockSize, framedMinSize, frameStartSize, framedBlocks);
+        framedBlocks.clear();
+        pendingBlocks.keySet().retainAll(unframedBlocks);
+        pendingMinSize = frameMinSize;
+        framedMinSize = frameStartSize;
+    }
+
+    static void applyTo(BinaryFile dataFile, int blockSize, long minSize, long finalSize, Map<Long, byte[]> blocks) {
+        if (minSize < dataFile.getSize()) {
+            dataFile.truncate(minSize);
+        }
+        for (Map.Entry<Long, byte[]> entry : blocks.entrySet()) {
+            long start = entry.getKey() * blockSize;
+            int length = (int) Math.min(blockSize, finalSize - start);
+            if (length > 0) {
+                dataFile.write(start, ByteBuffer.wrap(entry.getValue(), 0, length));
+            }
+        }
+        if (finalSize < dataFile.getSize()) {
+            dataFile.truncate(finalSize);
+        }
+    }
+
+    private void readCommitted(long blockNumber, byte[] image) {
+        long start = blockNumber * blockSize;
+        long end = Math.min(start + blockSize, Math.min(pendingMinSize, dataFile.getSize()));
+        if (end > start) {
+            dataFile.read(start, ByteBuffer.wrap(image, 0, (int) (end - start)));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package UnsortedFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// The file is mapped in fixed-size segments. The physical file is always grown to a whole number of
+// segments, so the logical size is tracked separately and kept in a mapped sidecar file, which a reopen
+// reads instead of taking the padding as trailing zero blocks. The sidecar is only forced with the data;
+// after a machine crash it may be too large, and the extra blocks read back as zeroes.
+//
+// A dropped MappedByteBuffer stays mapped until it is collected, and Windows refuses to cut a file
+// under a live mapping. So the physical file never shrinks below what this instance has mapped: close()
+// leaves the padding and the sidecar in place, and the next open cuts the file to its logical size
+// before mapping anything. Opened in another access mode, such a file shows the padding as empty blocks.
+public class MappedBinaryFile extends BinaryFile {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 24;
+
+    private final int segmentSize;
+    private final BinaryFile logicalSizeFile;
+    private MappedByteBuffer storedLogicalSize;
+    private volatile MappedByteBuffer[] segments;
+    // Copies through the mappings hold the read side; truncate() and close() hold the write side while
+    // they zero or drop segments, so no copy sees a half-zeroed page or one that is no longer mapped.
+    private final ReentrantReadWriteLock mappingLock = new ReentrantReadWriteLock();
+    private volatile long logicalSize;
+    private long position;
+
+    public MappedBinaryFile(String pathToFile) {
+        this(pathToFile, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public MappedBinaryFile(String pathToFile, int segmentSize) {
+        super(pathToFile);
+        try {
+            this.segmentSize = segmentSize;
+            this.segments = new MappedByteBuffer[0];
+            this.logicalSizeFile = new BinaryFile(logicalSizePath(pathToFile));
+            this.logicalSize = file.length();
+            if (logicalSizeFile.getSize() >= 8) {
+                ByteBuffer stored = ByteBuffer.allocate(8);
+                logicalSizeFile.read(0, stored);
+                this.logicalSize = Math.min(stored.getLong(0), logicalSize);
+            }
+            cutUnmappedTail(logicalSize);
+            this.storedLogicalSize = logicalSizeFile.channel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+            storeLogicalSize();
+            this.position = 0;
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    public static String logicalSizePath(String pathToFile) {
+        return pathToFile + ".size";
+    }
+
+    // The logical size is tracked here, so a write past it from another channel would go unnoticed.
+    @Override
+    public boolean supportsAsyncExtension() {
+        return false;
+    }
+
+    @Override
+    public void seek(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public long getSize() {
+        return logicalSize;
+    }
+
+    @Override
+    public void write(byte[] data) {
+        write(position, ByteBuffer.wrap(data));
+        position += data.length;
+    }
+
+    @Override
+    public byte[] read(int length) {
+        byte[] data = new byte[length];
+        read(position, ByteBuffer.wrap(data));
+        position += length;
+        return data;
+    }
+
+    @Override
+    public void read(long position, ByteBuffer destination) {
+        if (position + destination.remaining() > logicalSize) {
+            throw new RuntimeException("Failed to read from file: reading past the end of the file");
+        }
+        ensureMapped(position + destination.remaining());
+        copy(position, destination, false);
+    }
+
+    // The new size is stored before the data is copied in, so if the process dies it can only be too
+    // large, which reads back as zeroed blocks rather than losing any.
+    @Override
+    public void write(long position, ByteBuffer source) {
+        long end = position + source.remaining();
+        ensureMapped(end);
+        synchronized (this) {
+            if (end > logicalSize) {
+                logicalSize = end;
+                storeLogicalSize();
+            }
+        }
+        copy(position, source, true);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer[] sources) {
+        for (ByteBuffer source : sources) {
+            int length = source.remaining();
+            write(position, source);
+            position += length;
+        }
+    }
+
+    // The segments stay mapped, so the cut-off bytes inside them are zeroed rather than cut; only the
+    // part of the file past every mapping is cut. Mapped bytes past the old logical size are zero already.
+    @Override
+    public synchronized void truncate(long length) {
+        mappingLock.writeLock().lock();
+        try {
+            long mappedLength = (long) segments.length * segmentSize;
+            if (length < mappedLength) {
+                zeroMapped(length, Math.min(mappedLength, Math.max(length, logicalSize)));
+            } else if (length > file.length()) {
+                file.setLength(length);
+            }
+            cutUnmappedTail(Math.max(length, mappedLength));
+            logicalSize = length;
+            storeLogicalSize();
+            if (position > length) {
+                position = length;
+            }
+        } catch (Exception e) {
+            throw new Error(e);
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public synchronized void force() {
+        storedLogicalSize.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mappingLock.writeLock().lock();
+        try {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            segments = new MappedByteBuffer[0];
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+        storedLogicalSize.force();
+        super.close();
+        storedLogicalSize = null;
+        logicalSizeFile.close();
+    }
+
+    // Cuts the file down to length if it is longer. A mapping left by an earlier instance on the same
+    // file that has not been collected yet may still cover the tail, and on Windows the cut then fails;
+    // the padding is harmless behind the logical size, so it is left for the next open.
+    private void cutUnmappedTail(long length) {
+        try {
+            if (file.length() > length) {
+                file.setLength(length);
+            }
+        } catch (IOException e) {
+            // Left for the next open.
+        }
+    }
+
+    private void ensureMapped(long end) {
+        int requiredSegments = (int) ((end + segmentSize - 1) / segmentSize);
+        if (requiredSegments <= segments.length) {
+            return;
+        }
+
+        synchronized (this) {
+            try {
+                MappedByteBuffer[] current = segments;
+                if (requiredSegments <= current.length) {
+                    return;
+                }
+
+                long requiredLength = (long) requiredSegments * segmentSize;
+                if (file.length() < requiredLength) {
+                    file.setLength(requiredLength);
+                }
+
+                MappedByteBuffer[] grown = Arrays.copyOf(current, requiredSegments);
+                for (int i = current.length; i < requiredSegments; i++) {
+                    grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * segmentSize, segmentSize);
+                }
+                segments = grown;
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    private void storeLogicalSize() {
+        storedLogicalSize.putLong(0, logicalSize);
+    }
+
+    private void copy(long filePosition, ByteBuffer data, boolean toFile) {
+        mappingLock.readLock().lock();
+        try {
+            MappedByteBuffer[] mapped = segments;
+            while (data.hasRemaining()) {
+                MappedByteBuffer segment = mapped[(int) (filePosition / segmentSize)];
+                int offsetInSegment = (int) (filePosition % segmentSize);
+                int chunk = Math.min(data.remaining(), segmentSize - offsetInSegment);
+                ByteBuffer window = segment.slice(offsetInSegment, chunk);
+                if (toFile) {
+                    int limit = data.limit();
+                    data.limit(data.position() + chunk);
+                    window.put(data);
+                    data.limit(limit);
+                } else {
+                    data.put(window);
+                }
+                filePosition += chunk;
+            }
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    // [from, to) must lie in the mapped segments.
+    private void zeroMapped(long from, long to) {
+        byte[] zeros = new byte[(int) Math.min(to - from, 1 << 16)];
+        while (from < to) {
+            MappedByteBuffer segment = segments[(int) (from / segmentSize)];
+            int offsetInSegment = (int) (from % segmentSize);
+            int chunk = (int) Math.min(Math.min(to - from, zeros.length), segmentSize - offsetInSegment);
+            segment.put(offsetInSegment, zeros, 0, chunk);
+            from += chunk;
+        }
+    }
+}
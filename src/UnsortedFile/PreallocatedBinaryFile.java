@@ -0,0 +1,246 @@
+package UnsortedFile;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+// Keeps the end of data separate from the physical file length. The file grows by whole extents,
+// written as zeros so the file system allocates them up front instead of one block at a time, and
+// only gives space back as the ExtentPolicy allows. Everything between the end of data and the end of
+// the file is kept zeroed. The end of data is written to a sidecar file when an extent is grown or
+// the data shrinks, and forced with the data by force(); appends inside an extent do not touch it.
+// close() cuts the file back to the end of data and removes the sidecar again.
+public class PreallocatedBinaryFile extends BinaryFile {
+
+    private static final int ZERO_CHUNK_SIZE = 1 << 16;
+
+    private final BinaryFile dataFile;
+    private final String endOfDataPath;
+    private final BinaryFile endOfDataFile;
+    private final ExtentPolicy policy;
+    private volatile long logicalSize;
+    private long physicalSize;
+    private long position;
+    private long growCount;
+    private long shrinkCount;
+
+    public PreallocatedBinaryFile(BinaryFile dataFile, String pathToFile, ExtentPolicy policy) {
+        this.dataFile = dataFile;
+        this.policy = policy;
+        this.endOfDataPath = endOfDataPath(pathToFile);
+        this.physicalSize = dataFile.getSize();
+
+        this.endOfDataFile = new BinaryFile(endOfDataPath);
+        this.logicalSize = storedEndOfData(endOfDataFile, physicalSize);
+        storeLogicalSize();
+    }
+
+    public static String endOfDataPath(String pathToFile) {
+        return pathToFile + ".extent";
+    }
+
+    // A sidecar left behind means the file was not closed; the extent past the end of data is cut off
+    // so the file can be used without preallocation again. Blocks appended after the sidecar was last
+    // written lie past the stored end, so the end moves up to the last block that is not all zeros.
+    // Only the unused extent is scanned, and only after a crash.
+    public static void trimToEndOfData(BinaryFile dataFile, String pathToFile, int blockSize) {
+        File sidecar = new File(endOfDataPath(pathToFile));
+        if (!sidecar.exists()) {
+            return;
+        }
+        BinaryFile endOfDataFile = new BinaryFile(sidecar.getPath());
+        long endOfData = storedEndOfData(endOfDataFile, dataFile.getSize());
+        endOfDataFile.close();
+        endOfData = Math.max(endOfData, endOfWrittenBlocks(dataFile, endOfData, blockSize));
+        if (endOfData < dataFile.getSize()) {
+            dataFile.truncate(endOfData);
+        }
+        sidecar.delete();
+    }
+
+    private static long endOfWrittenBlocks(BinaryFile dataFile, long from, int blockSize) {
+        ByteBuffer block = dataFile.allocateBuffer(blockSize);
+        long end = dataFile.getSize() / blockSize * blockSize;
+        while (end > from) {
+            block.clear();
+            dataFile.read(end - blockSize, block);
+            block.flip();
+            while (block.hasRemaining()) {
+                if (block.get() != 0) {
+                    return end;
+                }
+            }
+            end -= blockSize;
+        }
+        return from;
+    }
+
+    private static long storedEndOfData(BinaryFile endOfDataFile, long physicalSize) {
+        if (endOfDataFile.getSize() < 8) {
+            return physicalSize;
+        }
+        ByteBuffer stored = ByteBuffer.allocate(8);
+        endOfDataFile.read(0, stored);
+        return Math.min(stored.getLong(0), physicalSize);
+    }
+
+    public long getPhysicalSize() {
+        synchronized (this) {
+            return physicalSize;
+        }
+    }
+
+    public ExtentPolicy getPolicy() {
+        return policy;
+    }
+
+    public synchronized long getGrowCount() {
+        return growCount;
+    }
+
+    public synchronized long getShrinkCount() {
+        return shrinkCount;
+    }
+
+    @Override
+    public boolean supportsAsyncIO() {
+        return dataFile.supportsAsyncIO();
+    }
+
+    // Only this wrapper may move the end of data and grow the extents behind it.
+    @Override
+    public boolean supportsAsyncExtension() {
+        return false;
+    }
+
+    @Override
+    public ByteBuffer allocateBuffer(int size) {
+        return dataFile.allocateBuffer(size);
+    }
+
+    @Override
+    public synchronized void seek(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public long getSize() {
+        return logicalSize;
+    }
+
+    @Override
+    public synchronized void write(byte[] data) {
+        write(position, ByteBuffer.wrap(data));
+        position += data.length;
+    }
+
+    @Override
+    public synchronized byte[] read(int length) {
+        byte[] data = new byte[length];
+        read(position, ByteBuffer.wrap(data));
+        position += length;
+        return data;
+    }
+
+    @Override
+    public void read(long position, ByteBuffer destination) {
+        if (position + destination.remaining() > logicalSize) {
+            throw new RuntimeException("Failed to read from file: reading past the end of the file");
+        }
+        dataFile.read(position, destination);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer source) {
+        extendTo(position + source.remaining());
+        dataFile.write(position, source);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer[] sources) {
+        long length = 0;
+        for (ByteBuffer source : sources) {
+            length += source.remaining();
+        }
+        extendTo(position + length);
+        dataFile.write(position, sources);
+    }
+
+    // Shrinking zeroes whatever stays of the cut data in the extent, so the space past the end of data
+    // reads as zeros again; growing zero-fills the gap for the same reason.
+    @Override
+    public synchronized void truncate(long length) {
+        if (length > logicalSize) {
+            long oldSize = logicalSize;
+            extendTo(length);
+            writeZeros(oldSize, length);
+        } else {
+            long oldSize = logicalSize;
+            logicalSize = length;
+            storeLogicalSize();
+            if (policy.shouldShrink(physicalSize, logicalSize)) {
+                physicalSize = Math.min(physicalSize, policy.shrunkSize(logicalSize));
+                dataFile.truncate(physicalSize);
+                shrinkCount++;
+            }
+            writeZeros(length, Math.min(oldSize, physicalSize));
+        }
+        if (position > length) {
+            position = length;
+        }
+    }
+
+    // The end of data is stored and made durable before the data, so everything forced lies inside it.
+    @Override
+    public void force() {
+        synchronized (this) {
+            storeLogicalSize();
+        }
+        endOfDataFile.force();
+        dataFile.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (physicalSize != logicalSize) {
+            dataFile.truncate(logicalSize);
+            physicalSize = logicalSize;
+        }
+        endOfDataFile.close();
+        new File(endOfDataPath).delete();
+        dataFile.close();
+    }
+
+    // Only growing an extent writes the sidecar. An append inside the extent moves the end of data in
+    // memory; after a crash trimToEndOfData finds it again from the blocks written past the stored end.
+    private synchronized void extendTo(long end) {
+        if (end > logicalSize) {
+            logicalSize = end;
+        }
+        if (end > physicalSize) {
+            long grownSize = policy.grownSize(physicalSize, end);
+            writeZeros(physicalSize, grownSize);
+            physicalSize = grownSize;
+            growCount++;
+            storeLogicalSize();
+        }
+    }
+
+    private void writeZeros(long from, long to) {
+        if (from >= to) {
+            return;
+        }
+        ByteBuffer zeros = dataFile.allocateBuffer((int) Math.min(ZERO_CHUNK_SIZE, Math.max(1, to - from)));
+        while (from < to) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), to - from));
+            dataFile.write(from, zeros);
+            from += zeros.limit();
+        }
+    }
+
+    private void storeLogicalSize() {
+        ByteBuffer stored = ByteBuffer.allocate(8);
+        stored.putLong(0, logicalSize);
+        endOfDataFile.write(0, stored);
+    }
+}
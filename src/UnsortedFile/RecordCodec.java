@@ -0,0 +1,93 @@
+package UnsortedFile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class RecordCodec {
+
+    private RecordCodec() {
+    }
+
+    public static void putZeros(ByteBuffer buffer, int count) {
+        while (count >= 8) {
+            buffer.putLong(0L);
+            count -= 8;
+        }
+        while (count > 0) {
+            buffer.put((byte) 0);
+            count--;
+        }
+    }
+
+    // Writes the string as a zero-padded ASCII field of the given width followed by its length byte.
+    public static void putFixedAscii(ByteBuffer buffer, String value, int width) {
+        int length = value == null ? 0 : Math.min(value.length(), width);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            buffer.put(c < 128 ? (byte) c : (byte) '?');
+        }
+        putZeros(buffer, width - length);
+        buffer.put((byte) length);
+    }
+
+    public static String getFixedAscii(ByteBuffer buffer, int width) {
+        int start = buffer.position();
+        int length = buffer.get(start + width);
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.US_ASCII);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(start, bytes);
+            value = new String(bytes, StandardCharsets.US_ASCII);
+        }
+        buffer.position(start + width + 1);
+        return value;
+    }
+
+    // Length-prefixed ASCII: one length byte followed by at most maxLength characters.
+    public static int shortAsciiSize(String value, int maxLength) {
+        return 1 + (value == null ? 0 : Math.min(value.length(), maxLength));
+    }
+
+    public static void putShortAscii(ByteBuffer buffer, String value, int maxLength) {
+        int length = value == null ? 0 : Math.min(value.length(), maxLength);
+        buffer.put((byte) length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            buffer.put(c < 128 ? (byte) c : (byte) '?');
+        }
+    }
+
+    public static String getShortAscii(ByteBuffer buffer) {
+        int length = Byte.toUnsignedInt(buffer.get());
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    // Absolute variants of getFixedAscii for record views; the buffer position is not touched.
+    public static String getFixedAscii(ByteBuffer buffer, int offset, int width) {
+        int length = buffer.get(offset + width);
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    public static boolean fixedAsciiEquals(ByteBuffer buffer, int offset, int width, String value) {
+        int length = buffer.get(offset + width);
+        if (value == null) {
+            return length == 0;
+        }
+        if (length != Math.min(value.length(), width)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (buffer.get(offset + i) != (c < 128 ? (byte) c : (byte) '?')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
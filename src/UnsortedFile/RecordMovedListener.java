@@ -0,0 +1,7 @@
+package UnsortedFile;
+
+@FunctionalInterface
+public interface RecordMovedListener<T extends StorableRecord> {
+
+    void recordMoved(T record, int fromBlockNumber, int toBlockNumber);
+}
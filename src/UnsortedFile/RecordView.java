@@ -0,0 +1,13 @@
+package UnsortedFile;
+
+import java.nio.ByteBuffer;
+
+// Flyweight over one serialized record. wrap() only moves the view; the accessors of an
+// implementation read their field straight from the buffer at fixed offsets, so one view instance
+// can walk any number of records without creating objects. materialize() builds the full record.
+public interface RecordView<T extends StorableRecord> {
+
+    public void wrap(ByteBuffer buffer, int offset);
+
+    public T materialize();
+}
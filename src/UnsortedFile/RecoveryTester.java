@@ -0,0 +1,930 @@
+package UnsortedFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import LinearHashing.Core.PCR;
+import LinearHashing.Core.Person;
+
+// Checks what a heap leaves behind when a run ends without close(). A crash is simulated by dropping
+// the heap without closing it and opening its files again, which is what the next run would see after
+// the process died: every write that reached the file is there, nothing buffered in the heap is.
+public class RecoveryTester {
+
+    private static final String TEST_DIRECTORY = "recoverytest";
+    private static final int BLOCK_SIZE = 512;
+    private static final int TOTAL_PERSONS = 2000;
+    private static final String[] HEAP_FILE_SUFFIXES = {"", ".meta", ".fsm", ".wal"};
+
+    private static final TestReport report = new TestReport("HEAP RECOVERY TESTER");
+
+    public static void main(String[] args) {
+        report.printHeader();
+
+        try {
+            report.cleanDirectory(TEST_DIRECTORY);
+
+            Person[] persons = generatePersons();
+
+            report.runTestMethod("Buffer pool evicts, writes dirty blocks back and flushes on close",
+                    () -> testBufferPoolEvictionAndWriteBack(persons));
+            report.runTestMethod("Memory-mapped heap reopens at its logical size after a crash",
+                    () -> testMappedFileSizeAfterCrash(persons));
+            report.runTestMethod("Memory-mapped file never cuts under its mappings and trims on the next open",
+                    RecoveryTester::testMappedTruncateKeepsMappings);
+            report.runTestMethod("A free block handed out before a crash is still free afterwards",
+                    () -> testHandedOutBlockStaysFreeAfterCrash(persons));
+            report.runTestMethod("Free-space map only records states whose blocks the pool has written back",
+                    () -> testFreeSpaceMapFollowsWriteBack(persons));
+            report.runTestMethod("Slotted pages pack variable-length records and reject oversized blocks",
+                    () -> testSlottedPagePacking(persons));
+            report.runTestMethod("Compressed file returns every block as written, across rewrites and reopening",
+                    RecoveryTester::testCompressedFileRoundTrip);
+            report.runTestMethod("Compressed file reuses released pages as block sizes change, and reopens intact",
+                    RecoveryTester::testCompressedPageReuse);
+            report.runTestMethod("Damaged compressed blocks fail as corrupted instead of overrunning",
+                    RecoveryTester::testCorruptedCompressedBlock);
+            report.runTestMethod("Per-operation durability forces every insert and bypasses the write-back pool",
+                    () -> testPerOperationDurability(persons));
+            report.runTestMethod("Write-ahead log replays after a crash and stops at a torn frame",
+                    () -> testWriteAheadLogReplayAfterTornFrame(persons));
+            report.runTestMethod("Sync between a write and its commit keeps the write out of the data file",
+                    () -> testSyncBeforeCommit(persons));
+            report.runTestMethod("A heap created again does not replay the old run's log",
+                    () -> testStaleLogIgnoredByNewHeap(persons));
+            report.runTestMethod("Preallocated heap drops the unused extent after a crash",
+                    () -> testPreallocatedFileAfterCrash(persons));
+            report.runTestMethod("Segmented file crosses, truncates and reopens segments",
+                    RecoveryTester::testSegmentedFile);
+            report.runTestMethod("Segmented heap replaces a heap file and reopens after a crash",
+                    () -> testSegmentedHeapAfterCrash(persons));
+            report.runTestMethod("Free-block lists of an old .meta file move into the free-space map",
+                    RecoveryTester::testLegacyMetadataMigration);
+            report.runTestMethod("Heap with an old .meta file reopens with the same free blocks",
+                    () -> testLegacyHeapMigration(persons));
+        } catch (Exception e) {
+            report.fatal(e);
+        }
+        report.printSummary();
+    }
+
+    private static String path(String name) {
+        return TEST_DIRECTORY + File.separator + name;
+    }
+
+    private static Person[] generatePersons() {
+        Person[] persons = new Person[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            Person person = new Person();
+            person.name = "Name" + (i % 37);
+            person.surname = "Surname" + (i % 53);
+            person.birthdate = 19500101L + i;
+            person.id = String.format("%08d", 10000000 + i);
+            persons[i] = person;
+        }
+        return persons;
+    }
+
+    private static Heap<Person> createHeap(String name, FileAccessMode accessMode) {
+        return new Heap<>(path(name), BLOCK_SIZE, Person::new, false, 0, accessMode);
+    }
+
+    private static Heap<Person> openHeap(String name, FileAccessMode accessMode) {
+        return new Heap<>(path(name), path(name + ".meta"), Person::new, false, 0, accessMode);
+    }
+
+    // Every record must be found in the block insert() returned for it.
+    private static int countMissing(Heap<Person> heap, Person[] persons, int[] blockNumbers, int count) {
+        int missing = 0;
+        for (int i = 0; i < count; i++) {
+            if (heap.get(blockNumbers[i], persons[i]) == null) {
+                missing++;
+            }
+        }
+        return missing;
+    }
+
+    private static void testBufferPoolEvictionAndWriteBack(Person[] persons) {
+        Heap<Person> heap = createHeap("pooled", FileAccessMode.STANDARD);
+        int[] blockNumbers = new int[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        heap.enableBufferPool(8);
+        BufferPool<Person> pool = heap.getBufferPool();
+
+        // Deleting every other record dirties every block, far more than the pool holds.
+        for (int i = 0; i < TOTAL_PERSONS; i += 2) {
+            heap.delete(blockNumbers[i], persons[i], Block<Person>::new, null, null);
+        }
+        long evictions = pool.getEvictionCount();
+        long writeBacks = pool.getWriteBackCount();
+        int cached = pool.getCachedBlockCount();
+        heap.close();
+
+        Heap<Person> reopened = openHeap("pooled", FileAccessMode.STANDARD);
+        int wrong = 0;
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            boolean found = reopened.get(blockNumbers[i], persons[i]) != null;
+            if (found != (i % 2 == 1)) {
+                wrong++;
+            }
+        }
+        reopened.close();
+
+        report.check(evictions > 0 && writeBacks > 0 && cached <= 8 && wrong == 0,
+                evictions + " evictions, " + writeBacks + " write-backs, all deletes kept",
+                evictions + " evictions, " + writeBacks + " write-backs, " + cached + " cached, " + wrong
+                        + " records wrong after reopening");
+    }
+
+    private static void testMappedFileSizeAfterCrash(Person[] persons) {
+        Heap<Person> heap = createHeap("mapped", FileAccessMode.MEMORY_MAPPED);
+        int[] blockNumbers = new int[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        int blockCount = heap.getTotalBlockCount();
+        long physicalSize = new File(path("mapped")).length();
+        System.out.println("  Blocks: " + blockCount + ", physical size while open: " + physicalSize);
+
+        Heap<Person> reopened = openHeap("mapped", FileAccessMode.MEMORY_MAPPED);
+        int missing = countMissing(reopened, persons, blockNumbers, TOTAL_PERSONS);
+        int reopenedBlockCount = reopened.getTotalBlockCount();
+        reopened.close();
+        long closedSize = new File(path("mapped")).length();
+        boolean sidecarLeft = new File(MappedBinaryFile.logicalSizePath(path("mapped"))).exists();
+
+        // Closing leaves the padding behind the sidecar; the next open cuts it before mapping.
+        Heap<Person> trimmed = openHeap("mapped", FileAccessMode.MEMORY_MAPPED);
+        long trimmedSize = new File(path("mapped")).length();
+        int trimmedBlockCount = trimmed.getTotalBlockCount();
+        int missingAfterTrim = countMissing(trimmed, persons, blockNumbers, TOTAL_PERSONS);
+        trimmed.close();
+
+        long logicalSize = (long) blockCount * BLOCK_SIZE;
+        report.check(reopenedBlockCount == blockCount && missing == 0 && closedSize >= logicalSize && sidecarLeft
+                && trimmedSize == logicalSize && trimmedBlockCount == blockCount && missingAfterTrim == 0,
+                blockCount + " blocks after reopening, " + closedSize + " bytes after close, trimmed to "
+                        + trimmedSize + " on the next open",
+                "reopened with " + reopenedBlockCount + " blocks instead of " + blockCount + ", " + missing
+                        + " records missing, closed size " + closedSize + ", sidecar left: " + sidecarLeft
+                        + ", next open at " + trimmedSize + " bytes with " + trimmedBlockCount + " blocks, "
+                        + missingAfterTrim + " missing");
+    }
+
+    // Dropped mappings stay alive until they are collected, and some platforms refuse to cut a file
+    // under one, so truncate() only zeroes what is mapped.
+    private static void testMappedTruncateKeepsMappings() {
+        int segmentSize = 4 * BLOCK_SIZE;
+        String name = path("mappedtruncate");
+        MappedBinaryFile file = new MappedBinaryFile(name, segmentSize);
+        byte[] block = new byte[BLOCK_SIZE];
+        Arrays.fill(block, (byte) 7);
+        for (int i = 0; i < 10; i++) {
+            file.write((long) i * BLOCK_SIZE, ByteBuffer.wrap(block));
+        }
+        long mappedSize = new File(name).length();
+
+        file.truncate(3 * BLOCK_SIZE);
+        long truncatedSize = new File(name).length();
+        boolean readPastEndRefused = false;
+        try {
+            file.read(3 * BLOCK_SIZE, ByteBuffer.allocate(BLOCK_SIZE));
+        } catch (RuntimeException e) {
+            readPastEndRefused = true;
+        }
+
+        // Growing again over the cut-off blocks must not bring their old bytes back.
+        file.truncate(6 * BLOCK_SIZE);
+        ByteBuffer regrown = ByteBuffer.allocate(3 * BLOCK_SIZE);
+        file.read(3 * BLOCK_SIZE, regrown);
+        boolean zeroed = Arrays.equals(regrown.array(), new byte[3 * BLOCK_SIZE]);
+        file.close();
+
+        MappedBinaryFile reopened = new MappedBinaryFile(name, segmentSize);
+        long reopenedSize = reopened.getSize();
+        long trimmedSize = new File(name).length();
+        reopened.close();
+
+        report.check(truncatedSize == mappedSize && readPastEndRefused && zeroed
+                && reopenedSize == 6 * BLOCK_SIZE && trimmedSize == 6 * BLOCK_SIZE,
+                mappedSize + " bytes kept while mapped, cut blocks zeroed, trimmed to " + trimmedSize + " on reopen",
+                mappedSize + " -> " + truncatedSize + " bytes while mapped, read past end refused "
+                        + readPastEndRefused + ", zeroed " + zeroed + ", reopened at " + reopenedSize + " with "
+                        + trimmedSize + " bytes on disk");
+    }
+
+    private static void testHandedOutBlockStaysFreeAfterCrash(Person[] persons) {
+        Heap<Person> heap = createHeap("freespace", FileAccessMode.STANDARD);
+        int[] blockNumbers = new int[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        // Emptying a block in the middle keeps it in the file as a free block.
+        int emptiedBlock = blockNumbers[TOTAL_PERSONS / 2];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            if (blockNumbers[i] == emptiedBlock) {
+                heap.delete(emptiedBlock, persons[i], Block<Person>::new, null, null);
+            }
+        }
+        heap.sync();
+
+        // The insert that would have filled the block never gets to write it.
+        int handedOut = heap.getBlockManager().getNextEmptyBlock();
+        boolean hiddenWhileHandedOut = !heap.getBlockManager().getEmptyBlocks().contains(handedOut);
+
+        Heap<Person> reopened = openHeap("freespace", FileAccessMode.STANDARD);
+        boolean freeAfterCrash = reopened.getBlockManager().getEmptyBlocks().contains(handedOut);
+        Person extra = new Person();
+        extra.id = "99999999";
+        extra.name = "Extra";
+        extra.surname = "Person";
+        int extraBlock = reopened.insert(extra);
+        reopened.close();
+
+        report.check(handedOut == emptiedBlock && hiddenWhileHandedOut && freeAfterCrash && extraBlock == emptiedBlock,
+                "block " + handedOut + " was free again after the crash and got reused",
+                "emptied " + emptiedBlock + ", handed out " + handedOut + ", hidden " + hiddenWhileHandedOut
+                        + ", free after crash " + freeAfterCrash + ", reused for " + extraBlock);
+    }
+
+    // Blocks whose recorded free-space state does not match what is in them.
+    static int countStateMismatches(Heap<Person> heap) {
+        Set<Integer> empty = new HashSet<>(heap.getBlockManager().getEmptyBlocks());
+        Set<Integer> partiallyEmpty = new HashSet<>(heap.getBlockManager().getPartiallyEmptyBlocks());
+        int mismatches = 0;
+        for (int blockNumber = 0; blockNumber < heap.getTotalBlockCount(); blockNumber++) {
+            Block<Person> block = heap.readBlock(blockNumber);
+            boolean isPartiallyEmpty = !block.isEmpty() && !block.isFull();
+            if (empty.contains(blockNumber) != block.isEmpty()
+                    || partiallyEmpty.contains(blockNumber) != isPartiallyEmpty) {
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private static void testFreeSpaceMapFollowsWriteBack(Person[] persons) {
+        Heap<Person> heap = createHeap("writeback", FileAccessMode.STANDARD);
+        int[] blockNumbers = new int[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        heap.close();
+
+        // The deletes only reach the pool; the crash loses them, so the blocks must not come back free.
+        Heap<Person> cached = openHeap("writeback", FileAccessMode.STANDARD);
+        cached.enableBufferPool(64);
+        for (int i = 100; i < 110; i++) {
+            cached.delete(blockNumbers[i], persons[i], Block<Person>::new, null, null);
+        }
+        boolean freeBeforeCrash = cached.getBlockManager().getEmptyBlocks().contains(blockNumbers[100]);
+
+        Heap<Person> afterLostDeletes = openHeap("writeback", FileAccessMode.STANDARD);
+        int lostMismatches = countStateMismatches(afterLostDeletes);
+        int lostMissing = countMissing(afterLostDeletes, persons, blockNumbers, TOTAL_PERSONS);
+
+        // Once flushed, the deletes and the states they recorded survive the crash together.
+        afterLostDeletes.enableBufferPool(64);
+        for (int i = 100; i < 110; i++) {
+            afterLostDeletes.delete(blockNumbers[i], persons[i], Block<Person>::new, null, null);
+        }
+        afterLostDeletes.flush();
+
+        Heap<Person> afterFlushedDeletes = openHeap("writeback", FileAccessMode.STANDARD);
+        int flushedMismatches = countStateMismatches(afterFlushedDeletes);
+        boolean freeAfterFlush = afterFlushedDeletes.getBlockManager().getEmptyBlocks().contains(blockNumbers[100]);
+        afterFlushedDeletes.close();
+
+        report.check(freeBeforeCrash && lostMismatches == 0 && lostMissing == 0 && flushedMismatches == 0
+                && freeAfterFlush,
+                "map matched the blocks after losing and after flushing the cached deletes",
+                "free before crash " + freeBeforeCrash + ", " + lostMismatches + " mismatched states and "
+                        + lostMissing + " records missing after lost deletes, " + flushedMismatches
+                        + " mismatched after flushed deletes, free after flush " + freeAfterFlush);
+    }
+
+    private static void testSlottedPagePacking(Person[] persons) {
+        List<Person> records = new ArrayList<>();
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            Person person = persons[i];
+            if (i % 50 == 0) {
+                person = new Person();
+                person.id = persons[i].id;
+                person.name = persons[i].name;
+                person.surname = persons[i].surname;
+                for (int t = 0; t < 4; t++) {
+                    PCR test = new PCR();
+                    test.testCode = t;
+                    test.patientNumber = person.id;
+                    test.note = "note " + t;
+                    person.addTest(test);
+                }
+            }
+            records.add(person);
+        }
+
+        Heap<Person> fixed = new Heap<>(path("fixedslots"), BLOCK_SIZE, Person::new, false, 0,
+                FileAccessMode.STANDARD, BlockLayout.FIXED_SLOTS);
+        fixed.insertAll(records);
+        int fixedBlocks = fixed.getTotalBlockCount();
+        fixed.close();
+
+        Heap<Person> slotted = new Heap<>(path("slotted"), BLOCK_SIZE, Person::new, false, 0,
+                FileAccessMode.STANDARD, BlockLayout.SLOTTED_PAGE);
+        List<Integer> blockNumbers = slotted.insertAll(records);
+        int slottedBlocks = slotted.getTotalBlockCount();
+        int missing = 0;
+        for (int i = 0; i < records.size(); i++) {
+            Person found = slotted.get(blockNumbers.get(i), records.get(i));
+            if (found == null || found.validTestsCount != records.get(i).validTestsCount) {
+                missing++;
+            }
+        }
+        slotted.close();
+
+        boolean oversizedRejected = false;
+        try {
+            new Heap<>(path("oversized"), SlottedBlock.MAX_BLOCK_SIZE + 1, Person::new, false, 0,
+                    FileAccessMode.STANDARD, BlockLayout.SLOTTED_PAGE);
+        } catch (Error e) {
+            oversizedRejected = true;
+        }
+
+        report.check(missing == 0 && slottedBlocks < fixedBlocks && oversizedRejected,
+                slottedBlocks + " slotted blocks against " + fixedBlocks + " fixed-slot blocks",
+                missing + " records missing, " + slottedBlocks + " slotted blocks against " + fixedBlocks
+                        + ", oversized rejected: " + oversizedRejected);
+    }
+
+    private static void testCompressedFileRoundTrip() {
+        String filePath = path("compressed");
+        int blockCount = 40;
+        byte[][] expected = new byte[blockCount][BLOCK_SIZE];
+        Random random = new Random(11);
+
+        CompressedBinaryFile file = new CompressedBinaryFile(filePath, BLOCK_SIZE);
+        for (int round = 0; round < 400; round++) {
+            int blockNumber = random.nextInt(blockCount);
+            // Mostly zeroes compress well; a fully random block is stored raw.
+            int filled = round % 10 == 0 ? BLOCK_SIZE : random.nextInt(BLOCK_SIZE / 4);
+            Arrays.fill(expected[blockNumber], (byte) 0);
+            for (int i = 0; i < filled; i++) {
+                expected[blockNumber][random.nextInt(BLOCK_SIZE)] = (byte) random.nextInt(256);
+            }
+            file.write((long) blockNumber * BLOCK_SIZE, ByteBuffer.wrap(expected[blockNumber].clone()));
+        }
+        long physicalSize = file.getPhysicalSize();
+        file.close();
+
+        CompressedBinaryFile reopened = new CompressedBinaryFile(filePath, BLOCK_SIZE);
+        int wrong = 0;
+        for (int blockNumber = 0; blockNumber < blockCount; blockNumber++) {
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+            reopened.read((long) blockNumber * BLOCK_SIZE, block);
+            if (!Arrays.equals(block.array(), expected[blockNumber])) {
+                wrong++;
+            }
+        }
+        long logicalSize = reopened.getSize();
+        reopened.close();
+
+        report.check(wrong == 0 && logicalSize == (long) blockCount * BLOCK_SIZE && physicalSize < logicalSize,
+                blockCount + " blocks in " + physicalSize + " of " + logicalSize + " bytes",
+                wrong + " blocks differ, logical size " + logicalSize + ", physical size " + physicalSize);
+    }
+
+    // Fills the block with zeroes and then the given number of random bytes at random offsets.
+    private static void fillBlock(byte[] block, int filled, Random random) {
+        Arrays.fill(block, (byte) 0);
+        for (int i = 0; i < filled; i++) {
+            block[random.nextInt(block.length)] = (byte) random.nextInt(256);
+        }
+    }
+
+    private static int countWrongBlocks(CompressedBinaryFile file, byte[][] expected) {
+        int wrong = 0;
+        for (int blockNumber = 0; blockNumber < expected.length; blockNumber++) {
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+            file.read((long) blockNumber * BLOCK_SIZE, block);
+            if (!Arrays.equals(block.array(), expected[blockNumber])) {
+                wrong++;
+            }
+        }
+        return wrong;
+    }
+
+    private static void testCompressedPageReuse() throws Exception {
+        String name = "compressedreuse";
+        int blockCount = 32;
+        int rewrites = 3000;
+        byte[][] expected = new byte[blockCount][BLOCK_SIZE];
+        int[] compressedLengths = new int[blockCount];
+        byte[] compressed = new byte[BLOCK_SIZE];
+        Random random = new Random(23);
+
+        CompressedBinaryFile file = new CompressedBinaryFile(path(name), BLOCK_SIZE);
+        for (int blockNumber = 0; blockNumber < blockCount; blockNumber++) {
+            fillBlock(expected[blockNumber], BLOCK_SIZE / 16, random);
+            compressedLengths[blockNumber] = RunLengthCodec.compress(expected[blockNumber], BLOCK_SIZE, compressed);
+            file.write((long) blockNumber * BLOCK_SIZE, ByteBuffer.wrap(expected[blockNumber].clone()));
+        }
+
+        // Sizes swing between almost empty and raw, so most rewrites need a different number of pages
+        // than the image they replace. Every so often the file is forced, which frees the old pages.
+        int resized = 0;
+        long largestSize = 0;
+        for (int round = 0; round < rewrites; round++) {
+            int blockNumber = random.nextInt(blockCount);
+            int filled = round % 7 == 0 ? BLOCK_SIZE : random.nextInt(BLOCK_SIZE / 4);
+            fillBlock(expected[blockNumber], filled, random);
+            int compressedLength = RunLengthCodec.compress(expected[blockNumber], BLOCK_SIZE, compressed);
+            if (compressedLength != compressedLengths[blockNumber]) {
+                resized++;
+            }
+            compressedLengths[blockNumber] = compressedLength;
+            file.write((long) blockNumber * BLOCK_SIZE, ByteBuffer.wrap(expected[blockNumber].clone()));
+            if (round % 400 == 399) {
+                file.force();
+            }
+            largestSize = Math.max(largestSize, file.getPhysicalSize());
+        }
+        file.force();
+        copyFiles(name, name + "_crashed", "", ".pages");
+        file.close();
+
+        CompressedBinaryFile reopened = new CompressedBinaryFile(path(name), BLOCK_SIZE);
+        int wrong = countWrongBlocks(reopened, expected);
+        reopened.close();
+        CompressedBinaryFile crashed = new CompressedBinaryFile(path(name + "_crashed"), BLOCK_SIZE);
+        int wrongAfterCrash = countWrongBlocks(crashed, expected);
+        crashed.close();
+
+        // Without reuse every rewrite would append, and the file would grow far past the raw size.
+        long rawSize = (long) blockCount * BLOCK_SIZE;
+        report.check(resized > rewrites / 2 && largestSize <= 2 * rawSize && wrong == 0 && wrongAfterCrash == 0,
+                resized + " of " + rewrites + " rewrites changed size, file never above " + largestSize + " bytes",
+                resized + " rewrites changed size, largest physical size " + largestSize + " for " + rawSize
+                        + " raw bytes, " + wrong + " blocks wrong after reopening, " + wrongAfterCrash
+                        + " after the crash");
+    }
+
+    // Counts the inputs that do not fail with the corrupted-block error.
+    private static int countUnreported(byte[][] inputs, int expectedLength) {
+        int unreported = 0;
+        for (byte[] input : inputs) {
+            try {
+                RunLengthCodec.decompress(input, input.length, new byte[expectedLength], expectedLength);
+                unreported++;
+            } catch (IllegalStateException e) {
+                if (!e.getMessage().startsWith("Corrupted compressed block")) {
+                    unreported++;
+                }
+            } catch (RuntimeException e) {
+                unreported++;
+            }
+        }
+        return unreported;
+    }
+
+    private static void testCorruptedCompressedBlock() throws Exception {
+        byte[] block = new byte[BLOCK_SIZE];
+        fillBlock(block, 20, new Random(5));
+        byte[] compressed = new byte[BLOCK_SIZE];
+        int length = RunLengthCodec.compress(block, BLOCK_SIZE, compressed);
+        byte[] runsPastTheEnd = new byte[8];
+        Arrays.fill(runsPastTheEnd, (byte) 0xFF);
+        byte[][] inputs = {
+                // Literals that run past the end of the input.
+                {127, 1, 2, 3},
+                // A run without the byte it repeats.
+                {(byte) 200},
+                // Runs that produce more than a block.
+                runsPastTheEnd,
+                // A valid block cut short.
+                Arrays.copyOf(compressed, length - 1)
+        };
+        int unreported = countUnreported(inputs, BLOCK_SIZE);
+
+        // The same through the file: a block whose pages were overwritten.
+        String filePath = path("compressedcorrupt");
+        CompressedBinaryFile file = new CompressedBinaryFile(filePath, BLOCK_SIZE);
+        file.write(0, ByteBuffer.wrap(block.clone()));
+        file.close();
+        try (RandomAccessFile data = new RandomAccessFile(filePath, "rw")) {
+            data.seek(0);
+            data.write(runsPastTheEnd);
+        }
+        boolean reportedByFile = false;
+        CompressedBinaryFile corrupted = new CompressedBinaryFile(filePath, BLOCK_SIZE);
+        try {
+            corrupted.read(0, ByteBuffer.allocate(BLOCK_SIZE));
+        } catch (IllegalStateException e) {
+            reportedByFile = e.getMessage().startsWith("Corrupted compressed block");
+        } finally {
+            corrupted.close();
+        }
+
+        report.check(unreported == 0 && reportedByFile,
+                "all " + inputs.length + " damaged inputs and the damaged file block reported as corrupted",
+                unreported + " damaged inputs not reported as corrupted, file block reported: " + reportedByFile);
+    }
+
+    private static void testPerOperationDurability(Person[] persons) {
+        int count = 200;
+        Heap<Person> heap = createHeap("durable", FileAccessMode.STANDARD);
+        heap.enableBufferPool(4);
+        heap.setDurability(DurabilityMode.PER_OPERATION);
+        int[] blockNumbers = new int[count];
+        for (int i = 0; i < count; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        long forceCount = heap.getDurabilityManager().getForceCount();
+
+        Heap<Person> reopened = openHeap("durable", FileAccessMode.STANDARD);
+        int missing = countMissing(reopened, persons, blockNumbers, count);
+        reopened.close();
+
+        report.check(forceCount >= count && missing == 0,
+                forceCount + " forces for " + count + " inserts, none lost",
+                forceCount + " forces for " + count + " inserts, " + missing + " lost");
+    }
+
+    private static void testWriteAheadLogReplayAfterTornFrame(Person[] persons) throws Exception {
+        int count = 500;
+        Heap<Person> heap = createHeap("logged", FileAccessMode.STANDARD);
+        heap.enableBufferPool(4);
+        heap.enableWriteAheadLog(path("logged.wal"), 50);
+        int[] blockNumbers = new int[count];
+        for (int i = 0; i < count; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        heap.commit();
+
+        // A frame the crash cut off half-way.
+        try (RandomAccessFile log = new RandomAccessFile(path("logged.wal"), "rw")) {
+            byte[] torn = new byte[37];
+            new Random(7).nextBytes(torn);
+            log.seek(log.length());
+            log.write(torn);
+        }
+
+        Heap<Person> reopened = openHeap("logged", FileAccessMode.STANDARD);
+        boolean recovered = reopened.enableWriteAheadLog(path("logged.wal"), 50);
+        int missing = countMissing(reopened, persons, blockNumbers, count);
+        long scanned = reopened.scan().count();
+        reopened.close();
+        long logSizeAfterClose = new File(path("logged.wal")).length();
+
+        report.check(recovered && missing == 0 && scanned == count && logSizeAfterClose == 0,
+                "log replayed, all " + count + " records present",
+                "recovered " + recovered + ", " + missing + " missing, " + scanned
+                        + " scanned, log size after close " + logSizeAfterClose);
+    }
+
+    // Copies a file and its companions as they are now, so the copy can be opened as what a crash at
+    // this point would leave behind while the original keeps running.
+    private static void copyFiles(String name, String copyName, String... suffixes) throws Exception {
+        for (String suffix : suffixes) {
+            File file = new File(path(name + suffix));
+            if (file.exists()) {
+                Files.copy(file.toPath(), Paths.get(path(copyName + suffix)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private static void testSyncBeforeCommit(Person[] persons) throws Exception {
+        int count = 25;
+        Heap<Person> heap = createHeap("logsync", FileAccessMode.STANDARD);
+        heap.enableWriteAheadLog(path("logsync.wal"), 10);
+        int[] blockNumbers = new int[count];
+        for (int i = 0; i < count; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+
+        // A change made through writeBlock belongs to the caller's operation until it commits.
+        Block<Person> block = heap.readBlock(blockNumbers[0]);
+        block.delete(persons[0]);
+        heap.writeBlock(blockNumbers[0], block);
+        heap.sync();
+        copyFiles("logsync", "logsync_synced", HEAP_FILE_SUFFIXES);
+        heap.commit();
+        copyFiles("logsync", "logsync_committed", HEAP_FILE_SUFFIXES);
+        heap.close();
+
+        Heap<Person> synced = openHeap("logsync_synced", FileAccessMode.STANDARD);
+        synced.enableWriteAheadLog(path("logsync_synced.wal"), 10);
+        int missingAfterSync = countMissing(synced, persons, blockNumbers, count);
+        synced.close();
+
+        Heap<Person> committed = openHeap("logsync_committed", FileAccessMode.STANDARD);
+        committed.enableWriteAheadLog(path("logsync_committed.wal"), 10);
+        int missingAfterCommit = countMissing(committed, persons, blockNumbers, count);
+        boolean deleted = committed.get(blockNumbers[0], persons[0]) == null;
+        committed.close();
+
+        report.check(missingAfterSync == 0 && missingAfterCommit == 1 && deleted,
+                "the delete was absent after the sync and present after the commit",
+                missingAfterSync + " records missing after the sync, " + missingAfterCommit
+                        + " after the commit, deleted record gone: " + deleted);
+    }
+
+    private static void testStaleLogIgnoredByNewHeap(Person[] persons) {
+        Heap<Person> heap = createHeap("recreated", FileAccessMode.STANDARD);
+        heap.enableWriteAheadLog(path("recreated.wal"), 1);
+        for (int i = 0; i < 100; i++) {
+            heap.insert(persons[i]);
+        }
+
+        Heap<Person> recreated = createHeap("recreated", FileAccessMode.STANDARD);
+        boolean replayed = recreated.enableWriteAheadLog(path("recreated.wal"), 1);
+        long scanned = recreated.scan().count();
+        recreated.close();
+
+        report.check(!replayed && scanned == 0, "the new heap started empty",
+                "replayed " + replayed + ", " + scanned + " records in the new heap");
+    }
+
+    private static void testPreallocatedFileAfterCrash(Person[] persons) {
+        Heap<Person> heap = createHeap("prealloc", FileAccessMode.STANDARD);
+        heap.enablePreallocation(ExtentPolicy.fixed(256 * 1024));
+        int[] blockNumbers = new int[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        // Emptying the last blocks shrinks the end of data inside the extent; the blocks appended again
+        // afterwards lie past the stored end and must be found from their contents.
+        int removed = 0;
+        for (int i = TOTAL_PERSONS - 1; i >= TOTAL_PERSONS - 100; i--) {
+            if (heap.delete(blockNumbers[i], persons[i], Block<Person>::new, null, null)) {
+                removed++;
+            }
+        }
+        for (int i = TOTAL_PERSONS - 100; i < TOTAL_PERSONS - 50; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+            removed--;
+        }
+        int blockCount = heap.getTotalBlockCount();
+        long physicalSize = new File(path("prealloc")).length();
+
+        Heap<Person> reopened = openHeap("prealloc", FileAccessMode.STANDARD);
+        int reopenedBlockCount = reopened.getTotalBlockCount();
+        int missing = countMissing(reopened, persons, blockNumbers, TOTAL_PERSONS - removed);
+        long reopenedSize = new File(path("prealloc")).length();
+        reopened.close();
+
+        report.check(removed == 50 && physicalSize > (long) blockCount * BLOCK_SIZE
+                && reopenedBlockCount == blockCount && missing == 0
+                && reopenedSize == (long) blockCount * BLOCK_SIZE,
+                physicalSize + " bytes before the crash, " + reopenedSize + " after",
+                blockCount + " blocks, " + physicalSize + " bytes before, reopened with " + reopenedBlockCount
+                        + " blocks and " + reopenedSize + " bytes, " + missing + " missing");
+    }
+
+    private static void testSegmentedFile() {
+        String filePath = path("segmentedfile");
+        int segmentSize = 8 * BLOCK_SIZE;
+        List<String> directories = List.of(path("segments_a"), path("segments_b"));
+        SegmentedBinaryFile.create(filePath, segmentSize, directories);
+
+        // One write that starts inside the first segment and ends inside the third.
+        byte[] data = new byte[2 * segmentSize];
+        new Random(13).nextBytes(data);
+        int start = segmentSize - 100;
+        SegmentedBinaryFile file = new SegmentedBinaryFile(filePath, BLOCK_SIZE);
+        file.write(start, ByteBuffer.wrap(data));
+        int segmentsWritten = file.getSegmentCount();
+        boolean bothDirectoriesUsed = file.getSegmentPaths().get(0).startsWith(directories.get(0))
+                && file.getSegmentPaths().get(1).startsWith(directories.get(1));
+        ByteBuffer readBack = ByteBuffer.allocate(data.length);
+        file.read(start, readBack);
+        boolean crossedIntact = Arrays.equals(readBack.array(), data);
+
+        // Cutting inside the second segment drops the third one and shortens the second.
+        long cutLength = segmentSize + 300;
+        String droppedSegment = file.getSegmentPaths().get(2);
+        file.truncate(cutLength);
+        int segmentsAfterTruncate = file.getSegmentCount();
+        boolean droppedDeleted = !new File(droppedSegment).exists();
+        file.close();
+
+        SegmentedBinaryFile reopened = new SegmentedBinaryFile(filePath, BLOCK_SIZE);
+        long reopenedSize = reopened.getSize();
+        ByteBuffer kept = ByteBuffer.allocate((int) (cutLength - start));
+        reopened.read(start, kept);
+        boolean keptIntact = Arrays.equals(kept.array(), Arrays.copyOf(data, kept.capacity()));
+        reopened.close();
+        SegmentedBinaryFile.delete(filePath);
+
+        report.check(segmentsWritten == 3 && bothDirectoriesUsed && crossedIntact && segmentsAfterTruncate == 2
+                && droppedDeleted && reopenedSize == cutLength && keptIntact,
+                "write across 3 segments read back, truncated to 2, " + reopenedSize + " bytes after reopening",
+                segmentsWritten + " segments written, placed round-robin " + bothDirectoriesUsed
+                        + ", read back intact " + crossedIntact + ", " + segmentsAfterTruncate
+                        + " segments after truncate, dropped one deleted " + droppedDeleted + ", reopened with "
+                        + reopenedSize + " bytes, intact " + keptIntact);
+    }
+
+    private static void testSegmentedHeapAfterCrash(Person[] persons) {
+        // A heap file from an earlier run in another mode is at the path.
+        Heap<Person> standard = createHeap("segmentedheap", FileAccessMode.STANDARD);
+        standard.insert(persons[0]);
+        standard.close();
+        boolean replacedDefault;
+        try {
+            Heap<Person> segmented = createHeap("segmentedheap", FileAccessMode.SEGMENTED);
+            segmented.insert(persons[0]);
+            replacedDefault = segmented.get(0, persons[0]) != null;
+            segmented.close();
+        } catch (Error e) {
+            replacedDefault = false;
+        }
+        SegmentedBinaryFile.delete(path("segmentedheap"));
+
+        Heap<Person> standardAgain = createHeap("segmentedheap", FileAccessMode.STANDARD);
+        standardAgain.insert(persons[0]);
+        standardAgain.close();
+        SegmentedBinaryFile.create(path("segmentedheap"), 64 * BLOCK_SIZE,
+                List.of(path("segments_a"), path("segments_b")));
+        Heap<Person> heap = createHeap("segmentedheap", FileAccessMode.SEGMENTED);
+        int[] blockNumbers = new int[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        SegmentedBinaryFile segmentedFile = new SegmentedBinaryFile(path("segmentedheap"), BLOCK_SIZE);
+        int segmentsBefore = segmentedFile.getSegmentCount();
+        segmentedFile.close();
+
+        // Emptying the last blocks truncates the heap back over several segment boundaries.
+        int kept = TOTAL_PERSONS - 500;
+        for (int i = TOTAL_PERSONS - 1; i >= kept; i--) {
+            heap.delete(blockNumbers[i], persons[i], Block<Person>::new, null, null);
+        }
+        int blockCount = heap.getTotalBlockCount();
+
+        Heap<Person> reopened = openHeap("segmentedheap", FileAccessMode.SEGMENTED);
+        int reopenedBlockCount = reopened.getTotalBlockCount();
+        int missing = countMissing(reopened, persons, blockNumbers, kept);
+        reopened.close();
+        segmentedFile = new SegmentedBinaryFile(path("segmentedheap"), BLOCK_SIZE);
+        int segmentsAfter = segmentedFile.getSegmentCount();
+        segmentedFile.close();
+
+        report.check(replacedDefault && segmentsBefore > 2 && segmentsAfter < segmentsBefore
+                && reopenedBlockCount == blockCount && missing == 0,
+                "heap file replaced, " + segmentsBefore + " -> " + segmentsAfter + " segments, " + blockCount
+                        + " blocks after reopening",
+                "replaced the old heap file " + replacedDefault + ", " + segmentsBefore + " -> " + segmentsAfter
+                        + " segments, reopened with " + reopenedBlockCount + " blocks instead of " + blockCount
+                        + ", " + missing + " records missing");
+    }
+
+    // The layout BlockManager wrote before the free-space map: the block size, then the empty and the
+    // partially empty block numbers, each list preceded by its length.
+    private static void writeLegacyMetadata(String metadataPath, int blockSize, List<Integer> emptyBlocks,
+            List<Integer> partiallyEmptyBlocks) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(blockSize);
+        out.writeInt(emptyBlocks.size());
+        for (int blockNumber : emptyBlocks) {
+            out.writeInt(blockNumber);
+        }
+        out.writeInt(partiallyEmptyBlocks.size());
+        for (int blockNumber : partiallyEmptyBlocks) {
+            out.writeInt(blockNumber);
+        }
+        Files.write(Paths.get(metadataPath), bytes.toByteArray());
+        FreeSpaceMap.delete(BlockManager.freeSpaceMapPath(metadataPath));
+    }
+
+    // Counts the blocks below blockCount whose state or next free block differs from the lists.
+    private static int countMigrationErrors(BlockManager manager, Set<Integer> empty, Set<Integer> partiallyEmpty,
+            int blockCount) {
+        int errors = 0;
+        int nextFree = -1;
+        for (int blockNumber = blockCount - 1; blockNumber >= 0; blockNumber--) {
+            if (empty.contains(blockNumber) || partiallyEmpty.contains(blockNumber)) {
+                nextFree = blockNumber;
+            }
+            if (manager.isEmptyBlock(blockNumber) != empty.contains(blockNumber)
+                    || manager.findFreeBlock(blockNumber) != nextFree) {
+                errors++;
+            }
+        }
+        if (!new HashSet<>(manager.getEmptyBlocks()).equals(empty)
+                || !new HashSet<>(manager.getPartiallyEmptyBlocks()).equals(partiallyEmpty)) {
+            errors++;
+        }
+        return errors;
+    }
+
+    // The lists are unsorted and spread over several pages of the map, as an old file may hold them.
+    private static void testLegacyMetadataMigration() throws Exception {
+        int blockCount = 3 * FreeSpaceMap.BLOCKS_PER_PAGE + 100;
+        Random random = new Random(11);
+        List<Integer> emptyBlocks = new ArrayList<>();
+        List<Integer> partiallyEmptyBlocks = new ArrayList<>();
+        for (int blockNumber = 0; blockNumber < blockCount; blockNumber++) {
+            int state = random.nextInt(5);
+            if (state == 0) {
+                emptyBlocks.add(blockNumber);
+            } else if (state == 1) {
+                partiallyEmptyBlocks.add(blockNumber);
+            }
+        }
+        Collections.shuffle(emptyBlocks, random);
+        Collections.shuffle(partiallyEmptyBlocks, random);
+        Set<Integer> empty = new HashSet<>(emptyBlocks);
+        Set<Integer> partiallyEmpty = new HashSet<>(partiallyEmptyBlocks);
+
+        String metadataPath = path("legacy.meta");
+        writeLegacyMetadata(metadataPath, BLOCK_SIZE, emptyBlocks, partiallyEmptyBlocks);
+
+        BlockManager migrated = new BlockManager(metadataPath);
+        int blockSize = migrated.getBlockSize();
+        int errors = countMigrationErrors(migrated, empty, partiallyEmpty, blockCount);
+        migrated.close();
+        long rewrittenSize = new File(metadataPath).length();
+
+        // The second open reads the map and must not take the lists again.
+        BlockManager reopened = new BlockManager(metadataPath);
+        int errorsAfterReopen = countMigrationErrors(reopened, empty, partiallyEmpty, blockCount);
+        reopened.close();
+
+        report.check(blockSize == BLOCK_SIZE && errors == 0 && errorsAfterReopen == 0 && rewrittenSize == 12,
+                empty.size() + " empty and " + partiallyEmpty.size() + " partially empty of " + blockCount
+                        + " blocks migrated, lists dropped from the .meta file",
+                "block size " + blockSize + ", " + errors + " blocks wrong after migrating, " + errorsAfterReopen
+                        + " after reopening, .meta left at " + rewrittenSize + " bytes");
+    }
+
+    // Several records to a block, so that deletes leave partially empty blocks as well as empty ones.
+    private static void testLegacyHeapMigration(Person[] persons) throws Exception {
+        int blockSize = 4 * BLOCK_SIZE;
+        Heap<Person> heap = new Heap<>(path("legacy"), blockSize, Person::new, false, 0, FileAccessMode.STANDARD);
+        int[] blockNumbers = new int[TOTAL_PERSONS];
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        // Emptied blocks in the middle and half-emptied ones elsewhere give both lists entries.
+        Set<Integer> emptied = new HashSet<>();
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            if (blockNumbers[i] % 7 == 3) {
+                heap.delete(blockNumbers[i], persons[i], Block<Person>::new, null, null);
+                emptied.add(i);
+            } else if (blockNumbers[i] % 5 == 1 && i % 2 == 0) {
+                heap.delete(blockNumbers[i], persons[i], Block<Person>::new, null, null);
+                emptied.add(i);
+            }
+        }
+        List<Integer> emptyBlocks = heap.getBlockManager().getEmptyBlocks();
+        List<Integer> partiallyEmptyBlocks = heap.getBlockManager().getPartiallyEmptyBlocks();
+        int blockCount = heap.getTotalBlockCount();
+        heap.close();
+
+        Collections.reverse(emptyBlocks);
+        writeLegacyMetadata(path("legacy.meta"), blockSize, emptyBlocks, partiallyEmptyBlocks);
+
+        Heap<Person> reopened = openHeap("legacy", FileAccessMode.STANDARD);
+        int mismatches = countStateMismatches(reopened);
+        int wrong = 0;
+        for (int i = 0; i < TOTAL_PERSONS; i++) {
+            boolean found = reopened.get(blockNumbers[i], persons[i]) != null;
+            if (found == emptied.contains(i)) {
+                wrong++;
+            }
+        }
+        // Freed room is used before the heap grows.
+        Person extra = new Person();
+        extra.id = "99999998";
+        extra.name = "Extra";
+        extra.surname = "Person";
+        int extraBlock = reopened.insert(extra);
+        int firstFree = Math.min(emptyBlocks.isEmpty() ? blockCount : Collections.min(emptyBlocks),
+                partiallyEmptyBlocks.isEmpty() ? blockCount : Collections.min(partiallyEmptyBlocks));
+        reopened.close();
+
+        report.check(!emptyBlocks.isEmpty() && !partiallyEmptyBlocks.isEmpty() && mismatches == 0 && wrong == 0
+                && extraBlock == firstFree,
+                emptyBlocks.size() + " empty and " + partiallyEmptyBlocks.size()
+                        + " partially empty blocks kept, next insert went to block " + extraBlock,
+                emptyBlocks.size() + " empty and " + partiallyEmptyBlocks.size() + " partially empty listed, "
+                        + mismatches + " mismatched states, " + wrong + " records wrong, insert went to "
+                        + extraBlock + " instead of " + firstFree);
+    }
+}
@@ -0,0 +1,91 @@
+package UnsortedFile;
+
+import java.util.Arrays;
+
+// Byte-oriented run-length encoding. A control byte below 128 is followed by control + 1 literal
+// bytes; a control byte of 128 or more is followed by one byte repeated control - 128 + MIN_RUN times.
+// Blocks are mostly zero padding and short fixed-width fields, which this handles well.
+public final class RunLengthCodec {
+
+    private static final int MIN_RUN = 3;
+    private static final int MAX_RUN = 127 + MIN_RUN;
+    private static final int MAX_LITERALS = 128;
+
+    private RunLengthCodec() {
+    }
+
+    // Returns the compressed length, or -1 if the result would not fit into destination.
+    public static int compress(byte[] source, int length, byte[] destination) {
+        int in = 0;
+        int out = 0;
+        int literalStart = 0;
+
+        while (in < length) {
+            int run = 1;
+            while (in + run < length && run < MAX_RUN && source[in + run] == source[in]) {
+                run++;
+            }
+
+            if (run >= MIN_RUN) {
+                out = flushLiterals(source, literalStart, in, destination, out);
+                if (out < 0 || out + 2 > destination.length) {
+                    return -1;
+                }
+                destination[out++] = (byte) (128 + run - MIN_RUN);
+                destination[out++] = source[in];
+                in += run;
+                literalStart = in;
+            } else {
+                in++;
+                if (in - literalStart == MAX_LITERALS) {
+                    out = flushLiterals(source, literalStart, in, destination, out);
+                    if (out < 0) {
+                        return -1;
+                    }
+                    literalStart = in;
+                }
+            }
+        }
+
+        return flushLiterals(source, literalStart, in, destination, out);
+    }
+
+    // Damaged input fails with the corrupted-block error before any read or write past either array.
+    public static void decompress(byte[] source, int length, byte[] destination, int expectedLength) {
+        int in = 0;
+        int out = 0;
+        while (in < length) {
+            int control = source[in++] & 0xFF;
+            boolean literals = control < 128;
+            int count = literals ? control + 1 : control - 128 + MIN_RUN;
+            int inputBytes = literals ? count : 1;
+            if (in + inputBytes > length || out + count > expectedLength) {
+                throw new IllegalStateException("Corrupted compressed block: " + (literals ? "literals" : "run")
+                        + " of " + count + " bytes at input offset " + (in - 1) + " overruns the block");
+            }
+            if (literals) {
+                System.arraycopy(source, in, destination, out, count);
+            } else {
+                Arrays.fill(destination, out, out + count, source[in]);
+            }
+            in += inputBytes;
+            out += count;
+        }
+        if (out != expectedLength) {
+            throw new IllegalStateException("Corrupted compressed block: " + out + " != " + expectedLength);
+        }
+    }
+
+    private static int flushLiterals(byte[] source, int from, int to, byte[] destination, int out) {
+        if (out < 0 || from == to) {
+            return out;
+        }
+        int count = to - from;
+        if (out + 1 + count > destination.length) {
+            return -1;
+        }
+        destination[out++] = (byte) (count - 1);
+        System.arraycopy(source, from, destination, out, count);
+        return out + count;
+    }
+}
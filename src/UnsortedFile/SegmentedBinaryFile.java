@@ -0,0 +1,358 @@
+package UnsortedFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// One logical file spread over fixed-size segment files. The file at the heap path only holds the
+// segment directory: the segment size, the directories new segments are placed in (round-robin, so
+// they can sit on different mount points) and the path of every segment. Positions are longs and each
+// segment has its own channel, so transfers to different segments do not contend. A Heap on top of it
+// still numbers its blocks with ints, so segments spread the bytes but do not raise the block limit.
+public class SegmentedBinaryFile extends BinaryFile {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    private static final int MAGIC = 0x53454731;
+
+    private final String directoryPath;
+    private final BinaryFile directoryFile;
+    private final long segmentSize;
+    private final List<String> placementDirectories;
+    private final List<String> segmentPaths;
+    private volatile BinaryFile[] segments;
+    private volatile long size;
+    private long position;
+
+    // Opens the segment directory at pathToFile, or creates one that keeps all segments next to it.
+    public SegmentedBinaryFile(String pathToFile, int blockSize) {
+        this.directoryPath = pathToFile;
+        this.directoryFile = new BinaryFile(pathToFile);
+        this.segmentPaths = new ArrayList<>();
+        this.segments = new BinaryFile[0];
+
+        if (directoryFile.getSize() == 0) {
+            this.segmentSize = Math.max(blockSize, DEFAULT_SEGMENT_SIZE / blockSize * blockSize);
+            this.placementDirectories = List.of(parentDirectory(pathToFile));
+            saveDirectory();
+        } else {
+            DirectoryContent content = loadDirectory();
+            this.segmentSize = content.segmentSize;
+            this.placementDirectories = content.placementDirectories;
+            this.segmentPaths.addAll(content.segmentPaths);
+            openSegments();
+        }
+        if (segmentSize % blockSize != 0) {
+            throw new Error("Segment size " + segmentSize + " is not a multiple of the block size " + blockSize);
+        }
+    }
+
+    // Writes an empty segment directory with the given placement. A heap created afterwards on the
+    // same path with FileAccessMode.SEGMENTED picks it up.
+    public static void create(String pathToFile, long segmentSize, List<String> placementDirectories) {
+        if (segmentSize <= 0 || placementDirectories.isEmpty()) {
+            throw new Error("A segmented file needs a positive segment size and at least one directory");
+        }
+        delete(pathToFile);
+        for (String directory : placementDirectories) {
+            new File(directory).mkdirs();
+        }
+        BinaryFile directoryFile = new BinaryFile(pathToFile);
+        directoryFile.write(0, ByteBuffer.wrap(encodeDirectory(segmentSize, placementDirectories, List.of())));
+        directoryFile.close();
+    }
+
+    // True if the file at pathToFile starts like a segment directory.
+    public static boolean isSegmentDirectory(String pathToFile) {
+        File file = new File(pathToFile);
+        if (file.length() < 4) {
+            return false;
+        }
+        BinaryFile directoryFile = new BinaryFile(pathToFile);
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            directoryFile.read(0, magic);
+            return magic.getInt(0) == MAGIC;
+        } finally {
+            directoryFile.close();
+        }
+    }
+
+    // Removes the segment directory and every segment it lists. Any other file at the path, such as a
+    // heap file written in another mode, is just deleted.
+    public static void delete(String pathToFile) {
+        File file = new File(pathToFile);
+        if (!file.exists()) {
+            return;
+        }
+        if (isSegmentDirectory(pathToFile)) {
+            BinaryFile directoryFile = new BinaryFile(pathToFile);
+            DirectoryContent content;
+            try {
+                content = decodeDirectory(pathToFile, directoryFile);
+            } finally {
+                directoryFile.close();
+            }
+            for (String segmentPath : content.segmentPaths) {
+                new File(segmentPath).delete();
+            }
+        }
+        file.delete();
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    public List<String> getSegmentPaths() {
+        synchronized (this) {
+            return new ArrayList<>(segmentPaths);
+        }
+    }
+
+    // Offsets are spread over several segment files, not one file at the same positions.
+    @Override
+    public boolean supportsAsyncIO() {
+        return false;
+    }
+
+    @Override
+    public synchronized void seek(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized void write(byte[] data) {
+        write(position, ByteBuffer.wrap(data));
+        position += data.length;
+    }
+
+    @Override
+    public synchronized byte[] read(int length) {
+        byte[] data = new byte[length];
+        read(position, ByteBuffer.wrap(data));
+        position += length;
+        return data;
+    }
+
+    @Override
+    public void read(long position, ByteBuffer destination) {
+        if (position + destination.remaining() > size) {
+            throw new RuntimeException("Failed to read from file: reading past the end of the file");
+        }
+        BinaryFile[] current = segments;
+        while (destination.hasRemaining()) {
+            int segmentIndex = (int) (position / segmentSize);
+            long offset = position % segmentSize;
+            int chunk = (int) Math.min(destination.remaining(), segmentSize - offset);
+            current[segmentIndex].read(offset, destination.slice(destination.position(), chunk));
+            destination.position(destination.position() + chunk);
+            position += chunk;
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer source) {
+        long end = position + source.remaining();
+        BinaryFile[] current = ensureSegments(end);
+        while (source.hasRemaining()) {
+            int segmentIndex = (int) (position / segmentSize);
+            long offset = position % segmentSize;
+            int chunk = (int) Math.min(source.remaining(), segmentSize - offset);
+            current[segmentIndex].write(offset, source.slice(source.position(), chunk));
+            source.position(source.position() + chunk);
+            position += chunk;
+        }
+        synchronized (this) {
+            size = Math.max(size, end);
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer[] sources) {
+        for (ByteBuffer source : sources) {
+            int length = source.remaining();
+            write(position, source);
+            position += length;
+        }
+    }
+
+    // Segments past the new end are deleted; the last kept one is cut to the remaining length.
+    @Override
+    public synchronized void truncate(long length) {
+        int keptSegments = (int) ((length + segmentSize - 1) / segmentSize);
+        if (length > size) {
+            ensureSegments(length);
+            segments[keptSegments - 1].truncate(length - (long) (keptSegments - 1) * segmentSize);
+            size = length;
+            return;
+        }
+
+        BinaryFile[] current = segments;
+        if (current.length > keptSegments) {
+            for (int i = keptSegments; i < current.length; i++) {
+                current[i].close();
+                new File(segmentPaths.get(i)).delete();
+            }
+            segmentPaths.subList(keptSegments, segmentPaths.size()).clear();
+            segments = Arrays.copyOf(current, keptSegments);
+            saveDirectory();
+        }
+
+        if (keptSegments > 0) {
+            long lastSegmentLength = length - (long) (keptSegments - 1) * segmentSize;
+            if (lastSegmentLength < segments[keptSegments - 1].getSize()) {
+                segments[keptSegments - 1].truncate(lastSegmentLength);
+            }
+        }
+        size = length;
+        if (position > length) {
+            position = length;
+        }
+    }
+
+    @Override
+    public void force() {
+        for (BinaryFile segment : segments) {
+            segment.force();
+        }
+        directoryFile.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (BinaryFile segment : segments) {
+            segment.close();
+        }
+        segments = new BinaryFile[0];
+        directoryFile.close();
+    }
+
+    // Earlier segments are always full, so growing into segment n also fills every segment before it.
+    private BinaryFile[] ensureSegments(long end) {
+        int needed = (int) ((end + segmentSize - 1) / segmentSize);
+        BinaryFile[] current = segments;
+        if (current.length >= needed) {
+            return current;
+        }
+        synchronized (this) {
+            current = segments;
+            if (current.length >= needed) {
+                return current;
+            }
+            BinaryFile[] grown = Arrays.copyOf(current, needed);
+            for (int i = current.length; i < needed; i++) {
+                String segmentPath = segmentPath(i);
+                new File(segmentPath).delete();
+                grown[i] = new BinaryFile(segmentPath);
+                segmentPaths.add(segmentPath);
+            }
+            for (int i = Math.max(0, current.length - 1); i < needed - 1; i++) {
+                if (grown[i].getSize() < segmentSize) {
+                    grown[i].truncate(segmentSize);
+                }
+            }
+            saveDirectory();
+            segments = grown;
+            return grown;
+        }
+    }
+
+    private String segmentPath(int segmentIndex) {
+        String directory = placementDirectories.get(segmentIndex % placementDirectories.size());
+        return new File(directory, new File(directoryPath).getName() + ".seg" + segmentIndex).getPath();
+    }
+
+    private void openSegments() {
+        BinaryFile[] opened = new BinaryFile[segmentPaths.size()];
+        long total = 0;
+        for (int i = 0; i < opened.length; i++) {
+            if (!new File(segmentPaths.get(i)).exists()) {
+                throw new RuntimeException("Missing segment " + segmentPaths.get(i) + " of " + directoryPath);
+            }
+            opened[i] = new BinaryFile(segmentPaths.get(i));
+            total = (long) i * segmentSize + opened[i].getSize();
+        }
+        segments = opened;
+        size = total;
+    }
+
+    private void saveDirectory() {
+        byte[] data = encodeDirectory(segmentSize, placementDirectories, segmentPaths);
+        directoryFile.write(0, ByteBuffer.wrap(data));
+        directoryFile.truncate(data.length);
+    }
+
+    private DirectoryContent loadDirectory() {
+        return decodeDirectory(directoryPath, directoryFile);
+    }
+
+    private static String parentDirectory(String pathToFile) {
+        File parent = new File(pathToFile).getAbsoluteFile().getParentFile();
+        return parent.getPath();
+    }
+
+    private static byte[] encodeDirectory(long segmentSize, List<String> placementDirectories,
+            List<String> segmentPaths) {
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+            dataOutputStream.writeInt(MAGIC);
+            dataOutputStream.writeLong(segmentSize);
+            dataOutputStream.writeInt(placementDirectories.size());
+            for (String directory : placementDirectories) {
+                dataOutputStream.writeUTF(directory);
+            }
+            dataOutputStream.writeInt(segmentPaths.size());
+            for (String segmentPath : segmentPaths) {
+                dataOutputStream.writeUTF(segmentPath);
+            }
+            return byteArrayOutputStream.toByteArray();
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    private static DirectoryContent decodeDirectory(String pathToFile, BinaryFile directoryFile) {
+        byte[] data = new byte[(int) directoryFile.getSize()];
+        directoryFile.read(0, ByteBuffer.wrap(data));
+        try {
+            DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(data));
+            if (dataInputStream.readInt() != MAGIC) {
+                throw new RuntimeException("Not a segment directory: " + pathToFile);
+            }
+            long segmentSize = dataInputStream.readLong();
+            List<String> placementDirectories = new ArrayList<>();
+            int directoryCount = dataInputStream.readInt();
+            for (int i = 0; i < directoryCount; i++) {
+                placementDirectories.add(dataInputStream.readUTF());
+            }
+            List<String> segmentPaths = new ArrayList<>();
+            int segmentCount = dataInputStream.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                segmentPaths.add(dataInputStream.readUTF());
+            }
+            return new DirectoryContent(segmentSize, placementDirectories, segmentPaths);
+        } catch (java.io.IOException e) {
+            throw new RuntimeException("Corrupted segment directory: " + pathToFile, e);
+        }
+    }
+
+    private record DirectoryContent(long segmentSize, List<String> placementDirectories, List<String> segmentPaths) {
+    }
+}
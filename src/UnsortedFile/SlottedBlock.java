@@ -0,0 +1,134 @@
+package UnsortedFile;
+
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+// Slotted page for variable-length records. The page starts with the record count and a slot
+// directory of (offset, length) pairs; record bodies are packed from the end of the page towards it.
+// Records are kept decoded in memory like in Block and the page is repacked on every write, so
+// deletes never leave holes on disk.
+public class SlottedBlock<T extends StorableRecord> extends Block<T> {
+
+    public static final int HEADER_SIZE = 4;
+    public static final int SLOT_SIZE = 4;
+    // Slot offsets and lengths are stored as unsigned shorts.
+    public static final int MAX_BLOCK_SIZE = 0xFFFF;
+
+    private int usedBytes;
+    private int smallestRecordSize;
+
+    public SlottedBlock(int blockingFactor, int blockSize, int recordSize, Supplier<T> recordFactory) {
+        super(blockingFactor, blockSize, recordSize, recordFactory);
+        checkBlockSize(blockSize);
+        this.usedBytes = HEADER_SIZE;
+        this.smallestRecordSize = Integer.MAX_VALUE;
+    }
+
+    // Upper bound on the slot count, reached only if every record encodes to a single byte.
+    public static int maxSlots(int blockSize) {
+        checkBlockSize(blockSize);
+        return (blockSize - HEADER_SIZE) / (SLOT_SIZE + 1);
+    }
+
+    private static void checkBlockSize(int blockSize) {
+        if (blockSize > MAX_BLOCK_SIZE) {
+            throw new Error("Slotted pages cannot be larger than " + MAX_BLOCK_SIZE + " bytes, got " + blockSize);
+        }
+    }
+
+    @Override
+    public boolean addRecord(T record) {
+        int size = record.encodedSize();
+        if (validBlockCount >= blockingFactor || usedBytes + SLOT_SIZE + size > blockSize) {
+            return false;
+        }
+        records[validBlockCount] = record;
+        validBlockCount++;
+        usedBytes += SLOT_SIZE + size;
+        smallestRecordSize = Math.min(smallestRecordSize, size);
+        return true;
+    }
+
+    @Override
+    public boolean delete(T partialRecord) {
+        int index = findRecordIndex(partialRecord);
+        if (index == -1) {
+            return false;
+        }
+        usedBytes -= SLOT_SIZE + records[index].encodedSize();
+        return super.delete(partialRecord);
+    }
+
+    @Override
+    public int deleteAllRecords() {
+        usedBytes = HEADER_SIZE;
+        return super.deleteAllRecords();
+    }
+
+    // There is no fixed record size, so the block counts as full once the smallest record it has
+    // held no longer fits.
+    @Override
+    public boolean isFull() {
+        if (validBlockCount >= blockingFactor) {
+            return true;
+        }
+        return validBlockCount > 0 && usedBytes + SLOT_SIZE + smallestRecordSize > blockSize;
+    }
+
+    public int getFreeBytes() {
+        return blockSize - usedBytes;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        int start = buffer.position();
+        int dataEnd = start + blockSize;
+        int directoryEnd = start + HEADER_SIZE + validBlockCount * SLOT_SIZE;
+
+        buffer.putInt(start, validBlockCount);
+        for (int i = 0; i < validBlockCount; i++) {
+            int size = records[i].encodedSize();
+            dataEnd -= size;
+            if (dataEnd < directoryEnd) {
+                throw new IllegalStateException("SlottedBlock serialization exceeds blockSize: " + blockSize);
+            }
+            buffer.position(dataEnd);
+            records[i].writeCompactTo(buffer);
+            buffer.putShort(start + HEADER_SIZE + i * SLOT_SIZE, (short) (dataEnd - start));
+            buffer.putShort(start + HEADER_SIZE + i * SLOT_SIZE + 2, (short) size);
+        }
+
+        buffer.position(directoryEnd);
+        RecordCodec.putZeros(buffer, dataEnd - directoryEnd);
+        buffer.position(start + blockSize);
+    }
+
+    @Override
+    public void readFrom(ByteBuffer buffer) {
+        int start = buffer.position();
+        try {
+            validBlockCount = buffer.getInt(start);
+            usedBytes = HEADER_SIZE;
+            smallestRecordSize = Integer.MAX_VALUE;
+            for (int i = 0; i < validBlockCount; i++) {
+                int offset = Short.toUnsignedInt(buffer.getShort(start + HEADER_SIZE + i * SLOT_SIZE));
+                int size = Short.toUnsignedInt(buffer.getShort(start + HEADER_SIZE + i * SLOT_SIZE + 2));
+                buffer.position(start + offset);
+                T record = recordFactory.get();
+                record.readCompactFrom(buffer);
+                records[i] = record;
+                usedBytes += SLOT_SIZE + size;
+                smallestRecordSize = Math.min(smallestRecordSize, size);
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Error during conversion from byte array.", e);
+        }
+        buffer.position(start + blockSize);
+    }
+
+    // Slot sizes vary, so there is nothing to gain from deferring the decode; read the page fully.
+    @Override
+    public void readFromLazily(ByteBuffer buffer) {
+        readFrom(buffer);
+    }
+}
@@ -0,0 +1,269 @@
+package UnsortedFile;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import LinearHashing.Core.PCR;
+import LinearHashing.Core.Person;
+
+// Round-trips variable-length records through slotted pages, on their own and in a slotted heap.
+// Records differ in the length of their strings and in how many tests they carry, so no two pages
+// hold the same number of them.
+public class SlottedPageTester {
+
+    private static final String TEST_DIRECTORY = "slottedpagetest";
+    private static final int BLOCK_SIZE = 1024;
+    private static final int TOTAL_PERSONS = 2000;
+
+    private static final TestReport report = new TestReport("SLOTTED PAGE TESTER");
+
+    public static void main(String[] args) {
+        report.printHeader();
+
+        try {
+            report.cleanDirectory(TEST_DIRECTORY);
+
+            Person[] persons = generatePersons(0, TOTAL_PERSONS);
+
+            report.runTestMethod("Slot bounds follow the block size and reject oversized pages",
+                    SlottedPageTester::testMaxSlots);
+            report.runTestMethod("A page of mixed sizes is full exactly when its smallest record no longer fits",
+                    () -> testIsFullWithMixedSizes(persons));
+            report.runTestMethod("Mixed records survive a page round trip, deletes and re-adds",
+                    () -> testPageRoundTrip(persons));
+            report.runTestMethod("Slotted heap keeps every record and its tests across deletes, re-inserts and reopening",
+                    () -> testSlottedHeap(persons));
+        } catch (Exception e) {
+            report.fatal(e);
+        }
+        report.printSummary();
+    }
+
+    private static String path(String name) {
+        return TEST_DIRECTORY + File.separator + name;
+    }
+
+    // Names and surnames of 1 to 15 and 14 characters and between 0 and 6 tests with notes of varying
+    // length, so encoded sizes range from a few dozen to a few hundred bytes.
+    private static Person[] generatePersons(int first, int count) {
+        Person[] persons = new Person[count];
+        for (int i = 0; i < count; i++) {
+            int n = first + i;
+            Person person = new Person();
+            person.name = "N".repeat(1 + n % 15);
+            person.surname = "S".repeat(1 + n * 7 % 14);
+            person.birthdate = 19500101L + n;
+            person.id = String.format("%08d", 40000000 + n);
+            for (int t = 0; t < n % 7; t++) {
+                PCR test = new PCR();
+                test.dateTime = 20200101L + t;
+                test.patientNumber = person.id;
+                test.testCode = n * 10 + t;
+                test.testResult = (n + t) % 2 == 0;
+                test.testValue = n + t / 10.0;
+                test.note = "x".repeat(1 + (n + t) % 11);
+                person.addTest(test);
+            }
+            persons[i] = person;
+        }
+        return persons;
+    }
+
+    // Compares every field the compact form stores, tests included.
+    private static boolean sameRecord(Person expected, Person actual) {
+        if (actual == null || !expected.id.equals(actual.id) || !expected.name.equals(actual.name)
+                || !expected.surname.equals(actual.surname) || expected.birthdate != actual.birthdate
+                || expected.validTestsCount != actual.validTestsCount) {
+            return false;
+        }
+        for (int t = 0; t < expected.validTestsCount; t++) {
+            PCR expectedTest = expected.pcrTests[t];
+            PCR actualTest = actual.pcrTests[t];
+            if (expectedTest.dateTime != actualTest.dateTime || expectedTest.testCode != actualTest.testCode
+                    || expectedTest.testResult != actualTest.testResult
+                    || expectedTest.testValue != actualTest.testValue
+                    || !expectedTest.patientNumber.equals(actualTest.patientNumber)
+                    || !expectedTest.note.equals(actualTest.note)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static SlottedBlock<Person> createBlock(int blockingFactor) {
+        return new SlottedBlock<>(blockingFactor, BLOCK_SIZE, new Person().sizeInBytes(), Person::new);
+    }
+
+    private static void testMaxSlots() {
+        int slots = SlottedBlock.maxSlots(BLOCK_SIZE);
+        int largestSlots = SlottedBlock.maxSlots(SlottedBlock.MAX_BLOCK_SIZE);
+        boolean oversizedRejected = false;
+        try {
+            SlottedBlock.maxSlots(SlottedBlock.MAX_BLOCK_SIZE + 1);
+        } catch (Error e) {
+            oversizedRejected = true;
+        }
+
+        // A heap gives its slotted pages maxSlots as blocking factor.
+        Heap<Person> heap = new Heap<>(path("maxslots"), BLOCK_SIZE, Person::new, false, 0,
+                FileAccessMode.STANDARD, BlockLayout.SLOTTED_PAGE);
+        int heapBlockingFactor = heap.getBlockingFactor();
+        heap.close();
+
+        int expectedSlots = (BLOCK_SIZE - SlottedBlock.HEADER_SIZE) / (SlottedBlock.SLOT_SIZE + 1);
+        int expectedLargest = (SlottedBlock.MAX_BLOCK_SIZE - SlottedBlock.HEADER_SIZE) / (SlottedBlock.SLOT_SIZE + 1);
+        report.check(slots == expectedSlots && largestSlots == expectedLargest && oversizedRejected
+                && heapBlockingFactor == slots,
+                slots + " slots for " + BLOCK_SIZE + " bytes, " + largestSlots + " for the largest page",
+                slots + " slots instead of " + expectedSlots + ", " + largestSlots + " instead of " + expectedLargest
+                        + ", oversized rejected " + oversizedRejected + ", heap blocking factor "
+                        + heapBlockingFactor);
+    }
+
+    private static void testIsFullWithMixedSizes(Person[] persons) {
+        List<String> failures = new ArrayList<>();
+        int pages = 0;
+        int index = 0;
+        while (index < persons.length) {
+            SlottedBlock<Person> block = createBlock(SlottedBlock.maxSlots(BLOCK_SIZE));
+            int smallest = Integer.MAX_VALUE;
+            while (index < persons.length && block.addRecord(persons[index])) {
+                smallest = Math.min(smallest, persons[index].encodedSize());
+                index++;
+                boolean expectedFull = block.getFreeBytes() < SlottedBlock.SLOT_SIZE + smallest;
+                if (block.isFull() != expectedFull) {
+                    failures.add("page " + pages + " with " + block.getValidBlockCount() + " records: full "
+                            + block.isFull() + " with " + block.getFreeBytes() + " bytes free");
+                }
+            }
+            // The record that did not fit really did not.
+            if (index < persons.length
+                    && persons[index].encodedSize() + SlottedBlock.SLOT_SIZE <= block.getFreeBytes()) {
+                failures.add("page " + pages + " refused a record of " + persons[index].encodedSize()
+                        + " bytes with " + block.getFreeBytes() + " free");
+            }
+            pages++;
+        }
+
+        // The blocking factor caps the slots even when bytes are left.
+        SlottedBlock<Person> capped = createBlock(3);
+        for (int i = 0; i < 3; i++) {
+            capped.addRecord(persons[i * 7]);
+        }
+        boolean cappedFull = capped.isFull() && !capped.addRecord(persons[1]) && capped.getFreeBytes() > 0;
+
+        report.check(failures.isEmpty() && cappedFull,
+                persons.length + " records over " + pages + " pages, isFull matched the free bytes on every add",
+                String.join("; ", failures) + (cappedFull ? "" : "; blocking factor did not cap the page"));
+    }
+
+    private static void testPageRoundTrip(Person[] persons) {
+        SlottedBlock<Person> block = createBlock(SlottedBlock.maxSlots(BLOCK_SIZE));
+        List<Person> expected = new ArrayList<>();
+        for (int i = 0; i < persons.length && block.addRecord(persons[i]); i++) {
+            expected.add(persons[i]);
+        }
+
+        // Delete every other record, then fill the room that left with records not seen yet.
+        for (int i = 0; i < expected.size(); i += 2) {
+            block.delete(expected.get(i));
+        }
+        List<Person> kept = new ArrayList<>();
+        for (int i = 1; i < expected.size(); i += 2) {
+            kept.add(expected.get(i));
+        }
+        int freeAfterDeletes = block.getFreeBytes();
+        int added = 0;
+        for (int i = persons.length - 1; i >= 0 && !block.isFull(); i--) {
+            if (block.addRecord(persons[i])) {
+                kept.add(persons[i]);
+                added++;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        block.writeTo(buffer);
+        buffer.flip();
+        SlottedBlock<Person> decoded = createBlock(SlottedBlock.maxSlots(BLOCK_SIZE));
+        decoded.readFrom(buffer);
+
+        int wrong = 0;
+        for (Person person : kept) {
+            if (!sameRecord(person, decoded.getRecord(person))) {
+                wrong++;
+            }
+        }
+        int deletedFound = 0;
+        for (int i = 0; i < expected.size(); i += 2) {
+            if (decoded.getRecord(expected.get(i)) != null) {
+                deletedFound++;
+            }
+        }
+
+        report.check(added > 0 && wrong == 0 && deletedFound == 0 && decoded.getValidBlockCount() == kept.size()
+                && decoded.getFreeBytes() == block.getFreeBytes() && decoded.isFull() == block.isFull(),
+                expected.size() + " records, half deleted, " + added + " added into " + freeAfterDeletes
+                        + " free bytes, all read back",
+                added + " added, " + wrong + " records differ, " + deletedFound + " deleted ones found, "
+                        + decoded.getValidBlockCount() + " of " + kept.size() + " decoded, free bytes "
+                        + decoded.getFreeBytes() + " against " + block.getFreeBytes());
+    }
+
+    private static int countWrong(Heap<Person> heap, Person[] persons, int[] blockNumbers, boolean[] deleted) {
+        int wrong = 0;
+        for (int i = 0; i < persons.length; i++) {
+            Person found = heap.get(blockNumbers[i], persons[i]);
+            if (deleted[i] ? found != null : !sameRecord(persons[i], found)) {
+                wrong++;
+            }
+        }
+        return wrong;
+    }
+
+    private static void testSlottedHeap(Person[] persons) {
+        Heap<Person> heap = new Heap<>(path("slottedheap"), BLOCK_SIZE, Person::new, false, 0,
+                FileAccessMode.STANDARD, BlockLayout.SLOTTED_PAGE);
+        int[] blockNumbers = new int[persons.length];
+        for (int i = 0; i < persons.length; i++) {
+            blockNumbers[i] = heap.insert(persons[i]);
+        }
+        int blocksAfterInsert = heap.getTotalBlockCount();
+
+        // Deleting a scattered third frees room of every size; records of other sizes refill it.
+        boolean[] deleted = new boolean[persons.length];
+        for (int i = 0; i < persons.length; i += 3) {
+            heap.delete(blockNumbers[i], persons[i], SlottedBlock<Person>::new, null, null);
+            deleted[i] = true;
+        }
+        Person[] reinserted = generatePersons(TOTAL_PERSONS, persons.length / 3);
+        int[] reinsertedBlocks = new int[reinserted.length];
+        for (int i = 0; i < reinserted.length; i++) {
+            reinsertedBlocks[i] = heap.insert(reinserted[i]);
+        }
+        int blocksAfterReinsert = heap.getTotalBlockCount();
+        int wrong = countWrong(heap, persons, blockNumbers, deleted);
+        int wrongReinserted = countWrong(heap, reinserted, reinsertedBlocks, new boolean[reinserted.length]);
+        int mismatches = RecoveryTester.countStateMismatches(heap);
+        heap.close();
+
+        Heap<Person> reopened = new Heap<>(path("slottedheap"), path("slottedheap.meta"), Person::new, false, 0,
+                FileAccessMode.STANDARD, BlockLayout.SLOTTED_PAGE);
+        int wrongAfterReopen = countWrong(reopened, persons, blockNumbers, deleted)
+                + countWrong(reopened, reinserted, reinsertedBlocks, new boolean[reinserted.length]);
+        long scanned = reopened.scan().count();
+        reopened.close();
+
+        // The re-inserted records are as many as the deleted ones and of similar sizes, so most of them
+        // have to go into the freed room rather than new blocks.
+        int expectedCount = persons.length - (persons.length + 2) / 3 + reinserted.length;
+        report.check(wrong == 0 && wrongReinserted == 0 && mismatches == 0 && wrongAfterReopen == 0
+                && scanned == expectedCount && blocksAfterReinsert < blocksAfterInsert * 11 / 10,
+                expectedCount + " records in " + blocksAfterReinsert + " blocks (" + blocksAfterInsert
+                        + " before the deletes), all read back after reopening",
+                wrong + " wrong, " + wrongReinserted + " re-inserted wrong, " + mismatches + " mismatched states, "
+                        + wrongAfterReopen + " wrong after reopening, " + scanned + " of " + expectedCount
+                        + " scanned, " + blocksAfterInsert + " -> " + blocksAfterReinsert + " blocks");
+    }
+}
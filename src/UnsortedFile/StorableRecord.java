@@ -1,5 +1,8 @@
 package UnsortedFile;
 
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
 
 public interface StorableRecord {
 
@@ -10,4 +13,43 @@ public interface StorableRecord {
     public byte[] ToByteArray();
     
     public void FromByteArray(byte[] inputArray);
+
+    public default void writeTo(ByteBuffer buffer) {
+        buffer.put(ToByteArray());
+    }
+
+    public default void readFrom(ByteBuffer buffer) {
+        byte[] inputArray = new byte[sizeInBytes()];
+        buffer.get(inputArray);
+        FromByteArray(inputArray);
+    }
+
+    // Variable-length encoding used by slotted pages. encodedSize() must match the number of bytes
+    // writeCompactTo() produces; records without a compact form fall back to the fixed layout.
+    public default int encodedSize() {
+        return sizeInBytes();
+    }
+
+    public default void writeCompactTo(ByteBuffer buffer) {
+        writeTo(buffer);
+    }
+
+    public default void readCompactFrom(ByteBuffer buffer) {
+        readFrom(buffer);
+    }
+
+    public static <T extends StorableRecord> Supplier<T> factoryOf(Class<T> recordClass) {
+        try {
+            Constructor<T> constructor = recordClass.getDeclaredConstructor();
+            return () -> {
+                try {
+                    return constructor.newInstance();
+                } catch (Exception e) {
+                    throw new Error("Cannot instantiate record class: " + recordClass.getName(), e);
+                }
+            };
+        } catch (NoSuchMethodException e) {
+            throw new Error("Record class has no parameterless constructor: " + recordClass.getName(), e);
+        }
+    }
 }
\ No newline at end of file
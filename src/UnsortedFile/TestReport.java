@@ -0,0 +1,116 @@
+package UnsortedFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+// Pass/fail bookkeeping and the summary for testers that run as a main program. Each test method runs
+// through runTestMethod(), which numbers it and counts it as passed if none of its checks failed and
+// it did not throw.
+public class TestReport {
+
+    public interface TestMethod {
+        void run() throws Exception;
+    }
+
+    private final String title;
+    private int testsPassed = 0;
+    private int testsFailed = 0;
+    private final List<String> failures = new ArrayList<>();
+    private int testMethodsPassed = 0;
+    private int testMethodsFailed = 0;
+    private String currentTest;
+
+    public TestReport(String title) {
+        this.title = title;
+    }
+
+    public void printHeader() {
+        System.out.println("========================================");
+        System.out.println("   " + title);
+        System.out.println("========================================\n");
+    }
+
+    // Creates the directory if needed and deletes the files a previous run left in it.
+    public void cleanDirectory(String directory) {
+        System.out.println("Cleaning up test files...");
+        File dir = new File(directory);
+        dir.mkdirs();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        System.out.println("[OK] Cleanup complete\n");
+    }
+
+    public void runTestMethod(String description, TestMethod method) {
+        currentTest = "Test " + (testMethodsPassed + testMethodsFailed + 1);
+        System.out.println(currentTest + ": " + description);
+        int failedBefore = testsFailed;
+        try {
+            method.run();
+        } catch (Throwable e) {
+            fail("threw " + e);
+            e.printStackTrace();
+        }
+        if (testsFailed == failedBefore) {
+            testMethodsPassed++;
+        } else {
+            testMethodsFailed++;
+        }
+        System.out.println();
+    }
+
+    public void check(boolean condition, String passMessage, String failMessage) {
+        if (condition) {
+            pass(passMessage);
+        } else {
+            fail(failMessage);
+        }
+    }
+
+    public void pass(String message) {
+        System.out.println("[PASS] " + currentTest + " passed: " + message);
+        testsPassed++;
+    }
+
+    public void fail(String message) {
+        String failure = currentTest + ": " + message;
+        System.out.println("[FAIL] " + failure);
+        testsFailed++;
+        failures.add(failure);
+    }
+
+    // For an exception that escaped the test methods themselves.
+    public void fatal(Exception e) {
+        System.err.println("\n FATAL ERROR: " + e.getMessage());
+        e.printStackTrace();
+        testsFailed++;
+    }
+
+    public void printSummary() {
+        System.out.println("========================================");
+        System.out.println("   TEST SUMMARY");
+        System.out.println("========================================");
+        System.out.println("Test Methods Passed: " + testMethodsPassed);
+        System.out.println("Test Methods Failed: " + testMethodsFailed);
+        System.out.println("Total Test Methods: " + (testMethodsPassed + testMethodsFailed));
+        System.out.println();
+        System.out.println("(Individual assertions: " + testsPassed + " passed, " + testsFailed + " failed)");
+
+        if (testsFailed > 0) {
+            System.out.println("\nFailures:");
+            for (int i = 0; i < failures.size(); i++) {
+                System.out.println("  " + (i + 1) + ". " + failures.get(i));
+            }
+        }
+
+        System.out.println("========================================");
+
+        if (testMethodsFailed == 0 && testsFailed == 0) {
+            System.out.println("[PASS] ALL TEST METHODS PASSED!");
+        } else {
+            System.out.println("[FAIL] SOME TEST METHODS FAILED!");
+        }
+        System.out.println("========================================\n");
+    }
+}
@@ -0,0 +1,342 @@
+package UnsortedFile;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// Redo log for one or more heap files. Every commit() appends one frame with the after-images of the
+// blocks written since the previous commit, for all attached files together. The data files are only
+// written once the frames are forced, so a crash leaves them at the last applied group and the valid
+// frames in the log bring them up to the last durable commit. A frame is applied completely or not
+// at all: replay stops at the first frame that is torn, corrupt or out of sequence.
+//
+// With groupCommitOperations > 1 the log is forced and applied once per that many commits. Reads still
+// see every write, but a crash loses up to that many operations (never part of one).
+//
+// The header lists the ids of the attached files, and recover() only replays into the same set. A log
+// left behind by files that have since been created again is dropped instead of replayed.
+public class WriteAheadLog {
+
+    public static final int DEFAULT_GROUP_COMMIT_OPERATIONS = 1;
+    public static final long DEFAULT_CHECKPOINT_BYTES = 8L << 20;
+
+    private static final int LOG_MAGIC = 0x57414C32;
+    private static final int FRAME_MAGIC = 0x46524D31;
+    // The magic and the file count; the file ids follow.
+    private static final int FIXED_HEADER_SIZE = 8;
+    private static final int FRAME_HEADER_SIZE = 20;
+
+    private final String pathToLog;
+    private final BinaryFile logFile;
+    private final int groupCommitOperations;
+    private final long checkpointBytes;
+    private final Map<Integer, LoggedBinaryFile> files = new TreeMap<>();
+    private final List<Runnable> recoveryListeners = new ArrayList<>();
+    private final boolean uncleanShutdown;
+    private boolean newFileAttached;
+
+    private int headerSize;
+    private long logEnd;
+    private long nextSequence;
+    private int unappliedFrames;
+    private boolean recovered;
+    private boolean closed;
+
+    private long frameCount;
+    private long forceCount;
+    private long checkpointCount;
+    private long replayedFrameCount;
+
+    public WriteAheadLog(String pathToLog) {
+        this(pathToLog, DEFAULT_GROUP_COMMIT_OPERATIONS, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    public WriteAheadLog(String pathToLog, int groupCommitOperations, long checkpointBytes) {
+        if (groupCommitOperations < 1) {
+            throw new Error("At least one operation per group commit is required");
+        }
+        this.pathToLog = pathToLog;
+        this.logFile = new BinaryFile(pathToLog);
+        this.groupCommitOperations = groupCommitOperations;
+        this.checkpointBytes = checkpointBytes;
+        // close() leaves an empty log behind, so any content means the last run did not close it.
+        this.uncleanShutdown = logFile.getSize() > 0;
+    }
+
+    // All files must be attached before recover(). The returned file replaces dataFile for the owner.
+    public synchronized BinaryFile attach(int fileId, BinaryFile dataFile, int blockSize) {
+        return attach(fileId, dataFile, blockSize, false);
+    }
+
+    // newFile marks a data file that was just created, so nothing in an existing log can belong to it.
+    public synchronized BinaryFile attach(int fileId, BinaryFile dataFile, int blockSize, boolean newFile) {
+        if (recovered) {
+            throw new Error("Files must be attached to the write-ahead log before recovery");
+        }
+        if (files.containsKey(fileId)) {
+            throw new Error("File id " + fileId + " is already attached to the write-ahead log");
+        }
+        LoggedBinaryFile loggedFile = new LoggedBinaryFile(this, fileId, dataFile, blockSize);
+        files.put(fileId, loggedFile);
+        newFileAttached |= newFile;
+        return loggedFile;
+    }
+
+    // Run after frames were replayed, so anything cached above the data files can be dropped.
+    public synchronized void addRecoveryListener(Runnable listener) {
+        recoveryListeners.add(listener);
+    }
+
+    // Replays the valid frames into the data files and starts a fresh log. Returns true if the log
+    // was not closed cleanly and was replayed; free-space state kept outside the log may then be stale.
+    public synchronized boolean recover() {
+        if (recovered) {
+            throw new Error("The write-ahead log was already recovered");
+        }
+
+        boolean replayed = uncleanShutdown && !newFileAttached;
+        if (replayed) {
+            replay();
+            for (LoggedBinaryFile file : files.values()) {
+                file.getDataFile().force();
+                file.reload();
+            }
+            for (Runnable listener : recoveryListeners) {
+                listener.run();
+            }
+        }
+
+        headerSize = FIXED_HEADER_SIZE + 4 * files.size();
+        logFile.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(LOG_MAGIC);
+        header.putInt(files.size());
+        for (int fileId : files.keySet()) {
+            header.putInt(fileId);
+        }
+        header.flip();
+        logFile.write(0, header);
+        logFile.force();
+        logEnd = headerSize;
+        recovered = true;
+        return replayed;
+    }
+
+    // Ends the current logical operation.
+    public synchronized void commit() {
+        checkUsable();
+
+        List<LoggedBinaryFile> changedFiles = new ArrayList<>();
+        int payloadSize = 4;
+        for (LoggedBinaryFile file : files.values()) {
+            if (file.hasUnframedChanges()) {
+                changedFiles.add(file);
+                payloadSize += file.frameEntrySize();
+            }
+        }
+        if (changedFiles.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payloadSize);
+        frame.position(FRAME_HEADER_SIZE);
+        frame.putInt(changedFiles.size());
+        for (LoggedBinaryFile file : changedFiles) {
+            file.writeFrameEntry(frame);
+        }
+
+        long sequence = nextSequence++;
+        CRC32 crc = new CRC32();
+        crc.update(frame.array(), FRAME_HEADER_SIZE, payloadSize);
+        crc.update(ByteBuffer.allocate(8).putLong(sequence).array());
+        frame.putInt(0, FRAME_MAGIC);
+        frame.putInt(4, payloadSize);
+        frame.putLong(8, sequence);
+        frame.putInt(16, (int) crc.getValue());
+        frame.flip();
+
+        logFile.write(logEnd, frame);
+        logEnd += FRAME_HEADER_SIZE + payloadSize;
+        frameCount++;
+        unappliedFrames++;
+
+        if (unappliedFrames >= groupCommitOperations) {
+            sync();
+        }
+    }
+
+    // Forces the committed frames and applies them to the data files, ending the current group early.
+    // Writes after the last commit are not in a frame yet, so they stay pending.
+    public synchronized void sync() {
+        checkUsable();
+        if (unappliedFrames == 0) {
+            return;
+        }
+
+        logFile.force();
+        forceCount++;
+        for (LoggedBinaryFile file : files.values()) {
+            file.applyFramed();
+        }
+        unappliedFrames = 0;
+
+        if (logEnd >= checkpointBytes) {
+            checkpoint();
+        }
+    }
+
+    // Forces the data files and empties the log. Writes after the last commit stay pending, and the
+    // next commit logs them.
+    public synchronized void checkpoint() {
+        checkUsable();
+        if (unappliedFrames > 0) {
+            sync();
+            if (logEnd == headerSize) {
+                return;
+            }
+        }
+
+        for (LoggedBinaryFile file : files.values()) {
+            file.getDataFile().force();
+        }
+        logFile.truncate(headerSize);
+        logFile.force();
+        logEnd = headerSize;
+        checkpointCount++;
+    }
+
+    // Commits whatever is still pending, checkpoints and leaves an empty log as the clean marker.
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        if (recovered) {
+            commit();
+            checkpoint();
+            logFile.truncate(0);
+            logFile.force();
+        }
+        logFile.close();
+        closed = true;
+    }
+
+    public String getPath() {
+        return pathToLog;
+    }
+
+    public int getGroupCommitOperations() {
+        return groupCommitOperations;
+    }
+
+    public synchronized long getLogSize() {
+        return logEnd;
+    }
+
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    public synchronized long getForceCount() {
+        return forceCount;
+    }
+
+    public synchronized long getCheckpointCount() {
+        return checkpointCount;
+    }
+
+    public synchronized long getReplayedFrameCount() {
+        return replayedFrameCount;
+    }
+
+    private void checkUsable() {
+        if (closed) {
+            throw new Error("The write-ahead log is closed");
+        }
+        if (!recovered) {
+            throw new Error("recover() must be called before the write-ahead log is used");
+        }
+    }
+
+    private void replay() {
+        long logSize = logFile.getSize();
+        if (logSize < FIXED_HEADER_SIZE) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+        logFile.read(0, header);
+        if (header.getInt(0) != LOG_MAGIC) {
+            throw new RuntimeException("Not a write-ahead log: " + pathToLog);
+        }
+
+        long position = FIXED_HEADER_SIZE;
+        int fileCount = header.getInt(4);
+        if (fileCount < 0 || position + 4L * fileCount > logSize) {
+            return;
+        }
+        ByteBuffer fileIds = ByteBuffer.allocate(4 * fileCount);
+        logFile.read(position, fileIds);
+        List<Integer> loggedFileIds = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            loggedFileIds.add(fileIds.getInt(4 * i));
+        }
+        if (!loggedFileIds.equals(new ArrayList<>(files.keySet()))) {
+            throw new RuntimeException("Write-ahead log " + pathToLog + " was written for file ids " + loggedFileIds
+                    + ", not " + files.keySet());
+        }
+        position += 4L * fileCount;
+        long expectedSequence = -1;
+        ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        while (position + FRAME_HEADER_SIZE <= logSize) {
+            frameHeader.clear();
+            logFile.read(position, frameHeader);
+            int payloadSize = frameHeader.getInt(4);
+            long sequence = frameHeader.getLong(8);
+            if (frameHeader.getInt(0) != FRAME_MAGIC || payloadSize < 4
+                    || position + FRAME_HEADER_SIZE + payloadSize > logSize
+                    || (expectedSequence != -1 && sequence != expectedSequence)) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+            logFile.read(position + FRAME_HEADER_SIZE, payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array(), 0, payloadSize);
+            crc.update(ByteBuffer.allocate(8).putLong(sequence).array());
+            if ((int) crc.getValue() != frameHeader.getInt(16)) {
+                break;
+            }
+
+            payload.flip();
+            applyFrame(payload);
+            replayedFrameCount++;
+            expectedSequence = sequence + 1;
+            position += FRAME_HEADER_SIZE + payloadSize;
+        }
+        nextSequence = expectedSequence == -1 ? 0 : expectedSequence;
+    }
+
+    private void applyFrame(ByteBuffer payload) {
+        int fileCount = payload.getInt();
+        for (int i = 0; i < fileCount; i++) {
+            int fileId = payload.getInt();
+            LoggedBinaryFile file = files.get(fileId);
+            if (file == null) {
+                throw new RuntimeException("Write-ahead log refers to file id " + fileId + " which is not attached");
+            }
+            long minSize = payload.getLong();
+            long finalSize = payload.getLong();
+            int blockCount = payload.getInt();
+            Map<Long, byte[]> blocks = new TreeMap<>();
+            for (int j = 0; j < blockCount; j++) {
+                long blockNumber = payload.getLong();
+                byte[] image = new byte[file.getBlockSize()];
+                payload.get(image);
+                blocks.put(blockNumber, image);
+            }
+            LoggedBinaryFile.applyTo(file.getDataFile(), file.getBlockSize(), minSize, finalSize, blocks);
+        }
+    }
+}
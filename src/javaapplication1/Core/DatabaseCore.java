@@ -2,10 +2,14 @@ package javaapplication1.Core;
 
 import javaapplication1.AVLTree;
 import UnsortedFile.BinaryFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.io.File;
 import java.io.ByteArrayInputStream;
@@ -40,6 +44,8 @@ public class DatabaseCore {
     private AVLTree<WorkplaceTimeKey> workplaceIndex;
     private AVLTree<PatientTestCodeKey> patientTestCodeIndex;
     
+    private static final int LOAD_CHUNK_SIZE = 1 << 20;
+
     private BinaryFile personFile;
     private BinaryFile testFile;
     private String personFilePath;
@@ -82,27 +88,13 @@ public class DatabaseCore {
         if (personFileObj.exists() && personFileObj.length() > 0) {
             try {
                 personFile = new BinaryFile(personFilePath);
-                long fileSize = personFile.getSize();
-                personFile.seek(0);
-                
-                while (personFile.getSize() > 0) {
-                    try {
-                        byte[] allBytes = personFile.read((int)fileSize);
-                        
-                        int offset = 0;
-                        while (offset < allBytes.length) {
-                            Person person = new Person();
-                            byte[] personBytes = extractPersonBytes(allBytes, offset);
-                            if (personBytes.length == 0) break;
-                            
-                            person.FromByteArray(personBytes);
-                            personMasterTree.insert(person);
-                            offset += personBytes.length;
-                        }
-                        break;
-                    } catch (Exception e) {
-                        break;
-                    }
+                try {
+                    loadRecords(personFile, this::extractPersonBytes, personBytes -> {
+                        Person person = new Person();
+                        person.FromByteArray(personBytes);
+                        personMasterTree.insert(person);
+                    });
+                } catch (Exception e) {
                 }
                 personFile.close();
             } catch (Exception e) {
@@ -113,30 +105,15 @@ public class DatabaseCore {
         if (testFileObj.exists() && testFileObj.length() > 0) {
             try {
                 testFile = new BinaryFile(testFilePath);
-                long fileSize = testFile.getSize();
-                testFile.seek(0);
-                
-                while (testFile.getSize() > 0) {
-                    try {
-                        byte[] allBytes = testFile.read((int)fileSize);
+                try {
+                    loadRecords(testFile, this::extractTestBytes, testBytes -> {
+                        PCRTest test = new PCRTest();
+                        test.FromByteArray(testBytes);
+                        testMasterTree.insert(test);
                         
-                        int offset = 0;
-                        while (offset < allBytes.length) {
-                            PCRTest test = new PCRTest();
-                            byte[] testBytes = extractTestBytes(allBytes, offset);
-                            if (testBytes.length == 0) break;
-                            
-                            test.FromByteArray(testBytes);
-                            testMasterTree.insert(test);
-                            
-                            insertTestIntoIndexes(test);
-                            
-                            offset += testBytes.length;
-                        }
-                        break;
-                    } catch (Exception e) {
-                        break;
-                    }
+                        insertTestIntoIndexes(test);
+                    });
+                } catch (Exception e) {
                 }
                 testFile.close();
             } catch (Exception e) {
@@ -145,6 +122,31 @@ public class DatabaseCore {
         }
     }
     
+    // Reads the file in chunks rather than into one byte[] of the whole file, so files past 2 GB load.
+    // A record cut off at the end of a chunk is carried over into the next one.
+    private void loadRecords(BinaryFile file, BiFunction<byte[], Integer, byte[]> extractor,
+            Consumer<byte[]> handler) {
+        long fileSize = file.getSize();
+        long position = 0;
+        byte[] carry = new byte[0];
+        while (position < fileSize) {
+            int chunk = (int) Math.min(LOAD_CHUNK_SIZE, fileSize - position);
+            byte[] window = Arrays.copyOf(carry, carry.length + chunk);
+            file.read(position, ByteBuffer.wrap(window, carry.length, chunk));
+            position += chunk;
+            
+            int offset = 0;
+            while (offset < window.length) {
+                byte[] recordBytes = extractor.apply(window, offset);
+                if (recordBytes.length == 0) break;
+                
+                handler.accept(recordBytes);
+                offset += recordBytes.length;
+            }
+            carry = Arrays.copyOfRange(window, offset, window.length);
+        }
+    }
+    
     private byte[] extractPersonBytes(byte[] allBytes, int offset) {
         try {
             ByteArrayInputStream bais = new ByteArrayInputStream(allBytes, offset, allBytes.length - offset);